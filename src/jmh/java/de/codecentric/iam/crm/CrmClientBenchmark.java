@@ -0,0 +1,165 @@
+package de.codecentric.iam.crm;
+
+import org.keycloak.TokenVerifier;
+import org.keycloak.common.VerificationException;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.MacSignatureVerifierContext;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.representations.AccessToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.http.HttpClient;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * JMH benchmarks of the hot paths of the CRM client, i.e., request building, request and response encoding, parsing of
+ * the API configuration and of login tokens, and complete calls against an in-process {@link CrmStubServer}, which
+ * are benchmarked with each {@link CrmTransport}. Run them with {@code mvn -Pbenchmark verify} (see README).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CrmClientBenchmark {
+    private static final String EMAIL = "customer0@example.com";
+    private static final String PASSWORD = "password0!";
+    private static final byte[] CUSTOMER_JSON =
+        "{\"firstname\":\"John\",\"lastname\":\"Doe\",\"address\":\"Main Street 1, 12345 Springfield\"}"
+            .getBytes(UTF_8);
+
+    private CrmStubServer crmStub;
+    private String configJson;
+    private CrmApiConfig.CrmApiConfigEntry apiConfig;
+    private String loginToken;
+    private byte[] loginResponseJson;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        crmStub = new CrmStubServer().withGeneratedCustomers(1).start();
+        configJson = crmStub.keycloakConfig();
+        apiConfig = CrmApiConfig.parseConfigEntry(configJson);
+    }
+
+    /**
+     * Renew the login token, because login tokens of the stub expire after 5 minutes.
+     */
+    @Setup(Level.Iteration)
+    public void renewLoginToken() {
+        loginToken = ApiMock.CustomerMockData.createAccessToken(crmStub.getUrl(), "1000000000");
+        loginResponseJson = ("{\"login_token\":\"" + loginToken + "\"}").getBytes(UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        crmStub.close();
+    }
+
+    /**
+     * Transport and content encoding of the benchmarked complete calls.
+     */
+    @State(Scope.Benchmark)
+    public static class TransportState {
+        @Param({CrmTransport.APACHE, CrmTransport.JDK})
+        public String name;
+
+        @Param({"false", "true"})
+        public boolean compression;
+
+        private CrmTransport transport;
+        private CrmContentEncoding contentEncoding;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            var poolSettings = new CrmHttpPoolSettings(64, 64, 300_000L, 30_000L, 30_000L, 60_000L, 256, 3600);
+            transport = CrmTransport.JDK.equals(name)
+                ? new JdkCrmTransport(poolSettings, 2_000, HttpClient.Version.HTTP_2)
+                : new ApacheCrmTransport(poolSettings);
+            contentEncoding = new CrmContentEncoding(compression, 1);
+        }
+
+        private Object execute(CrmApiCall<?> call) throws IOException {
+            contentEncoding.prepare(call);
+            return call.execute(transport);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            transport.close();
+        }
+    }
+
+    @Benchmark
+    public Object buildLoginCall() {
+        return CrmApiCall.login(apiConfig, EMAIL, PASSWORD);
+    }
+
+    @Benchmark
+    public void writeLoginRequest() throws IOException {
+        CrmJsonCodec.writeLoginRequest(OutputStream.nullOutputStream(), EMAIL, PASSWORD);
+    }
+
+    @Benchmark
+    public Object readLoginResponse() throws IOException {
+        return CrmJsonCodec.readLoginResponse(200, new ByteArrayInputStream(loginResponseJson));
+    }
+
+    @Benchmark
+    public Object readGetCustomerResponse() throws IOException {
+        return CrmJsonCodec.readGetCustomerResponse(200, new ByteArrayInputStream(CUSTOMER_JSON));
+    }
+
+    @Benchmark
+    public Object parseConfigEntry() {
+        return CrmApiConfig.parseConfigEntry(configJson);
+    }
+
+    /**
+     * Parsing of login tokens without verification, as done before the {@link CrmLoginTokenVerifier}.
+     */
+    @Benchmark
+    public AccessToken parseLoginToken() throws JWSInputException {
+        return new JWSInput(loginToken).readJsonContent(AccessToken.class);
+    }
+
+    /**
+     * Verification of login tokens corresponding to that of the {@link CrmLoginTokenVerifier} with an HMAC secret.
+     */
+    @Benchmark
+    public AccessToken verifyLoginToken() throws VerificationException {
+        return TokenVerifier.create(loginToken, AccessToken.class)
+            .verifierContext(new MacSignatureVerifierContext(apiConfig.getLoginTokenSecretKey(Algorithm.HS256)))
+            .withChecks(TokenVerifier.IS_ACTIVE)
+            .verify()
+            .getToken();
+    }
+
+    @Benchmark
+    public Object loginCall(TransportState transportState) throws IOException {
+        return transportState.execute(CrmApiCall.login(apiConfig, EMAIL, PASSWORD));
+    }
+
+    @Benchmark
+    public Object getCustomerCall(TransportState transportState) throws IOException {
+        return transportState.execute(CrmApiCall.getCustomer(apiConfig, loginToken));
+    }
+}
@@ -0,0 +1,113 @@
+package de.codecentric.iam.crm;
+
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.keycloak.connections.httpclient.ProxyMappingsAwareRoutePlanner;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default {@link CrmTransport}, i.e., a pooled, keep-alive Apache HttpClient. Each in-flight call occupies a pooled
+ * HTTP/1.1 connection. New connections resolve the CRM API's host with a {@link CachingDnsResolver}.
+ */
+class ApacheCrmTransport extends CrmTransport {
+    private final CrmHttpPoolSettings settings;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+
+    ApacheCrmTransport(CrmHttpPoolSettings settings) {
+        this(settings, CrmNetworkSettings.DEFAULT);
+    }
+
+    ApacheCrmTransport(CrmHttpPoolSettings settings, CrmNetworkSettings networkSettings) {
+        this.settings = settings;
+        connectionManager = createConnectionManager(settings, networkSettings);
+        httpClient = createHttpClient(settings, networkSettings, connectionManager);
+    }
+
+    private static PoolingHttpClientConnectionManager createConnectionManager(CrmHttpPoolSettings settings,
+        CrmNetworkSettings networkSettings) {
+        var hostnameVerifier = networkSettings.verifyHostnames()
+            ? SSLConnectionSocketFactory.getDefaultHostnameVerifier()
+            : NoopHostnameVerifier.INSTANCE;
+        var socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", new SSLConnectionSocketFactory(createSslContext(settings, networkSettings),
+                hostnameVerifier))
+            .build();
+
+        var manager = new PoolingHttpClientConnectionManager(
+                socketFactoryRegistry,
+                null,
+                null,
+                new CachingDnsResolver(settings.dnsCacheTtlMillis()),
+                settings.connectionTtlMillis(),
+                TimeUnit.MILLISECONDS
+            );
+        manager.setMaxTotal(settings.connectionPoolSize());
+        manager.setDefaultMaxPerRoute(settings.maxPooledPerRoute());
+        return manager;
+    }
+
+    private static CloseableHttpClient createHttpClient(CrmHttpPoolSettings settings,
+        CrmNetworkSettings networkSettings, PoolingHttpClientConnectionManager connectionManager) {
+        var builder = HttpClients.custom();
+        if (networkSettings.proxyMappings() != null)
+            builder.setRoutePlanner(new ProxyMappingsAwareRoutePlanner(networkSettings.proxyMappings()));
+        return builder
+            .setConnectionManager(connectionManager)
+            .setKeepAliveStrategy((response, context) -> {
+                var keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return keepAlive > 0 ? keepAlive : settings.keepAliveMillis();
+            })
+            .evictExpiredConnections()
+            .evictIdleConnections(settings.maxConnectionIdleTimeMillis(), TimeUnit.MILLISECONDS)
+            // The client is shared across users, so it mustn't keep any per-user state
+            .disableCookieManagement()
+            .disableContentCompression()
+            // Retries are up to the CrmRetryPolicy, which respects the retry budget and the flow deadline
+            .disableAutomaticRetries()
+            .build();
+    }
+
+    /**
+     * Execute the given call. The client consumes the response body after response handling, so that the underlying
+     * connection can be reused.
+     */
+    @Override
+    <T> T execute(CrmApiCall<T> call) throws IOException {
+        return httpClient.execute(call.request(), call::handleResponse);
+    }
+
+    @Override
+    public String getName() {
+        return APACHE;
+    }
+
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        var stats = connectionManager.getTotalStats();
+        var info = new LinkedHashMap<String, String>();
+        info.put("connectionPoolSize", String.valueOf(stats.getMax()));
+        info.put("maxPooledPerRoute", String.valueOf(settings.maxPooledPerRoute()));
+        info.put("leasedConnections", String.valueOf(stats.getLeased()));
+        info.put("availableConnections", String.valueOf(stats.getAvailable()));
+        info.put("pendingConnectionRequests", String.valueOf(stats.getPending()));
+        return info;
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+}
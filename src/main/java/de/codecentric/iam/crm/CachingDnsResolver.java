@@ -0,0 +1,48 @@
+package de.codecentric.iam.crm;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link DnsResolver} that caches successful lookups for a fixed time-to-live. New connections to the CRM API thus
+ * don't pay for a DNS round trip, while address changes of the CRM API still get picked up after expiry.
+ */
+class CachingDnsResolver implements DnsResolver {
+    private final DnsResolver delegate;
+    private final long ttlMillis;
+    private final ConcurrentMap<String, CachedAddresses> cache = new ConcurrentHashMap<>();
+
+    CachingDnsResolver(long ttlMillis) {
+        this(SystemDefaultDnsResolver.INSTANCE, ttlMillis);
+    }
+
+    CachingDnsResolver(DnsResolver delegate, long ttlMillis) {
+        this.delegate = delegate;
+        this.ttlMillis = ttlMillis;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        if (ttlMillis <= 0)
+            return delegate.resolve(host);
+
+        var now = System.currentTimeMillis();
+        var cached = cache.get(host);
+        if (cached != null && cached.expiresAt() > now)
+            return cached.addresses().clone();
+
+        // Failed lookups aren't cached so that a recovering DNS gets used as soon as possible
+        var addresses = delegate.resolve(host);
+        cache.put(host, new CachedAddresses(addresses.clone(), now + ttlMillis));
+        return addresses;
+    }
+
+    private record CachedAddresses(InetAddress[] addresses, long expiresAt) {
+        // NOOP
+    }
+}
@@ -0,0 +1,212 @@
+package de.codecentric.iam.crm;
+
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.CustomerPageResponse;
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.GetCustomerResponse;
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.LoginResponse;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Prepared call of a CRM API operation. Calls are prepared on the calling thread and can be executed on any thread,
+ * because they don't depend on the Keycloak session. The HTTP status of the call's response and the bytes transferred
+ * are recorded for metrics.
+ */
+record CrmApiCall<T>(CrmApiOperation operation, HttpRequestBase request, ResponseHandler<T> responseHandler,
+    AtomicInteger httpStatus, TransferredBytes transferredBytes) {
+    CrmApiCall(CrmApiOperation operation, HttpRequestBase request, ResponseHandler<T> responseHandler) {
+        this(operation, request, responseHandler, new AtomicInteger(), new TransferredBytes());
+    }
+
+    /**
+     * Bytes of the request and response bodies as transferred, i.e., before decoding, and their content encodings.
+     */
+    static class TransferredBytes {
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        volatile String sentEncoding = CrmContentEncoding.IDENTITY;
+        volatile String receivedEncoding = CrmContentEncoding.IDENTITY;
+    }
+
+    /**
+     * Execute the call with the given transport. Server errors throw a {@link CrmApiServerErrorException}.
+     */
+    T execute(CrmTransport transport) throws IOException {
+        return transport.execute(this);
+    }
+
+    /**
+     * Handle the given response of the call with the call's response handler, and record its HTTP status. The response
+     * body is decoded while the handler reads it, and counted as transferred. Server errors throw a
+     * {@link CrmApiServerErrorException}.
+     */
+    T handleResponse(HttpResponse response) throws IOException {
+        httpStatus.set(status(response));
+        if (status(response) >= 500)
+            throw new CrmApiServerErrorException(operation, status(response));
+
+        var entity = CrmContentEncoding.decode(response, transferredBytes);
+        var result = responseHandler.handleResponse(response);
+        if (entity != null)
+            entity.drain();
+        return result;
+    }
+
+    /**
+     * Copy the call for another attempt, e.g., a retry or a hedged request, because aborted requests can't be executed
+     * again. Only calls of GET requests can be copied, since request bodies may be streamed only once.
+     */
+    CrmApiCall<T> copy() {
+        if (!(request instanceof HttpGet))
+            throw new IllegalStateException("Only GET requests can be copied, not " + request.getMethod());
+
+        var copy = new HttpGet(request.getURI());
+        copy.setHeaders(request.getAllHeaders());
+        copy.setConfig(request.getConfig());
+        return new CrmApiCall<>(operation, copy, responseHandler);
+    }
+
+    /**
+     * Apply the given request configuration, e.g., timeouts.
+     */
+    void configure(RequestConfig requestConfig) {
+        request.setConfig(requestConfig);
+    }
+
+    /**
+     * Abort the call once the given deadline passes, because socket timeouts only limit single reads. The returned
+     * future must be cancelled when the call completes before.
+     */
+    CompletableFuture<Void> abortOn(CrmDeadline deadline) {
+        return CompletableFuture.runAsync(this::abort,
+            CompletableFuture.delayedExecutor(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Whether the call was aborted, because the given deadline passed.
+     */
+    boolean isAbortedOn(CrmDeadline deadline) {
+        return deadline != null && deadline.isExceeded() && request.isAborted();
+    }
+
+    /**
+     * Abort the call, e.g., on cancellation. Aborting releases the underlying connection.
+     */
+    void abort() {
+        request.abort();
+    }
+
+    /**
+     * Prepare a call of the CRM API's POST Login operation. The request body is streamed to the connection.
+     */
+    static CrmApiCall<LoginResponse> login(CrmApiConfig.CrmApiConfigEntry apiConfig, String email, String password) {
+        var request = new HttpPost(apiConfig.getUrl() + "/login");
+        request.setHeader(HttpHeaders.AUTHORIZATION, bearer(apiConfig.getApiToken()));
+        request.setHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON);
+        request.setEntity(new JsonStreamingEntity(out -> CrmJsonCodec.writeLoginRequest(out, email, password)));
+        return new CrmApiCall<>(CrmApiOperation.LOGIN, request, response ->
+            CrmJsonCodec.readLoginResponse(status(response), content(response))
+        );
+    }
+
+    /**
+     * Prepare a call of the CRM API's GET Customers operation for the customer identified by the given login token.
+     */
+    static CrmApiCall<GetCustomerResponse> getCustomer(CrmApiConfig.CrmApiConfigEntry apiConfig, String loginToken) {
+        var request = new HttpGet(apiConfig.getUrl() + "/customers");
+        request.setHeader(HttpHeaders.AUTHORIZATION, bearer(loginToken));
+        return new CrmApiCall<>(CrmApiOperation.GET_CUSTOMER, request, response ->
+            CrmJsonCodec.readGetCustomerResponse(status(response), content(response))
+        );
+    }
+
+    /**
+     * Prepare a call of the CRM API's POST Customers operation. The request body is streamed to the connection.
+     */
+    static CrmApiCall<Boolean> createCustomer(CrmApiConfig.CrmApiConfigEntry apiConfig, String email, String password,
+        String firstname, String lastname) {
+        var request = new HttpPost(apiConfig.getUrl() + "/customers");
+        request.setHeader(HttpHeaders.AUTHORIZATION, bearer(apiConfig.getApiToken()));
+        request.setHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON);
+        request.setEntity(new JsonStreamingEntity(out ->
+            CrmJsonCodec.writeCreateCustomerRequest(out, email, password, firstname, lastname)
+        ));
+        return new CrmApiCall<>(CrmApiOperation.CREATE_CUSTOMER, request, response ->
+            Response.Status.fromStatusCode(status(response)) == Response.Status.CREATED
+        );
+    }
+
+    /**
+     * Prepare a call of the CRM API's GET Customers/{email} operation.
+     */
+    static CrmApiCall<Boolean> existsCustomer(CrmApiConfig.CrmApiConfigEntry apiConfig, String email) {
+        var request = new HttpGet(apiConfig.getUrl() + "/customers/" + email);
+        request.setHeader(HttpHeaders.AUTHORIZATION, bearer(apiConfig.getApiToken()));
+        return new CrmApiCall<>(CrmApiOperation.EXISTS_CUSTOMER, request, response ->
+            Response.Status.fromStatusCode(status(response)) == Response.Status.OK
+        );
+    }
+
+    /**
+     * Prepare a call of the CRM API's GET Export/Customers operation, which returns the page of customers at the given
+     * cursor. A blank cursor denotes the first page.
+     */
+    static CrmApiCall<CustomerPageResponse> listCustomers(CrmApiConfig.CrmApiConfigEntry apiConfig, String cursor,
+        int limit) {
+        var url = apiConfig.getUrl() + "/export/customers?limit=" + limit;
+        if (cursor != null && !cursor.isBlank())
+            url += "&cursor=" + URLEncoder.encode(cursor, UTF_8);
+
+        var request = new HttpGet(url);
+        request.setHeader(HttpHeaders.AUTHORIZATION, bearer(apiConfig.getApiToken()));
+        request.setHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON);
+        return new CrmApiCall<>(CrmApiOperation.LIST_CUSTOMERS, request, response ->
+            CrmJsonCodec.readCustomerPage(status(response), content(response))
+        );
+    }
+
+    /**
+     * Prepare a call of the JWKS endpoint with the keys for verifying CRM login tokens. Responses other than OK result
+     * in {@code null}.
+     */
+    static CrmApiCall<JSONWebKeySet> getSigningKeys(CrmApiConfig.CrmApiConfigEntry apiConfig) {
+        var request = new HttpGet(apiConfig.getLoginTokenJwksUrl());
+        request.setHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON);
+        return new CrmApiCall<>(CrmApiOperation.GET_SIGNING_KEYS, request, response ->
+            Response.Status.fromStatusCode(status(response)) == Response.Status.OK
+                ? JsonSerialization.readValue(content(response), JSONWebKeySet.class)
+                : null
+        );
+    }
+
+    private static String bearer(String token) {
+        return "Bearer " + token;
+    }
+
+    private static int status(HttpResponse response) {
+        return response.getStatusLine().getStatusCode();
+    }
+
+    private static InputStream content(HttpResponse response) throws IOException {
+        var entity = response.getEntity();
+        return entity != null ? entity.getContent() : InputStream.nullInputStream();
+    }
+}
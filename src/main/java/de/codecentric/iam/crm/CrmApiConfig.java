@@ -1,14 +1,22 @@
 package de.codecentric.iam.crm;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.type.TypeReference;
 import org.apache.commons.lang3.StringUtils;
-import org.jboss.logging.Logger;
+import org.keycloak.crypto.JavaAlgorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.util.JsonSerialization;
 
+import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * POJO representing the JSON structure of the Keycloak secret with which access to the CRM API can be configured (see
@@ -18,25 +26,42 @@ import java.io.IOException;
 public class CrmApiConfig {
     public static final String API_CONFIG_SECRET_NAME = "crm_api";
 
-    private static final Logger logger = Logger.getLogger(CrmApiConfig.class);
-
-    private static CrmApiConfigEntry cachedConfig;
-
     private CrmApiConfig() {
         // NOOP
     }
 
+    /**
+     * Get the configuration for the realm of the given session from the {@link CrmApiConfigRegistry}, or {@code null}
+     * if the realm's secret doesn't hold a valid configuration.
+     */
     public static CrmApiConfigEntry getConfigEntry(KeycloakSession session) {
-        if (cachedConfig == null)
-            cachedConfig = parseConfigEntry(session);
-        return cachedConfig;
+        return session.getProvider(CrmClientProvider.class).getConfigRegistry().get(session);
     }
 
+    /**
+     * Configuration entry. Besides the API's URL and Bearer token, the entry holds the key material for verifying CRM
+     * login tokens (see {@link CrmLoginTokenVerifier}), i.e., either the secret of HMAC-signed tokens, or the URL of
+     * the JWKS with the public keys of asymmetrically signed tokens. The expected issuer and audience of login tokens
+     * are optional.
+     */
     public static class CrmApiConfigEntry {
         @JsonProperty("url")
         private String url;
         @JsonProperty("api_token")
         private String apiToken;
+        @JsonProperty("login_token_secret")
+        private String loginTokenSecret;
+        @JsonProperty("login_token_jwks_url")
+        private String loginTokenJwksUrl;
+        @JsonProperty("login_token_issuer")
+        private String loginTokenIssuer;
+        @JsonProperty("login_token_audience")
+        private String loginTokenAudience;
+
+        // HMAC keys derived from the login token secret per algorithm. Entries are replaced when their secret
+        // changes, so the keys needn't be invalidated.
+        @JsonIgnore
+        private final Map<String, KeyWrapper> loginTokenSecretKeys = new ConcurrentHashMap<>();
 
         /**
          * Constructor for JSON deserialization
@@ -65,18 +90,53 @@ public class CrmApiConfig {
         public void setApiToken(String apiToken) {
             this.apiToken = apiToken;
         }
-    }
 
-    /**
-     * Parse the configuration at Keycloak runtime from the corresponding secret file.
-     */
-    private static CrmApiConfigEntry parseConfigEntry(KeycloakSession session) {
-        var configJson = session.vault().getStringSecret(String.format("${vault.%s}", API_CONFIG_SECRET_NAME));
-        try {
-            return parseConfigEntry(configJson.get().orElse("{}"));
-        } catch (Exception ex) {
-            logger.error(ex.getMessage());
-            return null;
+        public String getLoginTokenSecret() {
+            return loginTokenSecret;
+        }
+
+        public void setLoginTokenSecret(String loginTokenSecret) {
+            this.loginTokenSecret = loginTokenSecret;
+            loginTokenSecretKeys.clear();
+        }
+
+        public String getLoginTokenJwksUrl() {
+            return loginTokenJwksUrl;
+        }
+
+        public void setLoginTokenJwksUrl(String loginTokenJwksUrl) {
+            this.loginTokenJwksUrl = loginTokenJwksUrl;
+        }
+
+        public String getLoginTokenIssuer() {
+            return loginTokenIssuer;
+        }
+
+        public void setLoginTokenIssuer(String loginTokenIssuer) {
+            this.loginTokenIssuer = loginTokenIssuer;
+        }
+
+        public String getLoginTokenAudience() {
+            return loginTokenAudience;
+        }
+
+        public void setLoginTokenAudience(String loginTokenAudience) {
+            this.loginTokenAudience = loginTokenAudience;
+        }
+
+        /**
+         * Get the HMAC key for the given algorithm (e.g., HS256) from the login token secret.
+         */
+        KeyWrapper getLoginTokenSecretKey(String algorithm) {
+            return loginTokenSecretKeys.computeIfAbsent(algorithm, alg -> {
+                var key = new KeyWrapper();
+                key.setAlgorithm(alg);
+                key.setUse(KeyUse.SIG);
+                key.setSecretKey(
+                    new SecretKeySpec(loginTokenSecret.getBytes(UTF_8), JavaAlgorithm.getJavaAlgorithm(alg))
+                );
+                return key;
+            });
         }
     }
 
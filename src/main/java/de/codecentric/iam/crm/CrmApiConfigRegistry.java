@@ -0,0 +1,192 @@
+package de.codecentric.iam.crm;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static de.codecentric.iam.crm.CrmApiConfig.API_CONFIG_SECRET_NAME;
+
+/**
+ * Registry of the {@link CrmApiConfig.CrmApiConfigEntry configurations} for interaction with the CRM API per realm.
+ * Reads are lock-free and return the configuration loaded last, which is safely published via a
+ * {@link ConcurrentHashMap}. Reloads replace configurations instead of modifying them, so callers mustn't modify them
+ * either.
+ * <p>
+ * A realm's configuration is loaded from its {@value CrmApiConfig#API_CONFIG_SECRET_NAME} vault secret on first access.
+ * Afterwards, a background task periodically re-reads the secrets of all known realms and replaces configurations
+ * whose secrets changed, e.g., after a rotation of the API token. Failed loads are retried with exponential backoff
+ * instead of on every request, and a failed reload keeps the previous configuration.
+ */
+public class CrmApiConfigRegistry {
+    private static final Logger logger = Logger.getLogger(CrmApiConfigRegistry.class);
+
+    private final long reloadIntervalMillis;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final SingleFlight<String, Entry> loads = new SingleFlight<>();
+    private ScheduledExecutorService reloadExecutor;
+
+    CrmApiConfigRegistry(long reloadIntervalMillis, long initialBackoffMillis, long maxBackoffMillis) {
+        this.reloadIntervalMillis = reloadIntervalMillis;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Create a registry from the options {@code config-reload-interval-millis} (zero disables reloading),
+     * {@code config-failure-backoff-initial-millis}, and {@code config-failure-backoff-max-millis}.
+     */
+    static CrmApiConfigRegistry fromConfig(Config.Scope config) {
+        return new CrmApiConfigRegistry(
+            config.getLong("config-reload-interval-millis", 30_000L),
+            config.getLong("config-failure-backoff-initial-millis", 1_000L),
+            config.getLong("config-failure-backoff-max-millis", 300_000L)
+        );
+    }
+
+    /**
+     * Get the configuration for the realm of the given session, or {@code null} if the realm's vault secret doesn't
+     * hold a valid configuration.
+     */
+    CrmApiConfig.CrmApiConfigEntry get(KeycloakSession session) {
+        var realm = session.getContext().getRealm();
+        if (realm == null) {
+            logger.warn("No realm in Keycloak session context to load configuration for interaction with CRM API");
+            return null;
+        }
+
+        var entry = entries.get(realm.getId());
+        if (entry != null && (entry.config() != null || System.currentTimeMillis() < entry.nextAttemptAt()))
+            return entry.config();
+
+        var reloaded = reload(session, realm.getId(), entry);
+        return reloaded != null ? reloaded.config() : null;
+    }
+
+    /**
+     * Replace the given current entry of the realm with one loaded from the realm's vault secret, and return the
+     * realm's entry afterward. Concurrent reloads of a realm, e.g., its first accesses or retries after backoff, load
+     * the secret only once, and outside the map's locks, since reading the vault may block. If the entry was replaced
+     * meanwhile, the loaded one is discarded.
+     */
+    private Entry reload(KeycloakSession session, String realmId, Entry current) {
+        return loads.execute(realmId, () -> {
+            var loaded = load(session, realmId, current);
+            return CompletableFuture.completedFuture(
+                entries.compute(realmId, (id, latest) -> latest == current ? loaded : latest));
+        }).join();
+    }
+
+    /**
+     * Load the configuration from the vault secret of the session's realm. If the secret didn't change since the
+     * given current entry was loaded, the current configuration is kept.
+     */
+    private Entry load(KeycloakSession session, String realmId, Entry current) {
+        String secret;
+        try (var vaultSecret = session.vault().getStringSecret(String.format("${vault.%s}", API_CONFIG_SECRET_NAME))) {
+            secret = vaultSecret.get().orElse("");
+        } catch (Exception ex) {
+            return failed(realmId, current, ex);
+        }
+
+        var digest = digest(secret);
+        if (current != null && current.config() != null && Arrays.equals(current.secretDigest(), digest))
+            return current.failures() == 0 ? current : new Entry(current.config(), digest, 0, 0);
+
+        try {
+            return new Entry(CrmApiConfig.parseConfigEntry(secret), digest, 0, 0);
+        } catch (Exception ex) {
+            return failed(realmId, current, ex);
+        }
+    }
+
+    /**
+     * Derive the entry after a failed load. A previously loaded configuration is kept, because it is more likely to
+     * work than none. Otherwise, the next attempt is delayed with exponential backoff. Only the first failure of a
+     * streak is logged as an error, so that retries don't flood the log.
+     */
+    private Entry failed(String realmId, Entry current, Exception ex) {
+        var failures = current != null ? current.failures() + 1 : 1;
+        if (failures == 1)
+            logger.errorf(ex, "Exception during loading of CRM API configuration for realm %s", realmId);
+        else
+            logger.debugf("Loading of CRM API configuration for realm %s failed %d times in a row: %s", realmId,
+                failures, ex.getMessage());
+
+        if (current != null && current.config() != null)
+            return new Entry(current.config(), current.secretDigest(), failures, 0);
+
+        var backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(failures - 1, 30));
+        return new Entry(null, null, failures, System.currentTimeMillis() + backoff);
+    }
+
+    /**
+     * Start the periodic reloading of the configurations of all known realms.
+     */
+    void startReloading(KeycloakSessionFactory sessionFactory) {
+        if (reloadIntervalMillis <= 0)
+            return;
+
+        reloadExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "crm-api-config-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloadExecutor.scheduleWithFixedDelay(() -> reloadAll(sessionFactory), reloadIntervalMillis,
+            reloadIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void reloadAll(KeycloakSessionFactory sessionFactory) {
+        for (var realmId : List.copyOf(entries.keySet()))
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    var realm = session.realms().getRealm(realmId);
+                    if (realm == null) {
+                        entries.remove(realmId);
+                        return;
+                    }
+
+                    session.getContext().setRealm(realm);
+                    var current = entries.get(realmId);
+                    if (current != null
+                        && (current.config() != null || System.currentTimeMillis() >= current.nextAttemptAt()))
+                        reload(session, realmId, current);
+                });
+            } catch (Exception ex) {
+                logger.errorf(ex, "Exception during reloading of CRM API configuration for realm %s", realmId);
+            }
+    }
+
+    void stopReloading() {
+        if (reloadExecutor != null)
+            reloadExecutor.shutdownNow();
+    }
+
+    private static byte[] digest(String secret) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private record Entry(CrmApiConfig.CrmApiConfigEntry config, byte[] secretDigest, int failures,
+        long nextAttemptAt) {
+        // NOOP
+    }
+}
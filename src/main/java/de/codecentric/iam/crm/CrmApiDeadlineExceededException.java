@@ -0,0 +1,20 @@
+package de.codecentric.iam.crm;
+
+import java.io.IOException;
+
+/**
+ * Exception signalling that a CRM API call was skipped or aborted, because the {@link CrmDeadline} of the current
+ * authentication or registration step is exceeded.
+ */
+public class CrmApiDeadlineExceededException extends IOException {
+    public CrmApiDeadlineExceededException(CrmApiOperation operation) {
+        super(String.format("Deadline exceeded before CRM API %s request", operation.getId()));
+    }
+
+    /**
+     * Exception for a call that was aborted, because the deadline passed while the request was in flight.
+     */
+    public CrmApiDeadlineExceededException(CrmApiOperation operation, Throwable cause) {
+        super(String.format("Deadline exceeded during CRM API %s request", operation.getId()), cause);
+    }
+}
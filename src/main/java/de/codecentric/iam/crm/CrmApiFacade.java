@@ -1,15 +1,21 @@
 package de.codecentric.iam.crm;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import jakarta.ws.rs.core.Response;
+import io.opentelemetry.context.Context;
+import org.apache.commons.lang3.StringUtils;
 import org.jboss.logging.Logger;
-import org.keycloak.http.simple.SimpleHttp;
+import org.keycloak.jose.jwk.JSONWebKeySet;
 import org.keycloak.models.KeycloakSession;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Facade for accessing operations of the CRM API at Keycloak runtime following in the form of a Fluent API.
@@ -23,15 +29,40 @@ public class CrmApiFacade {
         return new CrmApiFacadeWithSession(Objects.requireNonNull(session, "Keycloak session mustn't be null"));
     }
 
+    /**
+     * Asynchronous counterpart of {@link #session(KeycloakSession)}. All session-dependent state is resolved on the
+     * calling thread, so that the returned futures may complete on other threads.
+     */
+    public static CrmApiFacadeAsync async(KeycloakSession session) {
+        return new CrmApiFacadeAsync(
+            new CrmApiSessionContext(Objects.requireNonNull(session, "Keycloak session mustn't be null")), null);
+    }
+
+    /**
+     * Wait for the given future of an asynchronous facade method, and return its result or an empty {@link Optional} in
+     * case of failure. That is, the result corresponds to that of the synchronous facade method.
+     *
+     * @throws CrmApiUnavailableException if the call was rejected by the {@link CrmApiGuard}
+     */
+    public static <T> Optional<T> await(CompletableFuture<T> future) {
+        return future.handle((result, ex) -> {
+            if (ex instanceof CompletionException && ex.getCause() != null)
+                ex = ex.getCause();
+            if (ex instanceof CrmApiUnavailableException unavailable)
+                throw unavailable;
+            return ex == null ? Optional.ofNullable(result) : Optional.<T>empty();
+        }).join();
+    }
+
     public static class CrmApiFacadeWithSession extends CrmApiFacade {
+        private final CrmApiSessionContext context;
         private final CrmApiConfig.CrmApiConfigEntry apiConfig;
-        private final KeycloakSession session;
 
         private static final Logger logger = Logger.getLogger(CrmApiFacadeWithSession.class);
 
         private CrmApiFacadeWithSession(KeycloakSession session) {
-            apiConfig = CrmApiConfig.getConfigEntry(session);
-            this.session = session;
+            context = new CrmApiSessionContext(session);
+            apiConfig = context.apiConfig;
         }
 
         /**
@@ -40,39 +71,9 @@ public class CrmApiFacade {
          */
         public Optional<LoginResponse> login(String email, String password) {
             if (apiConfig == null)
-                return Optional.empty();
-
-            // Prepare request from given parameter values
-            JsonNode request;
-            try {
-                request = new ObjectMapper().readTree(String.format("""
-                        {
-                            "email": "%s",
-                            "password": "%s"
-                        }
-                    """, email, password));
-            } catch (Exception ex) {
-                logger.error("Exception during preparation of login request", ex);
-                return Optional.empty();
-            }
+                return missingConfig(CrmApiOperation.LOGIN);
 
-            // Perform request and build response
-            try (
-                var response = SimpleHttp
-                    .create(session)
-                    .doPost(apiConfig.getUrl() + "/login")
-                    .auth(apiConfig.getApiToken())
-                    .acceptJson()
-                    .json(request)
-                    .asResponse()
-            ) {
-                return Optional.of(
-                    new LoginResponse(response.getStatus(), response.asJson().path("login_token").asText())
-                );
-            } catch (IOException ex) {
-                logger.error("Exception during login request", ex);
-                return Optional.empty();
-            }
+            return execute(CrmApiCall.login(apiConfig, email, password));
         }
 
         public record LoginResponse(int httpStatus, String loginToken) {
@@ -85,25 +86,36 @@ public class CrmApiFacade {
          */
         public Optional<GetCustomerResponse> getCustomer(String loginToken) {
             if (apiConfig == null)
-                return Optional.empty();
+                return missingConfig(CrmApiOperation.GET_CUSTOMER);
 
-            try (
-                var response = SimpleHttp
-                    .create(session)
-                    .doGet(apiConfig.getUrl() + "/customers")
-                    .auth(loginToken)
-                    .asResponse()
-            ) {
-                return Optional.of(new GetCustomerResponse(
-                    response.getStatus(),
-                    response.asJson().path("firstname").asText(),
-                    response.asJson().path("lastname").asText(),
-                    response.asJson().path("address").asText()
-                ));
-            } catch (IOException ex) {
-                logger.error("Exception during customer request", ex);
-                return Optional.empty();
-            }
+            return execute(CrmApiCall.getCustomer(apiConfig, loginToken));
+        }
+
+        /**
+         * Variant of {@link #getCustomer(String)} for callers that know the customer's ID, i.e., the subject of the
+         * given login token. The customer's details are served from the cluster-wide {@link CrmCustomerCache} if
+         * possible, and concurrent requests for the same customer are coalesced.
+         */
+        public Optional<GetCustomerResponse> getCustomer(String customerId, String loginToken) {
+            if (apiConfig == null)
+                return missingConfig(CrmApiOperation.GET_CUSTOMER);
+
+            var cachedCustomer = context.getCachedCustomer(customerId);
+            if (cachedCustomer.isPresent())
+                return cachedCustomer;
+
+            return execute(context.coalescer.getCustomerCalls(), context.coalescingKey(customerId),
+                CrmApiCall.getCustomer(apiConfig, loginToken), customer -> context.cacheCustomer(customerId, customer));
+        }
+
+        /**
+         * Variant of {@link #getCustomer(String, String)} that bypasses the {@link CrmCustomerCache}, and stores the
+         * requested details in it, e.g., for refreshing them in the background.
+         */
+        public Optional<GetCustomerResponse> refreshCustomer(String customerId, String loginToken) {
+            var customer = getCustomer(loginToken);
+            customer.ifPresent(details -> context.cacheCustomer(customerId, details));
+            return customer;
         }
 
         public record GetCustomerResponse(int httpStatus, String firstname, String lastname, String address) {
@@ -117,62 +129,293 @@ public class CrmApiFacade {
         public Optional<Boolean> createCustomer(String email, String password, String firstname,
             String lastname) {
             if (apiConfig == null)
-                return Optional.empty();
-
-            // Prepare request from given parameter values
-            JsonNode request;
-            try {
-                request = new ObjectMapper().readTree(String.format("""
-                        {
-                            "email": "%s",
-                            "password": "%s",
-                            "firstname": "%s",
-                            "lastname": "%s"
-                        }
-                    """, email, password, firstname, lastname));
-            } catch (Exception ex) {
-                logger.error("Exception during preparation of create customer request", ex);
-                return Optional.empty();
-            }
+                return missingConfig(CrmApiOperation.CREATE_CUSTOMER);
 
-            // Perform request and build response
-            try (
-                var response = SimpleHttp
-                    .create(session)
-                    .doPost(apiConfig.getUrl() + "/customers")
-                    .auth(apiConfig.getApiToken())
-                    .acceptJson()
-                    .json(request)
-                    .asResponse()
-            ) {
-                return Optional.of(Response.Status.fromStatusCode(response.getStatus()) == Response.Status.CREATED);
-            } catch (IOException ex) {
-                logger.error("Exception during customer request", ex);
-                return Optional.empty();
-            }
+            var created = execute(CrmApiCall.createCustomer(apiConfig, email, password, firstname, lastname));
+            if (created.orElse(false))
+                context.onCustomerCreated(email);
+            return created;
         }
 
         /**
          * Facade method for the CRM API's GET Customers/{email} operation, which allows for checking a customer's
          * existence in the CRM system form a given email. Requires the API's Bearer token from the Keycloak
-         * configuration secret for the CRM API.
+         * configuration secret for the CRM API. Results are cached in the {@link ExistsCustomerCache}, and concurrent
+         * requests for the same email are coalesced.
          */
         public Optional<Boolean> existsCustomer(String email) {
             if (apiConfig == null)
+                return missingConfig(CrmApiOperation.EXISTS_CUSTOMER);
+
+            var cachedExists = context.getCachedExists(email);
+            if (cachedExists != null)
+                return Optional.of(cachedExists);
+
+            return execute(context.coalescer.existsCustomerCalls(), context.coalescingKey(email),
+                CrmApiCall.existsCustomer(apiConfig, email), exists -> context.cacheExists(email, exists));
+        }
+
+        /**
+         * Facade method for the CRM API's GET Export/Customers operation, which returns a page of customers for bulk
+         * migrations. The first page is requested with a blank cursor, and the following pages with the next cursor of
+         * the respective previous page. Requires the API's Bearer token from the Keycloak configuration secret for the
+         * CRM API.
+         */
+        public Optional<CustomerPageResponse> listCustomers(String cursor, int limit) {
+            if (apiConfig == null)
+                return missingConfig(CrmApiOperation.LIST_CUSTOMERS);
+
+            return execute(CrmApiCall.listCustomers(apiConfig, cursor, limit));
+        }
+
+        public record CustomerPageResponse(int httpStatus, List<ExportedCustomer> customers, String nextCursor) {
+            // NOOP
+        }
+
+        public record ExportedCustomer(String id, String email, String firstname, String lastname, String address) {
+            // NOOP
+        }
+
+        /**
+         * Facade method for the JWKS endpoint with the public keys for verifying CRM login tokens, if configured in the
+         * Keycloak configuration secret for the CRM API.
+         */
+        public Optional<JSONWebKeySet> getSigningKeys() {
+            if (apiConfig == null)
+                return missingConfig(CrmApiOperation.GET_SIGNING_KEYS);
+            if (StringUtils.isBlank(apiConfig.getLoginTokenJwksUrl()))
                 return Optional.empty();
 
-            try (
-                var response = SimpleHttp
-                    .create(session)
-                    .doGet(apiConfig.getUrl() + "/customers/" + email)
-                    .auth(apiConfig.getApiToken())
-                    .asResponse()
-            ) {
-                return Optional.of(Response.Status.fromStatusCode(response.getStatus()) == Response.Status.OK);
+            return execute(CrmApiCall.getSigningKeys(apiConfig));
+        }
+
+        private <T> Optional<T> missingConfig(CrmApiOperation operation) {
+            context.onEmptyResult(operation, "missing_config");
+            return Optional.empty();
+        }
+
+        /**
+         * Execute the given call on the calling thread. Rejected calls aren't mapped to an empty {@link Optional}, but
+         * throw a {@link CrmApiUnavailableException}, so that callers can tell an unavailable CRM API apart from failed
+         * requests.
+         */
+        private <T> Optional<T> execute(CrmApiCall<T> call) {
+            return await(complete(call));
+        }
+
+        /**
+         * Execute the given call on the calling thread, unless an identical call is in flight, whose result is shared
+         * then. Only the thread that executes the call passes the result to the given consumer. Threads that share the
+         * result wait no longer than the {@link CrmDeadline} permits.
+         */
+        private <T> Optional<T> execute(SingleFlight<String, T> calls, String key, CrmApiCall<T> call,
+            Consumer<T> resultConsumer) {
+            var flight = calls.execute(key, () -> complete(call).thenApply(result -> {
+                resultConsumer.accept(result);
+                return result;
+            }));
+            var deadline = context.getDeadline();
+            if (deadline != null)
+                flight.orTimeout(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+            return await(flight);
+        }
+
+        /**
+         * Execute the given call according to the {@link CrmRetryPolicy}, and return a completed future. Hedged
+         * requests are executed on the executor for asynchronous calls, while the call itself is executed on the
+         * calling thread.
+         */
+        private <T> CompletableFuture<T> complete(CrmApiCall<T> call) {
+            try {
+                // Fail fast without a span if the deadline is exceeded already
+                context.configure(call);
+                return CompletableFuture.completedFuture(context.execute(call, Context.current()));
+            } catch (CrmApiDeadlineExceededException ex) {
+                logger.warn(ex.getMessage());
+                context.onEmptyResult(call.operation(), context.emptyResultCause(ex));
+                return CompletableFuture.failedFuture(ex);
             } catch (IOException ex) {
-                logger.error("Exception during exists customer request", ex);
-                return Optional.empty();
+                logger.errorf(ex, "Exception during %s request", call.operation().getId());
+                context.onEmptyResult(call.operation(), "io_error");
+                return CompletableFuture.failedFuture(ex);
             }
         }
     }
+
+    /**
+     * Asynchronous facade whose methods correspond to those of {@link CrmApiFacadeWithSession}. The methods return
+     * futures, which complete on virtual threads and fail if the CRM API isn't configured, the call is rejected by the
+     * {@link CrmApiGuard}, or the request fails.
+     * Cancelling a future or exceeding the {@link #withTimeout(Duration) timeout} aborts the underlying request, unless
+     * the request is shared by coalesced calls.
+     */
+    public static class CrmApiFacadeAsync extends CrmApiFacade {
+        private final CrmApiSessionContext context;
+        private final CrmApiConfig.CrmApiConfigEntry apiConfig;
+        private final Duration timeout;
+
+        private static final Logger logger = Logger.getLogger(CrmApiFacadeAsync.class);
+
+        private CrmApiFacadeAsync(CrmApiSessionContext context, Duration timeout) {
+            this.context = context;
+            apiConfig = context.apiConfig;
+            this.timeout = timeout;
+        }
+
+        /**
+         * Derive a facade whose futures fail with a {@link java.util.concurrent.TimeoutException} when they don't
+         * complete within the given timeout.
+         */
+        public CrmApiFacadeAsync withTimeout(Duration timeout) {
+            return new CrmApiFacadeAsync(context, Objects.requireNonNull(timeout, "Timeout mustn't be null"));
+        }
+
+        /**
+         * @see CrmApiFacadeWithSession#login(String, String)
+         */
+        public CompletableFuture<CrmApiFacadeWithSession.LoginResponse> login(String email, String password) {
+            if (apiConfig == null)
+                return missingConfig(CrmApiOperation.LOGIN);
+
+            return submit(CrmApiCall.login(apiConfig, email, password));
+        }
+
+        /**
+         * @see CrmApiFacadeWithSession#getCustomer(String)
+         */
+        public CompletableFuture<CrmApiFacadeWithSession.GetCustomerResponse> getCustomer(String loginToken) {
+            if (apiConfig == null)
+                return missingConfig(CrmApiOperation.GET_CUSTOMER);
+
+            return submit(CrmApiCall.getCustomer(apiConfig, loginToken));
+        }
+
+        /**
+         * @see CrmApiFacadeWithSession#getCustomer(String, String)
+         */
+        public CompletableFuture<CrmApiFacadeWithSession.GetCustomerResponse> getCustomer(String customerId,
+            String loginToken) {
+            if (apiConfig == null)
+                return missingConfig(CrmApiOperation.GET_CUSTOMER);
+
+            var cachedCustomer = context.getCachedCustomer(customerId);
+            if (cachedCustomer.isPresent())
+                return CompletableFuture.completedFuture(cachedCustomer.get());
+
+            return submit(context.coalescer.getCustomerCalls(), context.coalescingKey(customerId),
+                CrmApiCall.getCustomer(apiConfig, loginToken), customer -> context.cacheCustomer(customerId, customer));
+        }
+
+        /**
+         * @see CrmApiFacadeWithSession#createCustomer(String, String, String, String)
+         */
+        public CompletableFuture<Boolean> createCustomer(String email, String password, String firstname,
+            String lastname) {
+            if (apiConfig == null)
+                return missingConfig(CrmApiOperation.CREATE_CUSTOMER);
+
+            return submit(CrmApiCall.createCustomer(apiConfig, email, password, firstname, lastname), created -> {
+                if (created)
+                    context.onCustomerCreated(email);
+            });
+        }
+
+        /**
+         * @see CrmApiFacadeWithSession#existsCustomer(String)
+         */
+        public CompletableFuture<Boolean> existsCustomer(String email) {
+            if (apiConfig == null)
+                return missingConfig(CrmApiOperation.EXISTS_CUSTOMER);
+
+            var cachedExists = context.getCachedExists(email);
+            if (cachedExists != null)
+                return CompletableFuture.completedFuture(cachedExists);
+
+            return submit(context.coalescer.existsCustomerCalls(), context.coalescingKey(email),
+                CrmApiCall.existsCustomer(apiConfig, email), exists -> context.cacheExists(email, exists));
+        }
+
+        private <T> CompletableFuture<T> missingConfig(CrmApiOperation operation) {
+            context.onEmptyResult(operation, "missing_config");
+            return CompletableFuture.failedFuture(
+                new IllegalStateException("No configuration for interaction with CRM API available")
+            );
+        }
+
+        private <T> CompletableFuture<T> submit(CrmApiCall<T> call) {
+            return submit(call, result -> {});
+        }
+
+        /**
+         * Submit the given call for execution, unless an identical call is in flight, whose result is shared then. The
+         * returned future times out independently of the shared call.
+         */
+        private <T> CompletableFuture<T> submit(SingleFlight<String, T> calls, String key, CrmApiCall<T> call,
+            Consumer<T> resultConsumer) {
+            return timeBound(calls.execute(key, () -> submit(call, resultConsumer)));
+        }
+
+        /**
+         * Submit the given call for execution, and pass its result to the given consumer before completing the returned
+         * future. Thus, callers of facade methods can cancel the returned future directly. The future times out with
+         * the earlier of the facade's timeout and the {@link CrmDeadline}.
+         */
+        private <T> CompletableFuture<T> submit(CrmApiCall<T> call, Consumer<T> resultConsumer) {
+            try {
+                context.configure(call);
+            } catch (CrmApiDeadlineExceededException ex) {
+                logger.warn(ex.getMessage());
+                context.onEmptyResult(call.operation(), context.emptyResultCause(ex));
+                return CompletableFuture.failedFuture(ex);
+            }
+
+            // The call's span is a child of the caller's span, although it is executed on another thread
+            var parent = Context.current();
+            var future = new CompletableFuture<T>();
+            var task = context.executor.submit(() -> {
+                try {
+                    var result = context.execute(call, parent);
+                    resultConsumer.accept(result);
+                    future.complete(result);
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+
+            // Cancellation and timeouts complete the future exceptionally, so that aborting the request in that case
+            // releases the connection and the virtual thread early
+            future.whenComplete((result, ex) -> {
+                if (ex == null)
+                    return;
+
+                call.abort();
+                task.cancel(true);
+                if (ex instanceof CrmApiUnavailableException)
+                    logger.warn(ex.getMessage());
+                else if (ex instanceof CancellationException)
+                    return;
+                else if ("deadline_exceeded".equals(context.emptyResultCause(ex))) {
+                    logger.warn(ex.getMessage());
+                    context.onEmptyResult(call.operation(), "deadline_exceeded");
+                } else {
+                    logger.errorf(ex, "Exception during asynchronous %s request", call.operation().getId());
+                    context.onEmptyResult(call.operation(), "io_error");
+                }
+            });
+            return timeBound(future);
+        }
+
+        /**
+         * Let the given future time out with the earlier of the facade's timeout and the {@link CrmDeadline}.
+         */
+        private <T> CompletableFuture<T> timeBound(CompletableFuture<T> future) {
+            var timeoutMillis = timeout != null ? timeout.toMillis() : Long.MAX_VALUE;
+            var deadline = context.getDeadline();
+            if (deadline != null)
+                timeoutMillis = Math.min(timeoutMillis, deadline.remainingMillis());
+            if (timeoutMillis < Long.MAX_VALUE)
+                future.orTimeout(Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS);
+            return future;
+        }
+    }
 }
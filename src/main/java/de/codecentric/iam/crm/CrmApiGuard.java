@@ -0,0 +1,89 @@
+package de.codecentric.iam.crm;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guard for CRM API calls, which combines a {@link CrmCircuitBreaker circuit breaker} per {@link CrmApiOperation} with
+ * a bulkhead that caps the number of in-flight calls across all operations. Rejected calls don't reach the CRM API, but
+ * fail fast with a {@link CrmApiUnavailableException}, so that a struggling CRM API neither ties up threads and pooled
+ * connections nor gets flooded with further requests.
+ */
+public class CrmApiGuard {
+    private final CrmResilienceSettings settings;
+    private final Map<CrmApiOperation, CrmCircuitBreaker> circuitBreakers = new EnumMap<>(CrmApiOperation.class);
+    private final Semaphore bulkhead;
+
+    CrmApiGuard(CrmResilienceSettings settings) {
+        this.settings = settings;
+        for (var operation : CrmApiOperation.values())
+            circuitBreakers.put(operation, new CrmCircuitBreaker(operation, settings));
+        bulkhead = new Semaphore(settings.maxConcurrentCalls());
+    }
+
+    /**
+     * Execute the given call with the given transport, if both the circuit breaker of the call's operation and the
+     * bulkhead permit it. I/O errors, server errors, and runtime exceptions count as failed calls, unless the call was
+     * aborted by the caller, e.g., a hedged request that lost against another one. Aborted calls still count as slow
+     * calls if they took long enough.
+     *
+     * @throws CrmApiUnavailableException if the call was rejected
+     */
+    <T> T execute(CrmApiCall<T> call, CrmTransport transport) throws IOException {
+        var circuitBreaker = circuitBreakers.get(call.operation());
+        if (!circuitBreaker.tryAcquirePermission())
+            throw new CrmApiUnavailableException(call.operation(), "circuit breaker open");
+
+        if (!acquireBulkhead()) {
+            circuitBreaker.releasePermission();
+            throw new CrmApiUnavailableException(call.operation(), "too many concurrent calls");
+        }
+
+        var start = System.nanoTime();
+        var failed = true;
+        try {
+            var result = call.execute(transport);
+            failed = false;
+            return result;
+        } finally {
+            bulkhead.release();
+            circuitBreaker.onResult(failed && !call.request().isAborted(), System.nanoTime() - start);
+        }
+    }
+
+    private boolean acquireBulkhead() {
+        try {
+            return settings.maxWaitMillis() > 0
+                ? bulkhead.tryAcquire(settings.maxWaitMillis(), TimeUnit.MILLISECONDS)
+                : bulkhead.tryAcquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Current state of the circuit breaker of the given operation, i.e., {@code CLOSED}, {@code OPEN}, or
+     * {@code HALF_OPEN}.
+     */
+    public String getCircuitBreakerState(CrmApiOperation operation) {
+        return circuitBreakers.get(operation).getState().name();
+    }
+
+    /**
+     * Whether the circuit breaker of the given operation is closed, i.e., additional calls such as retries are welcome.
+     */
+    boolean isCircuitBreakerClosed(CrmApiOperation operation) {
+        return circuitBreakers.get(operation).getState() == CrmCircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * Number of CRM API calls that are currently in flight.
+     */
+    public int getConcurrentCalls() {
+        return settings.maxConcurrentCalls() - bulkhead.availablePermits();
+    }
+}
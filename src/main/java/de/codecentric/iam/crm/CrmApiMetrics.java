@@ -0,0 +1,130 @@
+package de.codecentric.iam.crm;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.keycloak.models.KeycloakSession;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer metrics of CRM API calls, which Keycloak publishes via its metrics endpoint if metrics are enabled:
+ * <ul>
+ *     <li>{@value #CALLS}: Timer with percentiles and histogram of the calls per operation, realm, and outcome, i.e.,
+ *     the HTTP status class of the response ({@code 2xx}, {@code 4xx}, ...), {@code io_error},
+ *     {@code deadline_exceeded} if the call was aborted at the {@link CrmDeadline}, or {@code rejected} by the
+ *     {@link CrmApiGuard}.</li>
+ *     <li>{@value #EMPTY_RESULTS}: Counter of facade calls without result per operation, realm, and cause, i.e.,
+ *     {@code missing_config}, {@code deadline_exceeded} if the call was skipped or aborted at the
+ *     {@link CrmDeadline}, or {@code io_error}.</li>
+ *     <li>{@value #CALLS_IN_FLIGHT}: Gauge of the CRM API calls that are currently in flight.</li>
+ *     <li>{@value #TRANSFERRED_BYTES}: Counter of the bytes of request and response bodies as transferred, i.e.,
+ *     compressed, per operation, realm, direction ({@code sent} or {@code received}), and content encoding
+ *     ({@code identity}, {@code gzip}, ...).</li>
+ * </ul>
+ */
+public class CrmApiMetrics {
+    static final String CALLS = "keycloak.crm.api.calls";
+    static final String EMPTY_RESULTS = "keycloak.crm.api.empty.results";
+    static final String CALLS_IN_FLIGHT = "keycloak.crm.api.calls.in.flight";
+    static final String TRANSFERRED_BYTES = "keycloak.crm.api.transferred.bytes";
+
+    private static final String UNKNOWN_REALM = "unknown";
+
+    private final MeterRegistry registry;
+    private final List<Meter> gauges;
+
+    CrmApiMetrics(MeterRegistry registry, CrmApiGuard guard) {
+        this.registry = registry;
+        gauges = List.of(
+            Gauge.builder(CALLS_IN_FLIGHT, guard, CrmApiGuard::getConcurrentCalls)
+                .description("CRM API calls in flight")
+                .register(registry)
+        );
+    }
+
+    /**
+     * Name of the realm of the given session, which tags the metrics of calls on behalf of the session.
+     */
+    static String realmTag(KeycloakSession session) {
+        var realm = session.getContext().getRealm();
+        return realm != null ? realm.getName() : UNKNOWN_REALM;
+    }
+
+    /**
+     * Execute the given call through the given guard, and record its duration, outcome, and transferred bytes. Calls
+     * aborted at the given deadline are recorded apart from I/O errors.
+     */
+    <T> T execute(CrmApiGuard guard, CrmApiCall<T> call, CrmTransport transport, String realm, CrmDeadline deadline)
+        throws IOException {
+        var start = System.nanoTime();
+        var outcome = "io_error";
+        try {
+            var result = guard.execute(call, transport);
+            outcome = statusClass(call.httpStatus().get());
+            return result;
+        } catch (CrmApiServerErrorException ex) {
+            outcome = statusClass(ex.getHttpStatus());
+            throw ex;
+        } catch (CrmApiUnavailableException ex) {
+            outcome = "rejected";
+            throw ex;
+        } catch (IOException ex) {
+            if (call.isAbortedOn(deadline))
+                outcome = "deadline_exceeded";
+            throw ex;
+        } finally {
+            Timer.builder(CALLS)
+                .description("Duration of CRM API calls")
+                .tags("operation", call.operation().getId(), "realm", realm, "outcome", outcome)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            var transferredBytes = call.transferredBytes();
+            recordTransferredBytes(call.operation(), realm, "sent", transferredBytes.sentEncoding,
+                transferredBytes.sent.get());
+            recordTransferredBytes(call.operation(), realm, "received", transferredBytes.receivedEncoding,
+                transferredBytes.received.get());
+        }
+    }
+
+    private void recordTransferredBytes(CrmApiOperation operation, String realm, String direction, String encoding,
+        long bytes) {
+        if (bytes <= 0)
+            return;
+
+        Counter.builder(TRANSFERRED_BYTES)
+            .description("Bytes of CRM API request and response bodies as transferred")
+            .baseUnit("bytes")
+            .tags("operation", operation.getId(), "realm", realm, "direction", direction, "encoding", encoding)
+            .register(registry)
+            .increment(bytes);
+    }
+
+    /**
+     * Count a facade call of the given operation which returned no result for the given cause.
+     */
+    void onEmptyResult(CrmApiOperation operation, String realm, String cause) {
+        Counter.builder(EMPTY_RESULTS)
+            .description("CRM API facade calls without result")
+            .tags("operation", operation.getId(), "realm", realm, "cause", cause)
+            .register(registry)
+            .increment();
+    }
+
+    private static String statusClass(int httpStatus) {
+        return httpStatus > 0 ? httpStatus / 100 + "xx" : "unknown";
+    }
+
+    /**
+     * Remove the gauges from the registry, because they refer to the infrastructure of the closing factory.
+     */
+    void close() {
+        gauges.forEach(registry::remove);
+    }
+}
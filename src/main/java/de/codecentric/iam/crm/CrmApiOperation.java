@@ -0,0 +1,30 @@
+package de.codecentric.iam.crm;
+
+/**
+ * Operations of the CRM API. Idempotent operations, i.e., the GET operations, may be retried and hedged by the
+ * {@link CrmRetryPolicy}.
+ */
+public enum CrmApiOperation {
+    LOGIN("login", false),
+    GET_CUSTOMER("getCustomer", true),
+    CREATE_CUSTOMER("createCustomer", false),
+    EXISTS_CUSTOMER("existsCustomer", true),
+    LIST_CUSTOMERS("listCustomers", true),
+    GET_SIGNING_KEYS("getSigningKeys", true);
+
+    private final String id;
+    private final boolean idempotent;
+
+    CrmApiOperation(String id, boolean idempotent) {
+        this.id = id;
+        this.idempotent = idempotent;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+}
@@ -0,0 +1,20 @@
+package de.codecentric.iam.crm;
+
+import java.io.IOException;
+
+/**
+ * Exception signalling a server error (HTTP status 5xx) of the CRM API. Server errors are treated like I/O errors, so
+ * that they neither get mistaken for regular results nor cached, and count as failures of the CRM API.
+ */
+public class CrmApiServerErrorException extends IOException {
+    private final int httpStatus;
+
+    public CrmApiServerErrorException(CrmApiOperation operation, int httpStatus) {
+        super(String.format("CRM API %s operation responded with HTTP status %d", operation.getId(), httpStatus));
+        this.httpStatus = httpStatus;
+    }
+
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+}
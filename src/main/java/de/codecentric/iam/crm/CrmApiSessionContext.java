@@ -0,0 +1,161 @@
+package de.codecentric.iam.crm;
+
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.GetCustomerResponse;
+import io.opentelemetry.context.Context;
+import org.infinispan.Cache;
+import org.keycloak.models.KeycloakSession;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Per-session state shared by the synchronous and the asynchronous {@link CrmApiFacade}, i.e., the realm's CRM API
+ * configuration, the {@link CrmDeadline} of the session's flow, and the infrastructure of the
+ * {@link CrmClientProvider}. The context is resolved on the calling thread, and may be used on any thread afterward.
+ */
+class CrmApiSessionContext {
+    final CrmApiConfig.CrmApiConfigEntry apiConfig;
+    final CrmRequestCoalescer coalescer;
+    final ExecutorService executor;
+
+    private final CrmTransport transport;
+    private final CrmApiGuard guard;
+    private final CrmRequestTimeouts timeouts;
+    private final CrmDeadline deadline;
+    private final CrmRetryPolicy retryPolicy;
+    private final CrmContentEncoding contentEncoding;
+    private final ExistsCustomerCache existsCustomerCache;
+    private final CrmApiMetrics metrics;
+    private final CrmApiTracing tracing;
+    private final String realm;
+    private final CrmCustomerCache customerCache;
+    // Infinispan caches are thread-safe, so that the cache may be accessed from executing threads. Without it, the
+    // customer cache falls back to its in-memory cache.
+    private final Cache<String, String> customerInfinispanCache;
+
+    CrmApiSessionContext(KeycloakSession session) {
+        apiConfig = CrmApiConfig.getConfigEntry(session);
+        // The transport and caches are owned by the CRM client provider factory and shared across sessions
+        var clientProvider = session.getProvider(CrmClientProvider.class);
+        transport = clientProvider.getTransport();
+        guard = clientProvider.getGuard();
+        timeouts = clientProvider.getRequestTimeouts();
+        deadline = CrmDeadline.of(session, timeouts.getFlowDeadlineMillis());
+        retryPolicy = clientProvider.getRetryPolicy();
+        contentEncoding = clientProvider.getContentEncoding();
+        coalescer = clientProvider.getRequestCoalescer();
+        executor = clientProvider.getAsyncExecutor();
+        existsCustomerCache = clientProvider.getExistsCustomerCache();
+        metrics = clientProvider.getMetrics();
+        tracing = CrmApiTracing.of(session);
+        realm = CrmApiMetrics.realmTag(session);
+        customerCache = apiConfig != null && clientProvider.getCustomerCache().isEnabled()
+            ? clientProvider.getCustomerCache()
+            : null;
+        customerInfinispanCache = customerCache != null ? customerCache.resolve(session) : null;
+    }
+
+    /**
+     * Deadline of the session's flow, or {@code null} if flow deadlines are disabled.
+     */
+    CrmDeadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Apply the operation's timeouts to the given call, capped to the remaining budget of the {@link CrmDeadline}.
+     *
+     * @throws CrmApiDeadlineExceededException if the deadline has passed already
+     */
+    void configure(CrmApiCall<?> call) throws CrmApiDeadlineExceededException {
+        call.configure(timeouts.forCall(call.operation(), deadline));
+    }
+
+    /**
+     * Prepare the given call's content encoding, and execute it according to the {@link CrmRetryPolicy} in a span that
+     * is a child of the given parent context.
+     */
+    <T> T execute(CrmApiCall<T> call, Context parent) throws IOException {
+        contentEncoding.prepare(call);
+        return tracing.trace(call, parent, () -> retryPolicy.execute(call, guard, deadline, executor, this::attempt));
+    }
+
+    /**
+     * Execute the given attempt of a call through the {@link CrmApiGuard} within the operation's timeouts and the
+     * remaining budget of the {@link CrmDeadline}. Attempts are aborted once the deadline passes, and fail with a
+     * {@link CrmApiDeadlineExceededException} then.
+     */
+    private <T> T attempt(CrmApiCall<T> call) throws IOException {
+        configure(call);
+        var abortOnDeadline = deadline != null ? call.abortOn(deadline) : null;
+        try {
+            return metrics.execute(guard, call, transport, realm, deadline);
+        } catch (IOException ex) {
+            if (call.isAbortedOn(deadline) && !(ex instanceof CrmApiDeadlineExceededException))
+                throw new CrmApiDeadlineExceededException(call.operation(), ex);
+            throw ex;
+        } finally {
+            if (abortOnDeadline != null)
+                abortOnDeadline.cancel(false);
+        }
+    }
+
+    /**
+     * Cause of the given failure of a facade call for {@link #onEmptyResult(CrmApiOperation, String)}, which tells an
+     * exceeded {@link CrmDeadline} apart from I/O errors.
+     */
+    String emptyResultCause(Throwable ex) {
+        var deadlineExceeded = ex instanceof CrmApiDeadlineExceededException
+            || (ex instanceof TimeoutException && deadline != null && deadline.isExceeded());
+        return deadlineExceeded ? "deadline_exceeded" : "io_error";
+    }
+
+    /**
+     * Count a facade call of the given operation which returned no result for the given cause.
+     */
+    void onEmptyResult(CrmApiOperation operation, String cause) {
+        metrics.onEmptyResult(operation, realm, cause);
+    }
+
+    /**
+     * Customer details from the {@link CrmCustomerCache}, if enabled.
+     */
+    Optional<GetCustomerResponse> getCachedCustomer(String customerId) {
+        if (customerCache == null)
+            return Optional.empty();
+
+        return customerCache.get(customerInfinispanCache, apiConfig.getUrl(), customerId);
+    }
+
+    void cacheCustomer(String customerId, GetCustomerResponse customer) {
+        if (customerCache != null)
+            customerCache.put(customerInfinispanCache, apiConfig.getUrl(), customerId, customer);
+    }
+
+    /**
+     * Result of an existence check from the {@link ExistsCustomerCache}, or {@code null} if not cached.
+     */
+    Boolean getCachedExists(String email) {
+        return existsCustomerCache.get(apiConfig.getUrl(), email);
+    }
+
+    void cacheExists(String email, boolean exists) {
+        existsCustomerCache.put(apiConfig.getUrl(), email, exists);
+    }
+
+    /**
+     * Invalidate the cached existence check of a created customer.
+     */
+    void onCustomerCreated(String email) {
+        existsCustomerCache.invalidate(apiConfig.getUrl(), email);
+    }
+
+    /**
+     * Key under which concurrent calls concerning the given customer are coalesced.
+     */
+    String coalescingKey(String customer) {
+        return CrmRequestCoalescer.key(apiConfig.getUrl(), customer);
+    }
+}
@@ -0,0 +1,93 @@
+package de.codecentric.iam.crm;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapSetter;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.tracing.TracingProvider;
+
+import java.io.IOException;
+
+/**
+ * OpenTelemetry client spans of CRM API calls, whose W3C trace context is propagated to the CRM API. The tracer stems
+ * from Keycloak's {@link TracingProvider}, so that Keycloak's tracing options apply, e.g., {@code tracing-enabled} and
+ * the sampler options. Spans of unsampled traces aren't recorded, but their valid trace context is still propagated
+ * with the sampled flag unset, so that the CRM API doesn't sample the call on its own.
+ */
+class CrmApiTracing {
+    private static final AttributeKey<String> HTTP_REQUEST_METHOD = AttributeKey.stringKey("http.request.method");
+    private static final AttributeKey<Long> HTTP_RESPONSE_STATUS_CODE =
+        AttributeKey.longKey("http.response.status_code");
+    private static final AttributeKey<String> SERVER_ADDRESS = AttributeKey.stringKey("server.address");
+    private static final TextMapSetter<HttpRequestBase> HEADER_SETTER = (request, name, value) -> {
+        if (request != null)
+            request.setHeader(name, value);
+    };
+
+    private final Tracer tracer;
+
+    private CrmApiTracing(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Create the tracing for CRM API calls on behalf of the given session. Tracers are thread-safe, so that calls may
+     * be traced on other threads than the session's.
+     */
+    static CrmApiTracing of(KeycloakSession session) {
+        return new CrmApiTracing(session.getProvider(TracingProvider.class).getTracer(CrmApiTracing.class.getName()));
+    }
+
+    /**
+     * Perform the given execution of the given call within a client span, which is a child of the given parent
+     * context, e.g., the span of the authenticator that issues the call on another thread.
+     */
+    <T> T trace(CrmApiCall<T> call, Context parent, Execution<T> execution) throws IOException {
+        var span = tracer.spanBuilder("CRM API " + call.operation().getId())
+            .setParent(parent)
+            .setSpanKind(SpanKind.CLIENT)
+            .startSpan();
+        if (!span.isRecording()) {
+            // Unsampled trace contexts are propagated as well, so that the CRM API follows the sampling decision
+            try (var ignored = span.makeCurrent()) {
+                inject(call, span);
+                return execution.execute();
+            } finally {
+                span.end();
+            }
+        }
+
+        try (var ignored = span.makeCurrent()) {
+            // URLs may contain customer data, so only the server is recorded
+            span.setAttribute(HTTP_REQUEST_METHOD, call.request().getMethod());
+            span.setAttribute(SERVER_ADDRESS, call.request().getURI().getHost());
+            inject(call, span);
+
+            var result = execution.execute();
+            span.setAttribute(HTTP_RESPONSE_STATUS_CODE, (long) call.httpStatus().get());
+            return result;
+        } catch (IOException | RuntimeException ex) {
+            span.recordException(ex);
+            span.setStatus(StatusCode.ERROR);
+            throw ex;
+        } finally {
+            span.end();
+        }
+    }
+
+    private static void inject(CrmApiCall<?> call, Span span) {
+        if (span.getSpanContext().isValid())
+            W3CTraceContextPropagator.getInstance().inject(Context.current(), call.request(), HEADER_SETTER);
+    }
+
+    @FunctionalInterface
+    interface Execution<T> {
+        T execute() throws IOException;
+    }
+}
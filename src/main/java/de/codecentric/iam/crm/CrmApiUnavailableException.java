@@ -0,0 +1,18 @@
+package de.codecentric.iam.crm;
+
+/**
+ * Exception signalling that a call of a CRM API operation was rejected without contacting the CRM API, e.g., because
+ * its circuit breaker is open or too many calls are in flight. Callers are expected to fail fast with a clean error.
+ */
+public class CrmApiUnavailableException extends RuntimeException {
+    private final CrmApiOperation operation;
+
+    public CrmApiUnavailableException(CrmApiOperation operation, String reason) {
+        super(String.format("CRM API %s operation unavailable: %s", operation.getId(), reason), null, false, false);
+        this.operation = operation;
+    }
+
+    public CrmApiOperation getOperation() {
+        return operation;
+    }
+}
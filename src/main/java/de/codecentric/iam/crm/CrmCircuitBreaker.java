@@ -0,0 +1,137 @@
+package de.codecentric.iam.crm;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count-based circuit breaker for a CRM API operation. The breaker records the outcomes of the most recent calls in a
+ * sliding window and opens when the rate of failed calls or of slow calls reaches its threshold. After the open
+ * duration elapsed, the breaker becomes half-open and permits a limited number of probing calls, whose outcomes decide
+ * whether it closes again or reopens.
+ */
+class CrmCircuitBreaker {
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static final Logger logger = Logger.getLogger(CrmCircuitBreaker.class);
+
+    private final CrmApiOperation operation;
+    private final CrmResilienceSettings settings;
+    private final long slowCallDurationNanos;
+
+    // Ring buffer of call outcomes (bit 0: failed, bit 1: slow)
+    private final byte[] outcomes;
+    private int outcomeIndex;
+    private int recordedCalls;
+    private int failedCalls;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenCalls;
+
+    CrmCircuitBreaker(CrmApiOperation operation, CrmResilienceSettings settings) {
+        this.operation = operation;
+        this.settings = settings;
+        slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(settings.slowCallDurationMillis());
+        outcomes = new byte[settings.slidingWindowSize()];
+    }
+
+    /**
+     * Try to acquire a permission to call the CRM API operation. Permissions must be followed by an invocation of
+     * {@link #onResult(boolean, long)} or {@link #releasePermission()}.
+     */
+    synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < settings.openDurationMillis())
+                return false;
+            transitionTo(State.HALF_OPEN);
+        }
+
+        if (state == State.HALF_OPEN) {
+            if (halfOpenPermits >= settings.halfOpenCalls())
+                return false;
+            halfOpenPermits++;
+        }
+        return true;
+    }
+
+    /**
+     * Release a permission that wasn't used for a call.
+     */
+    synchronized void releasePermission() {
+        if (state == State.HALF_OPEN && halfOpenPermits > 0)
+            halfOpenPermits--;
+    }
+
+    synchronized void onResult(boolean failed, long durationNanos) {
+        var slow = durationNanos >= slowCallDurationNanos;
+        if (state == State.HALF_OPEN) {
+            if (failed || slow) {
+                transitionTo(State.OPEN);
+                return;
+            }
+
+            halfOpenCalls++;
+            if (halfOpenCalls >= settings.halfOpenCalls())
+                transitionTo(State.CLOSED);
+            return;
+        }
+
+        if (state == State.OPEN)
+            return;
+
+        record(failed, slow);
+        if (recordedCalls < settings.minimumCalls())
+            return;
+
+        var failureRate = failedCalls * 100 / recordedCalls;
+        var slowCallRate = slowCalls * 100 / recordedCalls;
+        if (failureRate >= settings.failureRateThreshold() || slowCallRate >= settings.slowCallRateThreshold()) {
+            logger.warnf("Opening circuit breaker of CRM API %s operation (failure rate %d%%, slow call rate %d%%)",
+                operation.getId(), failureRate, slowCallRate);
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private void record(boolean failed, boolean slow) {
+        if (recordedCalls == outcomes.length) {
+            var evicted = outcomes[outcomeIndex];
+            failedCalls -= evicted & 1;
+            slowCalls -= (evicted >> 1) & 1;
+        } else
+            recordedCalls++;
+
+        outcomes[outcomeIndex] = (byte) ((failed ? 1 : 0) | (slow ? 2 : 0));
+        outcomeIndex = (outcomeIndex + 1) % outcomes.length;
+        if (failed)
+            failedCalls++;
+        if (slow)
+            slowCalls++;
+    }
+
+    private void transitionTo(State newState) {
+        if (newState != state)
+            logger.debugf("Circuit breaker of CRM API %s operation transitions from %s to %s", operation.getId(), state,
+                newState);
+
+        state = newState;
+        outcomeIndex = 0;
+        recordedCalls = 0;
+        failedCalls = 0;
+        slowCalls = 0;
+        halfOpenPermits = 0;
+        halfOpenCalls = 0;
+        if (newState == State.OPEN)
+            openedAt = System.currentTimeMillis();
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+}
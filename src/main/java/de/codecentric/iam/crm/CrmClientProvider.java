@@ -0,0 +1,74 @@
+package de.codecentric.iam.crm;
+
+import org.keycloak.provider.Provider;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Provider of the client-side infrastructure for CRM API interactions. Instances are lightweight and bound to a
+ * Keycloak session, while the infrastructure they hand out is owned by the corresponding
+ * {@link CrmClientProviderFactory} and shared across sessions.
+ */
+public interface CrmClientProvider extends Provider {
+    /**
+     * Registry of the per-realm configurations for interaction with the CRM API.
+     */
+    CrmApiConfigRegistry getConfigRegistry();
+
+    /**
+     * Transport of CRM API calls, i.e., the HTTP client that exchanges requests and responses with the CRM API. The
+     * transport is shared, so callers mustn't close it.
+     */
+    CrmTransport getTransport();
+
+    /**
+     * Executor for asynchronous CRM API calls, which runs each call on its own virtual thread. The executor is shared,
+     * so callers mustn't shut it down.
+     */
+    ExecutorService getAsyncExecutor();
+
+    /**
+     * Guard with circuit breakers and a bulkhead through which all CRM API calls are executed.
+     */
+    CrmApiGuard getGuard();
+
+    /**
+     * Timeouts of CRM API requests per operation, and the budget of {@link CrmDeadline flow deadlines}.
+     */
+    CrmRequestTimeouts getRequestTimeouts();
+
+    /**
+     * Retries and hedged requests for calls of idempotent CRM API operations.
+     */
+    CrmRetryPolicy getRetryPolicy();
+
+    /**
+     * Negotiation of compressed CRM API requests and responses.
+     */
+    CrmContentEncoding getContentEncoding();
+
+    /**
+     * Coalescing of concurrent identical CRM API calls.
+     */
+    CrmRequestCoalescer getRequestCoalescer();
+
+    /**
+     * Cache for the results of {@link CrmApiFacade.CrmApiFacadeWithSession#existsCustomer(String)}.
+     */
+    ExistsCustomerCache getExistsCustomerCache();
+
+    /**
+     * Cluster-wide cache for the results of {@link CrmApiFacade.CrmApiFacadeWithSession#getCustomer(String, String)}.
+     */
+    CrmCustomerCache getCustomerCache();
+
+    /**
+     * Verifier of CRM login tokens with cached signing keys.
+     */
+    CrmLoginTokenVerifier getLoginTokenVerifier();
+
+    /**
+     * Micrometer metrics of CRM API calls.
+     */
+    CrmApiMetrics getMetrics();
+}
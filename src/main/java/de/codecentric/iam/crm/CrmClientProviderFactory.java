@@ -0,0 +1,10 @@
+package de.codecentric.iam.crm;
+
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * {@link ProviderFactory} for {@link CrmClientProvider}s.
+ */
+public interface CrmClientProviderFactory extends ProviderFactory<CrmClientProvider> {
+    // NOOP
+}
@@ -0,0 +1,35 @@
+package de.codecentric.iam.crm;
+
+import com.google.auto.service.AutoService;
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+/**
+ * Keycloak {@link Spi} for the client-side infrastructure used by {@link CrmApiFacade} to interact with the CRM API.
+ * Providers of this SPI are configured with options of the form {@code spi-crm-client-<provider>-<option>}.
+ */
+@AutoService(Spi.class)
+public class CrmClientSpi implements Spi {
+    public static final String SPI_NAME = "crm-client";
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return SPI_NAME;
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return CrmClientProvider.class;
+    }
+
+    @Override
+    public Class<? extends ProviderFactory> getProviderFactoryClass() {
+        return CrmClientProviderFactory.class;
+    }
+}
@@ -0,0 +1,206 @@
+package de.codecentric.iam.crm;
+
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.ProxyOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.keycloak.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content encodings of CRM API requests and responses, which are negotiated and decoded independently of the
+ * {@link CrmTransport}. Compression is opt-in with the option {@code compression-enabled}: Requests then accept
+ * {@code gzip} and {@code deflate} encoded responses, whose content is decoded while it is streamed to the response
+ * handlers. Request bodies are compressed with {@code gzip} from a size of {@code request-compression-threshold-bytes}
+ * on, if the option is greater than zero, because the CRM API must support compressed request bodies.
+ * <p>
+ * Regardless of compression, the bytes of request and response bodies are counted as transferred, i.e., compressed,
+ * and recorded in the {@link CrmApiMetrics}.
+ */
+public class CrmContentEncoding {
+    static final String IDENTITY = "identity";
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final String ACCEPT_ENCODING = GZIP + ", " + DEFLATE;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final boolean compressionEnabled;
+    private final int requestCompressionThresholdBytes;
+
+    CrmContentEncoding(boolean compressionEnabled, int requestCompressionThresholdBytes) {
+        this.compressionEnabled = compressionEnabled;
+        this.requestCompressionThresholdBytes = requestCompressionThresholdBytes;
+    }
+
+    static CrmContentEncoding fromConfig(Config.Scope config) {
+        return new CrmContentEncoding(
+            config.getBoolean("compression-enabled", false),
+            config.getInt("request-compression-threshold-bytes", 0)
+        );
+    }
+
+    /**
+     * Prepare the given call for execution, i.e., negotiate compressed responses, compress the request body if it
+     * exceeds the threshold, and count the bytes of the request body. Compressing request bodies requires them to be
+     * buffered instead of streamed to the connection.
+     */
+    void prepare(CrmApiCall<?> call) throws IOException {
+        var request = call.request();
+        if (compressionEnabled)
+            request.setHeader(HttpHeaders.ACCEPT_ENCODING, ACCEPT_ENCODING);
+        if (!(request instanceof HttpEntityEnclosingRequest enclosingRequest) || enclosingRequest.getEntity() == null)
+            return;
+
+        var entity = enclosingRequest.getEntity();
+        if (compressionEnabled && requestCompressionThresholdBytes > 0)
+            entity = compress(entity, requestCompressionThresholdBytes);
+        enclosingRequest.setEntity(new CountingRequestEntity(entity, call.transferredBytes()));
+    }
+
+    /**
+     * Buffer the content of the given entity, and compress it if it reaches the given threshold.
+     */
+    private static HttpEntity compress(HttpEntity entity, int thresholdBytes) throws IOException {
+        var content = new ByteArrayOutputStream();
+        entity.writeTo(content);
+        ByteArrayEntity bufferedEntity;
+        if (content.size() < thresholdBytes) {
+            bufferedEntity = new ByteArrayEntity(content.toByteArray());
+        } else {
+            var compressedContent = new ByteArrayOutputStream(content.size() / 2);
+            try (var gzip = new GZIPOutputStream(compressedContent, BUFFER_SIZE)) {
+                content.writeTo(gzip);
+            }
+            bufferedEntity = new ByteArrayEntity(compressedContent.toByteArray());
+            bufferedEntity.setContentEncoding(GZIP);
+        }
+        bufferedEntity.setContentType(entity.getContentType());
+        return bufferedEntity;
+    }
+
+    /**
+     * Replace the entity of the given response with one whose content is decoded according to the response's content
+     * encoding, and whose transferred bytes are counted.
+     */
+    static DecodingResponseEntity decode(HttpResponse response, CrmApiCall.TransferredBytes transferredBytes) {
+        var entity = response.getEntity();
+        if (entity == null)
+            return null;
+
+        var decodingEntity = new DecodingResponseEntity(entity, transferredBytes);
+        response.setEntity(decodingEntity);
+        response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+        return decodingEntity;
+    }
+
+    private static String encoding(HttpEntity entity) {
+        var contentEncoding = entity.getContentEncoding();
+        return contentEncoding != null ? contentEncoding.getValue().trim().toLowerCase(Locale.ROOT) : IDENTITY;
+    }
+
+    /**
+     * Request entity which counts the bytes written to the connection.
+     */
+    private static class CountingRequestEntity extends HttpEntityWrapper {
+        private final CrmApiCall.TransferredBytes transferredBytes;
+
+        CountingRequestEntity(HttpEntity entity, CrmApiCall.TransferredBytes transferredBytes) {
+            super(entity);
+            this.transferredBytes = transferredBytes;
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            transferredBytes.sentEncoding = encoding(wrappedEntity);
+            wrappedEntity.writeTo(new ProxyOutputStream(outStream) {
+                @Override
+                protected void afterWrite(int n) {
+                    transferredBytes.sent.addAndGet(n);
+                }
+            });
+        }
+    }
+
+    /**
+     * Response entity whose content is decoded while it is read, and whose transferred bytes are counted.
+     */
+    static class DecodingResponseEntity extends HttpEntityWrapper {
+        private final CrmApiCall.TransferredBytes transferredBytes;
+        private final String encoding;
+        private InputStream transferredContent;
+        private InputStream content;
+
+        private DecodingResponseEntity(HttpEntity entity, CrmApiCall.TransferredBytes transferredBytes) {
+            super(entity);
+            this.transferredBytes = transferredBytes;
+            encoding = encoding(entity);
+            transferredBytes.receivedEncoding = encoding;
+        }
+
+        @Override
+        public synchronized InputStream getContent() throws IOException {
+            if (content == null)
+                content = switch (encoding) {
+                    case GZIP, "x-gzip" -> new GZIPInputStream(getTransferredContent(), BUFFER_SIZE);
+                    case DEFLATE -> new DeflateInputStream(getTransferredContent());
+                    default -> getTransferredContent();
+                };
+            return content;
+        }
+
+        private synchronized InputStream getTransferredContent() throws IOException {
+            if (transferredContent == null)
+                transferredContent = countingStream(wrappedEntity.getContent(), transferredBytes.received);
+            return transferredContent;
+        }
+
+        @Override
+        public long getContentLength() {
+            return IDENTITY.equals(encoding) ? wrappedEntity.getContentLength() : -1;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            getContent().transferTo(outStream);
+        }
+
+        /**
+         * Read the rest of the transferred content without decoding it, so that all transferred bytes are counted, even
+         * if the response handler ignored the content. The decoder isn't created here, since, e.g., the gzip decoder
+         * reads its header eagerly, which fails on empty content, e.g., of 204 responses.
+         */
+        void drain() throws IOException {
+            getTransferredContent().transferTo(OutputStream.nullOutputStream());
+        }
+
+        private static InputStream countingStream(InputStream in, AtomicLong bytes) {
+            return new ProxyInputStream(in) {
+                @Override
+                protected void afterRead(int n) {
+                    if (n > 0)
+                        bytes.addAndGet(n);
+                }
+            };
+        }
+    }
+}
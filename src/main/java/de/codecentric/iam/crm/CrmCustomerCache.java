@@ -0,0 +1,154 @@
+package de.codecentric.iam.crm;
+
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.GetCustomerResponse;
+import jakarta.ws.rs.core.Response;
+import org.infinispan.Cache;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Cache for the details of CRM customers, keyed by the CRM customer ID (i.e., the subject of CRM login tokens)
+ * qualified with the URL of the CRM API. If the Infinispan configuration of Keycloak defines a cache named
+ * {@value #CACHE_NAME} (see README), customer details are cached there, e.g., replicated in a Keycloak cluster, so that
+ * a login on any node reuses customer details that another node fetched recently. The cache's lifespan and size are
+ * configured in Infinispan then. The cache is only looked up, but never defined, so that operators stay in charge of
+ * it, and it is the same on all nodes.
+ * <p>
+ * Otherwise, customer details are cached in a bounded in-memory cache per node, whose entries expire after the option
+ * {@code customer-cache-lifespan-millis} (zero disables the cache), and whose least recently used entries are evicted
+ * beyond the option {@code customer-cache-max-count}. Customer details are stored as JSON strings, which Infinispan
+ * marshalls without further registrations.
+ */
+public class CrmCustomerCache {
+    public static final String CACHE_NAME = "crmCustomers";
+
+    private static final Logger logger = Logger.getLogger(CrmCustomerCache.class);
+
+    private final long lifespanMillis;
+    private final long maxCount;
+    private final Map<String, LocalEntry> localEntries;
+    private final AtomicBoolean localCacheLogged = new AtomicBoolean();
+
+    CrmCustomerCache(long lifespanMillis, long maxCount) {
+        this.lifespanMillis = lifespanMillis;
+        this.maxCount = maxCount;
+        localEntries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LocalEntry> eldest) {
+                return size() > CrmCustomerCache.this.maxCount;
+            }
+        };
+    }
+
+    static CrmCustomerCache fromConfig(Config.Scope config) {
+        return new CrmCustomerCache(
+            config.getLong("customer-cache-lifespan-millis", 300_000L),
+            config.getLong("customer-cache-max-count", 100_000L)
+        );
+    }
+
+    boolean isEnabled() {
+        return lifespanMillis > 0;
+    }
+
+    long getLifespanMillis() {
+        return lifespanMillis;
+    }
+
+    /**
+     * Look up the Infinispan cache from the given session, or return {@code null} if Keycloak's Infinispan doesn't
+     * define it, so that the in-memory cache applies. The returned cache may be used on any thread.
+     */
+    Cache<String, String> resolve(KeycloakSession session) {
+        var infinispan = session.getProvider(InfinispanConnectionProvider.class);
+        var cacheManager = infinispan != null
+            ? infinispan.getCache(InfinispanConnectionProvider.USER_CACHE_NAME).getCacheManager()
+            : null;
+        if (cacheManager == null || cacheManager.getCacheConfiguration(CACHE_NAME) == null) {
+            if (localCacheLogged.compareAndSet(false, true))
+                logger.infof("Keycloak's Infinispan doesn't define the cache %s, so that CRM customers are cached "
+                    + "in memory per node", CACHE_NAME);
+            return null;
+        }
+        return cacheManager.getCache(CACHE_NAME);
+    }
+
+    /**
+     * Get the customer details from the given Infinispan cache, or from the in-memory cache if it is {@code null}.
+     */
+    Optional<GetCustomerResponse> get(Cache<String, String> cache, String apiUrl, String customerId) {
+        var key = key(apiUrl, customerId);
+        var customerJson = cache != null ? cache.get(key) : getLocal(key);
+        if (customerJson == null)
+            return Optional.empty();
+
+        try {
+            return Optional.of(CrmJsonCodec.readGetCustomerResponse(Response.Status.OK.getStatusCode(),
+                new ByteArrayInputStream(customerJson.getBytes(UTF_8))));
+        } catch (IOException ex) {
+            logger.warnf(ex, "Invalid cache entry for CRM customer %s", customerId);
+            if (cache != null)
+                cache.remove(key);
+            else
+                synchronized (localEntries) {
+                    localEntries.remove(key);
+                }
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Cache the given customer details in the given Infinispan cache, or in the in-memory cache if it is
+     * {@code null}, if they stem from a successful GET Customers request.
+     */
+    void put(Cache<String, String> cache, String apiUrl, String customerId, GetCustomerResponse customer) {
+        if (Response.Status.fromStatusCode(customer.httpStatus()) != Response.Status.OK)
+            return;
+
+        try {
+            var customerJson = new ByteArrayOutputStream();
+            CrmJsonCodec.writeCustomer(customerJson, customer);
+            if (cache != null)
+                cache.put(key(apiUrl, customerId), customerJson.toString(UTF_8));
+            else
+                synchronized (localEntries) {
+                    localEntries.put(key(apiUrl, customerId), new LocalEntry(customerJson.toString(UTF_8),
+                        System.currentTimeMillis() + lifespanMillis));
+                }
+        } catch (IOException ex) {
+            logger.warnf(ex, "Exception during caching of CRM customer %s", customerId);
+        }
+    }
+
+    private String getLocal(String key) {
+        synchronized (localEntries) {
+            var entry = localEntries.get(key);
+            if (entry != null && entry.expiresAt() > System.currentTimeMillis())
+                return entry.customerJson();
+
+            if (entry != null)
+                localEntries.remove(key);
+            return null;
+        }
+    }
+
+    private static String key(String apiUrl, String customerId) {
+        return apiUrl + " " + customerId;
+    }
+
+    private record LocalEntry(String customerJson, long expiresAt) {
+        // NOOP
+    }
+}
@@ -0,0 +1,44 @@
+package de.codecentric.iam.crm;
+
+import org.keycloak.models.KeycloakSession;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline for the CRM API calls of one authentication or registration step. The deadline is bound to the Keycloak
+ * session of the step and starts with its first CRM API facade, so that later calls in the same step only get the
+ * remaining budget and are skipped once it is used up.
+ */
+public class CrmDeadline {
+    private static final String SESSION_ATTRIBUTE = CrmDeadline.class.getName();
+
+    private final long deadlineNanos;
+
+    private CrmDeadline(long budgetMillis) {
+        deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    }
+
+    /**
+     * Get the deadline of the given session, or start it with the given budget if the session doesn't have one yet.
+     * Returns {@code null} if the budget is less than or equal to zero, i.e., deadlines are disabled.
+     */
+    static CrmDeadline of(KeycloakSession session, long budgetMillis) {
+        if (budgetMillis <= 0)
+            return null;
+
+        var deadline = session.getAttribute(SESSION_ATTRIBUTE, CrmDeadline.class);
+        if (deadline == null) {
+            deadline = new CrmDeadline(budgetMillis);
+            session.setAttribute(SESSION_ATTRIBUTE, deadline);
+        }
+        return deadline;
+    }
+
+    public long remainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+    }
+
+    public boolean isExceeded() {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+}
@@ -0,0 +1,30 @@
+package de.codecentric.iam.crm;
+
+import org.keycloak.Config;
+
+/**
+ * Settings of the connection pool behind the HTTP client for CRM API interactions.
+ */
+record CrmHttpPoolSettings(
+    int connectionPoolSize,
+    int maxPooledPerRoute,
+    long connectionTtlMillis,
+    long maxConnectionIdleTimeMillis,
+    long keepAliveMillis,
+    long dnsCacheTtlMillis,
+    int tlsSessionCacheSize,
+    int tlsSessionTimeoutSeconds
+) {
+    static CrmHttpPoolSettings fromConfig(Config.Scope config) {
+        return new CrmHttpPoolSettings(
+            config.getInt("connection-pool-size", 64),
+            config.getInt("max-pooled-per-route", 32),
+            config.getLong("connection-ttl-millis", 300_000L),
+            config.getLong("max-connection-idle-time-millis", 30_000L),
+            config.getLong("keep-alive-millis", 30_000L),
+            config.getLong("dns-cache-ttl-millis", 60_000L),
+            config.getInt("tls-session-cache-size", 256),
+            config.getInt("tls-session-timeout-seconds", 3600)
+        );
+    }
+}
@@ -0,0 +1,187 @@
+package de.codecentric.iam.crm;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.CustomerPageResponse;
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.ExportedCustomer;
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.GetCustomerResponse;
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.LoginResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Reflection-free JSON codec for the requests and responses of the CRM API. Requests are written with a streaming
+ * generator directly to a given output stream, and responses are decoded in a single token-streaming pass. Hence, no
+ * intermediate strings or JSON trees are created. The underlying {@link ObjectReader} and {@link ObjectWriter} are
+ * immutable and shared across threads.
+ */
+final class CrmJsonCodec {
+    // The codec never closes the streams it is given, because they are owned by the HTTP client
+    private static final ObjectMapper MAPPER = new ObjectMapper(
+            JsonFactory.builder()
+                .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+                .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+                .build()
+        );
+    private static final ObjectReader READER = MAPPER.reader();
+    private static final ObjectWriter WRITER = MAPPER.writer();
+
+    private CrmJsonCodec() {
+        // NOOP
+    }
+
+    /**
+     * Writer of a JSON request body to an output stream.
+     */
+    @FunctionalInterface
+    interface JsonBodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Write the body of a POST Login request.
+     */
+    static void writeLoginRequest(OutputStream out, String email, String password) throws IOException {
+        try (var generator = WRITER.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeStringField("email", email);
+            generator.writeStringField("password", password);
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Write the body of a POST Customers request.
+     */
+    static void writeCreateCustomerRequest(OutputStream out, String email, String password, String firstname,
+        String lastname) throws IOException {
+        try (var generator = WRITER.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeStringField("email", email);
+            generator.writeStringField("password", password);
+            generator.writeStringField("firstname", firstname);
+            generator.writeStringField("lastname", lastname);
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Write the details of a customer in the format of a GET Customers response body, e.g., for caching.
+     */
+    static void writeCustomer(OutputStream out, GetCustomerResponse customer) throws IOException {
+        try (var generator = WRITER.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeStringField("firstname", customer.firstname());
+            generator.writeStringField("lastname", customer.lastname());
+            generator.writeStringField("address", customer.address());
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Read the body of a POST Login response. Missing fields result in empty strings.
+     */
+    static LoginResponse readLoginResponse(int httpStatus, InputStream in) throws IOException {
+        var loginToken = "";
+        try (var parser = READER.createParser(in)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT)
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var field = parser.currentName();
+                    parser.nextToken();
+                    if ("login_token".equals(field))
+                        loginToken = readText(parser);
+                    else
+                        parser.skipChildren();
+                }
+        }
+        return new LoginResponse(httpStatus, loginToken);
+    }
+
+    /**
+     * Read the body of a GET Customers response. Missing fields result in empty strings.
+     */
+    static GetCustomerResponse readGetCustomerResponse(int httpStatus, InputStream in) throws IOException {
+        var firstname = "";
+        var lastname = "";
+        var address = "";
+        try (var parser = READER.createParser(in)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT)
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var field = parser.currentName();
+                    parser.nextToken();
+                    switch (field) {
+                        case "firstname" -> firstname = readText(parser);
+                        case "lastname" -> lastname = readText(parser);
+                        case "address" -> address = readText(parser);
+                        default -> parser.skipChildren();
+                    }
+                }
+        }
+        return new GetCustomerResponse(httpStatus, firstname, lastname, address);
+    }
+
+    /**
+     * Read the body of a GET Export/Customers response. The customers of the page are decoded one by one while
+     * streaming, and missing fields result in empty strings.
+     */
+    static CustomerPageResponse readCustomerPage(int httpStatus, InputStream in) throws IOException {
+        var customers = new ArrayList<ExportedCustomer>();
+        var nextCursor = "";
+        try (var parser = READER.createParser(in)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT)
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var field = parser.currentName();
+                    parser.nextToken();
+                    if ("customers".equals(field) && parser.currentToken() == JsonToken.START_ARRAY)
+                        while (parser.nextToken() == JsonToken.START_OBJECT)
+                            customers.add(readExportedCustomer(parser));
+                    else if ("next_cursor".equals(field))
+                        nextCursor = readText(parser);
+                    else
+                        parser.skipChildren();
+                }
+        }
+        return new CustomerPageResponse(httpStatus, customers, nextCursor);
+    }
+
+    private static ExportedCustomer readExportedCustomer(JsonParser parser) throws IOException {
+        var id = "";
+        var email = "";
+        var firstname = "";
+        var lastname = "";
+        var address = "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "id" -> id = readText(parser);
+                case "email" -> email = readText(parser);
+                case "firstname" -> firstname = readText(parser);
+                case "lastname" -> lastname = readText(parser);
+                case "address" -> address = readText(parser);
+                default -> parser.skipChildren();
+            }
+        }
+        return new ExportedCustomer(id, email, firstname, lastname, address);
+    }
+
+    /**
+     * Read the current value as text. Like {@link com.fasterxml.jackson.databind.JsonNode#asText()}, non-scalar values
+     * result in empty strings.
+     */
+    private static String readText(JsonParser parser) throws IOException {
+        var text = parser.currentToken().isScalarValue() ? parser.getValueAsString() : null;
+        parser.skipChildren();
+        return Objects.requireNonNullElse(text, "");
+    }
+}
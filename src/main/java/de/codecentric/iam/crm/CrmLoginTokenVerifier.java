@@ -0,0 +1,228 @@
+package de.codecentric.iam.crm;
+
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.GetCustomerResponse;
+import jakarta.ws.rs.core.Response;
+import org.apache.commons.lang3.StringUtils;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.TokenVerifier;
+import org.keycloak.common.VerificationException;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.AsymmetricSignatureVerifierContext;
+import org.keycloak.crypto.ECDSASignatureVerifierContext;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.crypto.MacSignatureVerifierContext;
+import org.keycloak.crypto.PublicKeysWrapper;
+import org.keycloak.crypto.SignatureVerifierContext;
+import org.keycloak.exceptions.TokenNotActiveException;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.jose.jws.JWSHeader;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.util.JWKSUtils;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Local verification of CRM login tokens, i.e., of their signature, expiry, and, if configured, issuer and audience.
+ * The key material stems from the realm's {@link CrmApiConfig.CrmApiConfigEntry configuration}: Either the secret of
+ * HMAC-signed tokens, or the URL of a JWKS with the public keys of asymmetrically signed tokens. Keys from a JWKS are
+ * cached per URL and refreshed periodically, and on tokens with an unknown key ID, but not more often than the minimum
+ * refresh interval permits. The verifier is configured with these options:
+ * <ul>
+ *     <li>{@code login-token-jwks-refresh-interval-millis}: Interval for refreshing cached JWKS keys.</li>
+ *     <li>{@code login-token-jwks-min-refresh-interval-millis}: Minimum interval between refreshes of cached JWKS
+ *     keys.</li>
+ *     <li>{@code login-token-clock-skew-seconds}: Tolerated clock skew for checking the expiry of tokens.</li>
+ *     <li>{@code login-token-allow-unverified-signatures}: Whether tokens are accepted without verifying their
+ *     signatures if the configuration holds no key material. Tokens are rejected then by default.</li>
+ * </ul>
+ */
+public class CrmLoginTokenVerifier {
+    private static final Logger logger = Logger.getLogger(CrmLoginTokenVerifier.class);
+
+    private static final Set<String> HMAC_ALGORITHMS = Set.of(Algorithm.HS256, Algorithm.HS384, Algorithm.HS512);
+
+    private final long jwksRefreshIntervalMillis;
+    private final long jwksMinRefreshIntervalMillis;
+    private final int clockSkewSeconds;
+    private final boolean allowUnverifiedSignatures;
+    private final Map<String, SigningKeys> signingKeys = new ConcurrentHashMap<>();
+    private final SingleFlight<String, SigningKeys> jwksFetches = new SingleFlight<>();
+    private final AtomicBoolean unverifiedSignatureLogged = new AtomicBoolean();
+
+    CrmLoginTokenVerifier(long jwksRefreshIntervalMillis, long jwksMinRefreshIntervalMillis, int clockSkewSeconds,
+        boolean allowUnverifiedSignatures) {
+        this.jwksRefreshIntervalMillis = jwksRefreshIntervalMillis;
+        this.jwksMinRefreshIntervalMillis = jwksMinRefreshIntervalMillis;
+        this.clockSkewSeconds = clockSkewSeconds;
+        this.allowUnverifiedSignatures = allowUnverifiedSignatures;
+    }
+
+    static CrmLoginTokenVerifier fromConfig(Config.Scope config) {
+        return new CrmLoginTokenVerifier(
+            config.getLong("login-token-jwks-refresh-interval-millis", 3_600_000L),
+            config.getLong("login-token-jwks-min-refresh-interval-millis", 10_000L),
+            config.getInt("login-token-clock-skew-seconds", 10),
+            config.getBoolean("login-token-allow-unverified-signatures", false)
+        );
+    }
+
+    /**
+     * Verify the given CRM login token against the configuration for the realm of the given session, and return the
+     * verified token or an empty {@link Optional} if verification failed. If the configuration holds neither a secret
+     * nor a JWKS URL, the token is rejected, unless unverified signatures are allowed. Then, only its claims are
+     * checked.
+     */
+    public Optional<AccessToken> verify(KeycloakSession session, String loginToken) {
+        return verify(CrmApiConfig.getConfigEntry(session), loginToken, () -> {
+            try {
+                return CrmApiFacade.session(session).getSigningKeys();
+            } catch (CrmApiUnavailableException ex) {
+                return Optional.empty();
+            }
+        });
+    }
+
+    /**
+     * Verify the given CRM login token against the given configuration. The JWKS of the configuration is fetched with
+     * the given function if the cached keys need to be refreshed.
+     */
+    Optional<AccessToken> verify(CrmApiConfig.CrmApiConfigEntry apiConfig, String loginToken,
+        Supplier<Optional<JSONWebKeySet>> jwksFetch) {
+        if (apiConfig == null || StringUtils.isBlank(loginToken))
+            return Optional.empty();
+
+        try {
+            var verifier = TokenVerifier.create(loginToken, AccessToken.class);
+            var verifierContext = verifierContext(apiConfig, verifier.getHeader(), jwksFetch);
+            if (verifierContext.isPresent())
+                verifier.verifierContext(verifierContext.get());
+            else {
+                if (
+                    !allowUnverifiedSignatures ||
+                    StringUtils.isNotBlank(apiConfig.getLoginTokenSecret()) ||
+                    StringUtils.isNotBlank(apiConfig.getLoginTokenJwksUrl())
+                )
+                    throw new VerificationException("No key for verifying the token's signature");
+
+                if (unverifiedSignatureLogged.compareAndSet(false, true))
+                    logger.warn("Signatures of CRM login tokens aren't verified, because the configuration for " +
+                        "interaction with CRM API holds neither a login token secret nor a JWKS URL");
+                verifier = TokenVerifier.createWithoutSignature(verifier.getToken());
+            }
+
+            verifier.withChecks(this::isActive, token -> StringUtils.isNotBlank(token.getSubject()));
+            if (StringUtils.isNotBlank(apiConfig.getLoginTokenIssuer()))
+                verifier.withChecks(new TokenVerifier.RealmUrlCheck(apiConfig.getLoginTokenIssuer()));
+            if (StringUtils.isNotBlank(apiConfig.getLoginTokenAudience()))
+                verifier.audience(apiConfig.getLoginTokenAudience());
+            return Optional.of(verifier.verify().getToken());
+        } catch (VerificationException ex) {
+            logger.warnf("Rejected CRM login token: %s", ex.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Get the customer's details from the claims of the given verified login token, if the token carries all of them.
+     * Then, they needn't be requested from the CRM API. If unverified signatures are allowed, claims aren't trusted,
+     * and the details must always be requested.
+     */
+    public Optional<GetCustomerResponse> customerFromClaims(AccessToken token) {
+        if (allowUnverifiedSignatures)
+            return Optional.empty();
+
+        var address = token.getAddress() != null ? token.getAddress().getFormattedAddress() : null;
+        if (StringUtils.isAnyBlank(token.getGivenName(), token.getFamilyName(), address))
+            return Optional.empty();
+
+        return Optional.of(new GetCustomerResponse(Response.Status.OK.getStatusCode(), token.getGivenName(),
+            token.getFamilyName(), address));
+    }
+
+    private boolean isActive(AccessToken token) throws TokenNotActiveException {
+        if (!token.isActive(clockSkewSeconds))
+            throw new TokenNotActiveException(token, "Token is not active");
+        return true;
+    }
+
+    /**
+     * Get the context for verifying the signature of a token with the given header. HMAC keys are only considered for
+     * HMAC algorithms, so that public keys can't be misused as secrets.
+     */
+    private Optional<SignatureVerifierContext> verifierContext(CrmApiConfig.CrmApiConfigEntry apiConfig,
+        JWSHeader header, Supplier<Optional<JSONWebKeySet>> jwksFetch) throws VerificationException {
+        var algorithm = header.getRawAlgorithm();
+        if (StringUtils.isNotBlank(apiConfig.getLoginTokenSecret())) {
+            if (!HMAC_ALGORITHMS.contains(algorithm))
+                throw new VerificationException("Unexpected token algorithm " + algorithm);
+            return Optional.of(new MacSignatureVerifierContext(apiConfig.getLoginTokenSecretKey(algorithm)));
+        }
+
+        if (StringUtils.isBlank(apiConfig.getLoginTokenJwksUrl()))
+            return Optional.empty();
+
+        var key = getSigningKey(apiConfig.getLoginTokenJwksUrl(), header.getKeyId(), algorithm, jwksFetch);
+        if (key == null)
+            return Optional.empty();
+
+        return switch (key.getType()) {
+            case KeyType.RSA -> Optional.of(new AsymmetricSignatureVerifierContext(key));
+            case KeyType.EC -> Optional.of(new ECDSASignatureVerifierContext(key));
+            default -> throw new VerificationException("Unsupported key type " + key.getType());
+        };
+    }
+
+    /**
+     * Get the key with the given ID and algorithm from the cached keys of the JWKS at the given URL. The keys are
+     * refreshed once the refresh interval elapsed, or if the key is unknown and the minimum refresh interval elapsed.
+     * Concurrent refreshes of the same JWKS are performed only once, and failed refreshes keep the previous keys.
+     * Failed refreshes count as refreshes for the minimum refresh interval, so that a JWKS endpoint which is down
+     * isn't called on every login.
+     */
+    private KeyWrapper getSigningKey(String jwksUrl, String keyId, String algorithm,
+        Supplier<Optional<JSONWebKeySet>> jwksFetch) {
+        var current = signingKeys.get(jwksUrl);
+        if (current != null) {
+            var age = System.currentTimeMillis() - current.fetchedAt();
+            var key = current.getKey(keyId, algorithm);
+            if (age < jwksMinRefreshIntervalMillis || (age < jwksRefreshIntervalMillis && key != null))
+                return key;
+        }
+
+        // The JWKS is fetched outside the map's locks, since the request may take up to the flow's deadline
+        return jwksFetches.execute(jwksUrl, () -> {
+            var latest = signingKeys.get(jwksUrl);
+            if (latest != current)
+                return CompletableFuture.completedFuture(latest);
+
+            var jwks = jwksFetch.get();
+            var refreshed = new SigningKeys(
+                jwks.map(keys -> JWKSUtils.getKeyWrappersForUse(keys, JWK.Use.SIG))
+                    .orElse(current != null ? current.keys() : null),
+                System.currentTimeMillis()
+            );
+            signingKeys.put(jwksUrl, refreshed);
+            return CompletableFuture.completedFuture(refreshed);
+        }).join().getKey(keyId, algorithm);
+    }
+
+    /**
+     * Keys of a JWKS and the time of their last refresh, whether successful or not. The keys are {@code null} if no
+     * refresh succeeded yet.
+     */
+    private record SigningKeys(PublicKeysWrapper keys, long fetchedAt) {
+        KeyWrapper getKey(String keyId, String algorithm) {
+            return keys != null ? keys.getKeyByKidAndAlg(keyId, algorithm) : null;
+        }
+    }
+}
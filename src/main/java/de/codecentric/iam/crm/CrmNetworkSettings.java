@@ -0,0 +1,29 @@
+package de.codecentric.iam.crm;
+
+import org.keycloak.Config;
+import org.keycloak.common.enums.HostnameVerificationPolicy;
+import org.keycloak.connections.httpclient.ProxyMappings;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.truststore.TruststoreProvider;
+
+import java.security.KeyStore;
+
+/**
+ * Network settings of Keycloak's own HTTP clients, which apply to the transports of CRM API calls as well: the
+ * truststore of Keycloak's truststore SPI (e.g., from the option {@code truststore-paths}) together with its hostname
+ * verification policy, and the option {@code spi-connections-http-client-default-proxy-mappings}. Without a
+ * truststore, the JVM's default one is used, and without proxy mappings, connections are direct.
+ */
+record CrmNetworkSettings(KeyStore truststore, boolean verifyHostnames, ProxyMappings proxyMappings) {
+    static final CrmNetworkSettings DEFAULT = new CrmNetworkSettings(null, true, null);
+
+    static CrmNetworkSettings fromKeycloak(KeycloakSession session) {
+        var truststoreProvider = session.getProvider(TruststoreProvider.class);
+        var proxyMappings = Config.scope("connectionsHttpClient", "default").getArray("proxy-mappings");
+        return new CrmNetworkSettings(
+            truststoreProvider != null ? truststoreProvider.getTruststore() : null,
+            truststoreProvider == null || truststoreProvider.getPolicy() != HostnameVerificationPolicy.ANY,
+            proxyMappings != null && proxyMappings.length > 0 ? ProxyMappings.valueOf(proxyMappings) : null
+        );
+    }
+}
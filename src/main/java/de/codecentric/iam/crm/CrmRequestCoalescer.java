@@ -0,0 +1,39 @@
+package de.codecentric.iam.crm;
+
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.GetCustomerResponse;
+
+/**
+ * Coalescing of concurrent identical, idempotent CRM API calls, i.e., of GET Customers/{email} calls for the same email
+ * and of GET Customers calls for the same customer. Keys are qualified with the URL of the CRM API, so that realms with
+ * different CRM APIs don't share calls.
+ */
+public class CrmRequestCoalescer {
+    private final SingleFlight<String, Boolean> existsCustomerCalls = new SingleFlight<>();
+    private final SingleFlight<String, GetCustomerResponse> getCustomerCalls = new SingleFlight<>();
+
+    SingleFlight<String, Boolean> existsCustomerCalls() {
+        return existsCustomerCalls;
+    }
+
+    SingleFlight<String, GetCustomerResponse> getCustomerCalls() {
+        return getCustomerCalls;
+    }
+
+    static String key(String apiUrl, String id) {
+        return apiUrl + " " + id;
+    }
+
+    /**
+     * Number of calls that are currently in flight and may be shared.
+     */
+    public int getInFlightCalls() {
+        return existsCustomerCalls.size() + getCustomerCalls.size();
+    }
+
+    /**
+     * Number of calls that shared the result of an in-flight call instead of contacting the CRM API.
+     */
+    public long getCoalescedCalls() {
+        return existsCustomerCalls.getCoalescedCalls() + getCustomerCalls.getCoalescedCalls();
+    }
+}
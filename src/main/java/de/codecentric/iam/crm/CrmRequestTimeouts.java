@@ -0,0 +1,80 @@
+package de.codecentric.iam.crm;
+
+import org.apache.http.client.config.RequestConfig;
+import org.keycloak.Config;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Timeouts of CRM API requests per {@link CrmApiOperation}, and the budget of {@link CrmDeadline flow deadlines}. The
+ * timeouts of an operation are read from the options {@code <operation>-connect-timeout-millis} and
+ * {@code <operation>-read-timeout-millis} (e.g., {@code get-customer-read-timeout-millis}), which default to the
+ * options {@code connect-timeout-millis} and {@code read-timeout-millis}. The option
+ * {@code connection-request-timeout-millis} limits the time to wait for a pooled connection.
+ */
+public class CrmRequestTimeouts {
+    private final Map<CrmApiOperation, RequestConfig> requestConfigs;
+    private final long flowDeadlineMillis;
+
+    CrmRequestTimeouts(Map<CrmApiOperation, RequestConfig> requestConfigs, long flowDeadlineMillis) {
+        this.requestConfigs = requestConfigs;
+        this.flowDeadlineMillis = flowDeadlineMillis;
+    }
+
+    static CrmRequestTimeouts fromConfig(Config.Scope config) {
+        var connectTimeout = config.getInt("connect-timeout-millis", 2_000);
+        var readTimeout = config.getInt("read-timeout-millis", 5_000);
+        var connectionRequestTimeout = config.getInt("connection-request-timeout-millis", 1_000);
+
+        var requestConfigs = new EnumMap<CrmApiOperation, RequestConfig>(CrmApiOperation.class);
+        for (var operation : CrmApiOperation.values()) {
+            var prefix = operation.name().toLowerCase().replace('_', '-');
+            requestConfigs.put(operation, RequestConfig.custom()
+                .setConnectTimeout(config.getInt(prefix + "-connect-timeout-millis", connectTimeout))
+                .setSocketTimeout(config.getInt(prefix + "-read-timeout-millis", readTimeout))
+                .setConnectionRequestTimeout(connectionRequestTimeout)
+                .build());
+        }
+        return new CrmRequestTimeouts(requestConfigs, config.getLong("flow-deadline-millis", 10_000L));
+    }
+
+    /**
+     * Budget of the CRM API calls within one authentication or registration step. Values less than or equal to zero
+     * disable flow deadlines.
+     */
+    long getFlowDeadlineMillis() {
+        return flowDeadlineMillis;
+    }
+
+    /**
+     * Get the request configuration for a call of the given operation. If a deadline is given, the timeouts are capped
+     * to its remaining budget.
+     *
+     * @throws CrmApiDeadlineExceededException if the deadline is exceeded already
+     */
+    RequestConfig forCall(CrmApiOperation operation, CrmDeadline deadline) throws CrmApiDeadlineExceededException {
+        var requestConfig = requestConfigs.get(operation);
+        if (deadline == null)
+            return requestConfig;
+
+        var remainingMillis = deadline.remainingMillis();
+        if (remainingMillis <= 0)
+            throw new CrmApiDeadlineExceededException(operation);
+
+        return RequestConfig.copy(requestConfig)
+            .setConnectTimeout(cap(requestConfig.getConnectTimeout(), remainingMillis))
+            .setSocketTimeout(cap(requestConfig.getSocketTimeout(), remainingMillis))
+            .setConnectionRequestTimeout(cap(requestConfig.getConnectionRequestTimeout(), remainingMillis))
+            .build();
+    }
+
+    /**
+     * Cap the given timeout to the remaining budget. Timeouts less than or equal to zero are infinite or system
+     * defaults, and thus are replaced by the remaining budget.
+     */
+    private static int cap(int timeoutMillis, long remainingMillis) {
+        var remaining = (int) Math.min(remainingMillis, Integer.MAX_VALUE);
+        return timeoutMillis > 0 ? Math.min(timeoutMillis, remaining) : remaining;
+    }
+}
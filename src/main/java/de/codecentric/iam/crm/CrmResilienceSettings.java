@@ -0,0 +1,33 @@
+package de.codecentric.iam.crm;
+
+import org.keycloak.Config;
+
+/**
+ * Settings of the circuit breakers and the bulkhead that guard CRM API calls.
+ */
+record CrmResilienceSettings(
+    int failureRateThreshold,
+    int slowCallRateThreshold,
+    long slowCallDurationMillis,
+    int slidingWindowSize,
+    int minimumCalls,
+    long openDurationMillis,
+    int halfOpenCalls,
+    int maxConcurrentCalls,
+    long maxWaitMillis
+) {
+    static CrmResilienceSettings fromConfig(Config.Scope config) {
+        var slidingWindowSize = Math.max(1, config.getInt("circuit-breaker-sliding-window-size", 20));
+        return new CrmResilienceSettings(
+            config.getInt("circuit-breaker-failure-rate-threshold", 50),
+            config.getInt("circuit-breaker-slow-call-rate-threshold", 80),
+            config.getLong("circuit-breaker-slow-call-duration-millis", 3_000L),
+            slidingWindowSize,
+            Math.min(slidingWindowSize, Math.max(1, config.getInt("circuit-breaker-minimum-calls", 10))),
+            config.getLong("circuit-breaker-open-duration-millis", 30_000L),
+            Math.max(1, config.getInt("circuit-breaker-half-open-calls", 3)),
+            config.getInt("bulkhead-max-concurrent-calls", 64),
+            config.getLong("bulkhead-max-wait-millis", 50L)
+        );
+    }
+}
@@ -0,0 +1,331 @@
+package de.codecentric.iam.crm;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retries and hedged requests for calls of idempotent {@link CrmApiOperation}s, i.e., the CRM API's GET operations.
+ * Calls that fail with an I/O error or a {@code 502}, {@code 503}, or {@code 504} response are retried after a
+ * backoff with full jitter, i.e., a random delay of up to {@code retry-initial-backoff-millis}, doubled for each retry
+ * and capped at {@code retry-max-backoff-millis}, until {@code retry-max-attempts} attempts are used up. If
+ * {@code hedging-delay-percentile} is set, a hedged request is sent when a call takes longer than that percentile of
+ * recent call durations, but at least {@code hedging-min-delay-millis}, and the first response wins.
+ * <p>
+ * Retries and hedged requests withdraw tokens from a budget, to which every call adds {@code retry-budget-ratio} tokens
+ * up to {@code retry-budget-max-tokens}. Thus, they amount to a fraction of the calls while the CRM API is struggling,
+ * instead of multiplying the load. Moreover, neither retries nor hedged requests are sent while the operation's circuit
+ * breaker isn't closed, or beyond the {@link CrmDeadline}.
+ */
+public class CrmRetryPolicy {
+    private static final Logger logger = Logger.getLogger(CrmRetryPolicy.class);
+
+    private static final long TOKEN = 1_000L;
+    private static final int LATENCY_WINDOW_SIZE = 128;
+    private static final int MIN_LATENCY_SAMPLES = 32;
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long depositPerCall;
+    private final long maxBudget;
+    private final double hedgingDelayPercentile;
+    private final long hedgingMinDelayMillis;
+    private final AtomicLong budget;
+    private final Map<CrmApiOperation, LatencyWindow> latencies = new EnumMap<>(CrmApiOperation.class);
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedgedRequests = new AtomicLong();
+    private final AtomicLong budgetExhaustions = new AtomicLong();
+
+    CrmRetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, double budgetRatio,
+        int budgetMaxTokens, double hedgingDelayPercentile, long hedgingMinDelayMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = Math.max(1, initialBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.initialBackoffMillis, maxBackoffMillis);
+        depositPerCall = Math.round(Math.max(0, budgetRatio) * TOKEN);
+        maxBudget = Math.max(1, budgetMaxTokens) * TOKEN;
+        this.hedgingDelayPercentile = Math.min(Math.max(0, hedgingDelayPercentile), 100);
+        this.hedgingMinDelayMillis = Math.max(1, hedgingMinDelayMillis);
+        budget = new AtomicLong(maxBudget);
+        for (var operation : CrmApiOperation.values())
+            if (operation.isIdempotent())
+                latencies.put(operation, new LatencyWindow());
+    }
+
+    static CrmRetryPolicy fromConfig(Config.Scope config) {
+        return new CrmRetryPolicy(
+            config.getInt("retry-max-attempts", 3),
+            config.getLong("retry-initial-backoff-millis", 50L),
+            config.getLong("retry-max-backoff-millis", 500L),
+            Double.parseDouble(config.get("retry-budget-ratio", "0.1")),
+            config.getInt("retry-budget-max-tokens", 10),
+            Double.parseDouble(config.get("hedging-delay-percentile", "0")),
+            config.getLong("hedging-min-delay-millis", 50L)
+        );
+    }
+
+    /**
+     * Execute the given call with the given attempt, which is repeated with copies of the call for retries and hedged
+     * requests. Hedged requests are executed with the given executor. Calls of operations that aren't idempotent are
+     * attempted once.
+     *
+     * @throws CrmApiUnavailableException if an attempt was rejected by the guard
+     */
+    <T> T execute(CrmApiCall<T> call, CrmApiGuard guard, CrmDeadline deadline, Executor executor, Attempt<T> attempt)
+        throws IOException {
+        if (!call.operation().isIdempotent())
+            return attempt.execute(call);
+
+        deposit();
+        for (var attemptNumber = 1; ; attemptNumber++) {
+            var attemptCall = attemptNumber == 1 ? call : call.copy();
+            try {
+                var result = executeHedged(attemptCall, guard, deadline, executor, attempt);
+                if (attemptCall != call)
+                    call.httpStatus().set(attemptCall.httpStatus().get());
+                return result;
+            } catch (IOException ex) {
+                if (!isRetryable(attemptCall, ex) || attemptNumber >= maxAttempts)
+                    throw ex;
+
+                var backoffMillis = ThreadLocalRandom.current().nextLong(backoffCapMillis(attemptNumber) + 1);
+                if (deadline != null && deadline.remainingMillis() <= backoffMillis)
+                    throw ex;
+                if (!guard.isCircuitBreakerClosed(call.operation()) || !tryWithdraw())
+                    throw ex;
+
+                retries.incrementAndGet();
+                logger.debugf("Retrying CRM API %s request in %d ms after: %s", call.operation().getId(),
+                    backoffMillis, ex.getMessage());
+                sleep(backoffMillis);
+            }
+        }
+    }
+
+    /**
+     * Execute the given call, and send a hedged request with a copy of the call if hedging is enabled and the call
+     * takes longer than the hedging delay. The first successful response wins, and the other request is aborted.
+     */
+    private <T> T executeHedged(CrmApiCall<T> call, CrmApiGuard guard, CrmDeadline deadline, Executor executor,
+        Attempt<T> attempt) throws IOException {
+        var start = System.nanoTime();
+        var delayMillis = hedgingDelayMillis(call.operation());
+        if (delayMillis <= 0 || (deadline != null && deadline.remainingMillis() <= delayMillis)) {
+            var result = attempt.execute(call);
+            recordLatency(call.operation(), System.nanoTime() - start);
+            return result;
+        }
+
+        var hedge = new Hedge<T>();
+        var hedgeTimer = CompletableFuture.runAsync(() -> {
+            if (!guard.isCircuitBreakerClosed(call.operation()) || !tryWithdraw())
+                return;
+            var hedgeCall = hedge.start(call);
+            if (hedgeCall == null) {
+                // The call completed meanwhile, so the withdrawn token isn't needed
+                budget.updateAndGet(tokens -> Math.min(maxBudget, tokens + TOKEN));
+                return;
+            }
+
+            hedgedRequests.incrementAndGet();
+            try {
+                var result = attempt.execute(hedgeCall);
+                if (hedge.result.complete(result)) {
+                    call.httpStatus().set(hedgeCall.httpStatus().get());
+                    call.abort();
+                }
+            } catch (Throwable ex) {
+                hedge.result.completeExceptionally(ex);
+            }
+        }, CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS, executor));
+
+        try {
+            var result = attempt.execute(call);
+            recordLatency(call.operation(), System.nanoTime() - start);
+            // Completing the hedge's result first keeps a late hedged request from aborting the completed call
+            hedge.result.complete(result);
+            hedge.abort();
+            return result;
+        } catch (IOException | RuntimeException ex) {
+            // The call failed or was aborted by a successful hedged request, whose result is awaited then
+            if (!hedge.isStarted()) {
+                hedge.result.completeExceptionally(ex);
+                throw ex;
+            }
+            return awaitHedge(hedge, ex);
+        } finally {
+            hedgeTimer.cancel(false);
+        }
+    }
+
+    private static <T> T awaitHedge(Hedge<T> hedge, Exception callException) throws IOException {
+        try {
+            return hedge.result.get();
+        } catch (InterruptedException ex) {
+            hedge.abort();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while awaiting hedged CRM API request");
+        } catch (ExecutionException ex) {
+            // The call's exception is more telling than that of the hedged request
+            if (callException instanceof IOException ioException)
+                throw ioException;
+            throw (RuntimeException) callException;
+        }
+    }
+
+    /**
+     * Server errors of gateways and overloaded servers as well as I/O errors, e.g., reset connections and timeouts,
+     * are considered transient, unlike other server errors, rejections by the guard, exceeded deadlines, and failures
+     * of aborted calls, e.g., on cancellation.
+     */
+    static boolean isRetryable(CrmApiCall<?> call, IOException ex) {
+        if (ex instanceof CrmApiServerErrorException serverError)
+            return serverError.getHttpStatus() == 502 || serverError.getHttpStatus() == 503
+                || serverError.getHttpStatus() == 504;
+        return !(ex instanceof CrmApiDeadlineExceededException) && !call.request().isAborted()
+            && !Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Upper bound of the jittered backoff after the given attempt, which doubles with each attempt up to the maximum.
+     */
+    long backoffCapMillis(int attemptNumber) {
+        var cap = initialBackoffMillis << Math.min(attemptNumber - 1, 30);
+        return cap > 0 ? Math.min(cap, maxBackoffMillis) : maxBackoffMillis;
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during backoff of CRM API request");
+        }
+    }
+
+    private void deposit() {
+        budget.updateAndGet(tokens -> Math.min(maxBudget, tokens + depositPerCall));
+    }
+
+    private boolean tryWithdraw() {
+        for (var tokens = budget.get(); tokens >= TOKEN; tokens = budget.get())
+            if (budget.compareAndSet(tokens, tokens - TOKEN))
+                return true;
+
+        budgetExhaustions.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Delay after which a hedged request of the given operation is sent, or zero if hedging is disabled or there are
+     * too few recent call durations yet.
+     */
+    private long hedgingDelayMillis(CrmApiOperation operation) {
+        if (hedgingDelayPercentile <= 0)
+            return 0;
+
+        var percentileNanos = latencies.get(operation).percentile(hedgingDelayPercentile);
+        return percentileNanos < 0
+            ? 0
+            : Math.max(hedgingMinDelayMillis, TimeUnit.NANOSECONDS.toMillis(percentileNanos));
+    }
+
+    private void recordLatency(CrmApiOperation operation, long nanos) {
+        if (hedgingDelayPercentile > 0)
+            latencies.get(operation).record(nanos);
+    }
+
+    /**
+     * Number of retries sent so far.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Number of hedged requests sent so far.
+     */
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    /**
+     * Number of retries and hedged requests that weren't sent so far, because the budget was used up.
+     */
+    public long getBudgetExhaustions() {
+        return budgetExhaustions.get();
+    }
+
+    @FunctionalInterface
+    interface Attempt<T> {
+        T execute(CrmApiCall<T> call) throws IOException;
+    }
+
+    /**
+     * Hedged request of a call, which is started unless the call has completed before.
+     */
+    private static class Hedge<T> {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private CrmApiCall<T> call;
+        private boolean stopped;
+
+        synchronized CrmApiCall<T> start(CrmApiCall<T> original) {
+            if (stopped || result.isDone())
+                return null;
+            call = original.copy();
+            return call;
+        }
+
+        synchronized boolean isStarted() {
+            stopped = true;
+            return call != null;
+        }
+
+        synchronized void abort() {
+            stopped = true;
+            if (call != null)
+                call.abort();
+        }
+    }
+
+    /**
+     * Ring buffer of the most recent durations of successful calls of an operation.
+     */
+    private static class LatencyWindow {
+        private final long[] samples = new long[LATENCY_WINDOW_SIZE];
+        private int count;
+        private int next;
+
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        /**
+         * Given percentile of the recorded durations, or {@code -1} if there are too few of them.
+         */
+        long percentile(double percentile) {
+            long[] sorted;
+            synchronized (this) {
+                if (count < MIN_LATENCY_SAMPLES)
+                    return -1;
+                sorted = Arrays.copyOf(samples, count);
+            }
+            Arrays.sort(sorted);
+            var index = Math.max((int) Math.ceil(percentile / 100 * sorted.length) - 1, 0);
+            return sorted[index];
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package de.codecentric.iam.crm;
+
+import org.apache.http.ssl.SSLContexts;
+import org.keycloak.Config;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+
+/**
+ * Transport of CRM API calls, i.e., the HTTP client that exchanges the calls' requests and responses with the CRM API.
+ * The transport is selected with the option {@code transport}:
+ * <ul>
+ *     <li>{@code apache} (default): Pooled Apache HttpClient with keep-alive HTTP/1.1 connections (see
+ *     {@link ApacheCrmTransport}).</li>
+ *     <li>{@code jdk}: The JDK's HttpClient, which multiplexes concurrent calls over few HTTP/2 connections if the CRM
+ *     API supports HTTP/2 (see {@link JdkCrmTransport}). The option {@code transport-http-version} selects
+ *     {@code HTTP_2} (default) or {@code HTTP_1_1}.</li>
+ * </ul>
+ * Transports are owned by the {@link CrmClientProviderFactory} and shared across sessions. Both trust the certificates
+ * of Keycloak's truststore and follow the proxy mappings of Keycloak's HTTP client (see {@link CrmNetworkSettings}).
+ */
+public abstract class CrmTransport implements Closeable {
+    static final String APACHE = "apache";
+    static final String JDK = "jdk";
+
+    static CrmTransport fromConfig(Config.Scope config, CrmHttpPoolSettings poolSettings,
+        CrmNetworkSettings networkSettings) {
+        var transport = config.get("transport", APACHE);
+        return switch (transport) {
+            case APACHE -> new ApacheCrmTransport(poolSettings, networkSettings);
+            case JDK -> new JdkCrmTransport(poolSettings, networkSettings,
+                config.getInt("connect-timeout-millis", 2_000),
+                HttpClient.Version.valueOf(config.get("transport-http-version", HttpClient.Version.HTTP_2.name())));
+            default -> throw new IllegalArgumentException("Unknown transport for CRM API calls: " + transport);
+        };
+    }
+
+    /**
+     * Execute the given call, and handle its response with the call's response handler. Aborting the call's request
+     * aborts the exchange. Server errors throw a {@link CrmApiServerErrorException}.
+     */
+    abstract <T> T execute(CrmApiCall<T> call) throws IOException;
+
+    /**
+     * Name of the transport, i.e., the value of the option {@code transport}.
+     */
+    public abstract String getName();
+
+    /**
+     * Current state of the transport, e.g., statistics of its connection pool, which is exposed in the provider info of
+     * Keycloak's server info.
+     */
+    public abstract Map<String, String> getOperationalInfo();
+
+    /**
+     * Create a dedicated SSL context, so that TLS sessions with the CRM API are cached and resumed independently of
+     * other TLS clients in the JVM. The context trusts the certificates of Keycloak's truststore, if configured.
+     */
+    static SSLContext createSslContext(CrmHttpPoolSettings settings, CrmNetworkSettings networkSettings) {
+        SSLContext sslContext;
+        try {
+            sslContext = networkSettings.truststore() != null
+                ? SSLContexts.custom().loadTrustMaterial(networkSettings.truststore(), null).build()
+                : SSLContexts.createDefault();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Failed to create SSL context from Keycloak's truststore", ex);
+        }
+        var sslSessionContext = sslContext.getClientSessionContext();
+        sslSessionContext.setSessionCacheSize(settings.tlsSessionCacheSize());
+        sslSessionContext.setSessionTimeout(settings.tlsSessionTimeoutSeconds());
+        return sslContext;
+    }
+}
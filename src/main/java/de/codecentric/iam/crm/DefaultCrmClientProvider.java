@@ -0,0 +1,105 @@
+package de.codecentric.iam.crm;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Default {@link CrmClientProvider} which hands out the infrastructure of its {@link DefaultCrmClientProviderFactory}.
+ */
+class DefaultCrmClientProvider implements CrmClientProvider {
+    private final CrmApiConfigRegistry configRegistry;
+    private final CrmTransport transport;
+    private final ExecutorService asyncExecutor;
+    private final CrmApiGuard guard;
+    private final CrmRequestTimeouts requestTimeouts;
+    private final CrmRetryPolicy retryPolicy;
+    private final CrmContentEncoding contentEncoding;
+    private final CrmRequestCoalescer requestCoalescer;
+    private final ExistsCustomerCache existsCustomerCache;
+    private final CrmCustomerCache customerCache;
+    private final CrmLoginTokenVerifier loginTokenVerifier;
+    private final CrmApiMetrics metrics;
+
+    DefaultCrmClientProvider(CrmApiConfigRegistry configRegistry, CrmTransport transport, ExecutorService asyncExecutor,
+        CrmApiGuard guard, CrmRequestTimeouts requestTimeouts, CrmRetryPolicy retryPolicy,
+        CrmContentEncoding contentEncoding, CrmRequestCoalescer requestCoalescer,
+        ExistsCustomerCache existsCustomerCache, CrmCustomerCache customerCache,
+        CrmLoginTokenVerifier loginTokenVerifier, CrmApiMetrics metrics) {
+        this.configRegistry = configRegistry;
+        this.transport = transport;
+        this.asyncExecutor = asyncExecutor;
+        this.guard = guard;
+        this.requestTimeouts = requestTimeouts;
+        this.retryPolicy = retryPolicy;
+        this.contentEncoding = contentEncoding;
+        this.requestCoalescer = requestCoalescer;
+        this.existsCustomerCache = existsCustomerCache;
+        this.customerCache = customerCache;
+        this.loginTokenVerifier = loginTokenVerifier;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public CrmApiConfigRegistry getConfigRegistry() {
+        return configRegistry;
+    }
+
+    @Override
+    public CrmTransport getTransport() {
+        return transport;
+    }
+
+    @Override
+    public ExecutorService getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    @Override
+    public CrmApiGuard getGuard() {
+        return guard;
+    }
+
+    @Override
+    public CrmRequestTimeouts getRequestTimeouts() {
+        return requestTimeouts;
+    }
+
+    @Override
+    public CrmRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    @Override
+    public CrmContentEncoding getContentEncoding() {
+        return contentEncoding;
+    }
+
+    @Override
+    public CrmRequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    @Override
+    public ExistsCustomerCache getExistsCustomerCache() {
+        return existsCustomerCache;
+    }
+
+    @Override
+    public CrmCustomerCache getCustomerCache() {
+        return customerCache;
+    }
+
+    @Override
+    public CrmLoginTokenVerifier getLoginTokenVerifier() {
+        return loginTokenVerifier;
+    }
+
+    @Override
+    public CrmApiMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        // The shared infrastructure is owned by the factory
+    }
+}
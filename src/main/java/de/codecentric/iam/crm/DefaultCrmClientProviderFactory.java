@@ -0,0 +1,115 @@
+package de.codecentric.iam.crm;
+
+import com.google.auto.service.AutoService;
+import io.micrometer.core.instrument.Metrics;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ServerInfoAwareProviderFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Default {@link CrmClientProviderFactory}, which owns the infrastructure of CRM API calls that is shared by all
+ * {@link CrmClientProvider}s it creates, e.g., the {@link CrmTransport} and the caches. See the README for its options.
+ */
+@AutoService(CrmClientProviderFactory.class)
+public class DefaultCrmClientProviderFactory implements CrmClientProviderFactory, ServerInfoAwareProviderFactory {
+    public static final String PROVIDER_ID = "default";
+
+    private static final Logger logger = Logger.getLogger(DefaultCrmClientProviderFactory.class);
+
+    private Config.Scope config;
+    private CrmApiConfigRegistry configRegistry;
+    private CrmTransport transport;
+    private ExecutorService asyncExecutor;
+    private CrmApiGuard guard;
+    private CrmRequestTimeouts requestTimeouts;
+    private CrmRetryPolicy retryPolicy;
+    private CrmContentEncoding contentEncoding;
+    private CrmRequestCoalescer requestCoalescer;
+    private ExistsCustomerCache existsCustomerCache;
+    private CrmCustomerCache customerCache;
+    private CrmLoginTokenVerifier loginTokenVerifier;
+    private CrmApiMetrics metrics;
+
+    @Override
+    public CrmClientProvider create(KeycloakSession session) {
+        return new DefaultCrmClientProvider(configRegistry, transport, asyncExecutor, guard, requestTimeouts,
+            retryPolicy, contentEncoding, requestCoalescer, existsCustomerCache, customerCache, loginTokenVerifier,
+            metrics);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        this.config = config;
+        configRegistry = CrmApiConfigRegistry.fromConfig(config);
+        asyncExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("crm-api-", 0).factory());
+        guard = new CrmApiGuard(CrmResilienceSettings.fromConfig(config));
+        requestTimeouts = CrmRequestTimeouts.fromConfig(config);
+        retryPolicy = CrmRetryPolicy.fromConfig(config);
+        contentEncoding = CrmContentEncoding.fromConfig(config);
+        requestCoalescer = new CrmRequestCoalescer();
+        existsCustomerCache = ExistsCustomerCache.fromConfig(config);
+        customerCache = CrmCustomerCache.fromConfig(config);
+        loginTokenVerifier = CrmLoginTokenVerifier.fromConfig(config);
+        metrics = new CrmApiMetrics(Metrics.globalRegistry, guard);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // The transport is created once Keycloak's truststore is available
+        KeycloakModelUtils.runJobInTransaction(factory, session -> transport = CrmTransport.fromConfig(config,
+            CrmHttpPoolSettings.fromConfig(config), CrmNetworkSettings.fromKeycloak(session)));
+        configRegistry.startReloading(factory);
+    }
+
+    @Override
+    public void close() {
+        if (configRegistry != null)
+            configRegistry.stopReloading();
+        if (asyncExecutor != null)
+            asyncExecutor.shutdownNow();
+        if (metrics != null)
+            metrics.close();
+
+        try {
+            if (transport != null)
+                transport.close();
+        } catch (IOException ex) {
+            logger.warn("Exception during closing of CRM API transport", ex);
+        }
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        var info = new LinkedHashMap<String, String>();
+        info.put("transport", transport.getName());
+        info.putAll(transport.getOperationalInfo());
+        info.put("concurrentCalls", String.valueOf(guard.getConcurrentCalls()));
+        for (var operation : CrmApiOperation.values())
+            info.put(operation.getId() + "CircuitBreakerState", guard.getCircuitBreakerState(operation));
+        info.put("retries", String.valueOf(retryPolicy.getRetries()));
+        info.put("hedgedRequests", String.valueOf(retryPolicy.getHedgedRequests()));
+        info.put("retryBudgetExhaustions", String.valueOf(retryPolicy.getBudgetExhaustions()));
+        info.put("coalescibleCallsInFlight", String.valueOf(requestCoalescer.getInFlightCalls()));
+        info.put("coalescedCalls", String.valueOf(requestCoalescer.getCoalescedCalls()));
+        info.put("existsCustomerCacheSize", String.valueOf(existsCustomerCache.size()));
+        info.put("existsCustomerCacheHits", String.valueOf(existsCustomerCache.getHits()));
+        info.put("existsCustomerCacheMisses", String.valueOf(existsCustomerCache.getMisses()));
+        info.put("existsCustomerCacheEvictions", String.valueOf(existsCustomerCache.getEvictions()));
+        info.put("customerCacheLifespanMillis", String.valueOf(customerCache.getLifespanMillis()));
+        return info;
+    }
+}
@@ -0,0 +1,121 @@
+package de.codecentric.iam.crm;
+
+import org.keycloak.Config;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-memory cache for the results of the CRM API's GET Customers/{email} operation. Positive and negative
+ * results expire after separate time-to-lives, and the least recently used entries are evicted when the cache is full.
+ * Entries are keyed by the URL of the CRM API and the customer email, so that realms with different CRM APIs don't
+ * share results.
+ */
+public class ExistsCustomerCache {
+    private final int maxSize;
+    private final long positiveTtlMillis;
+    private final long negativeTtlMillis;
+    private final Map<Key, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ExistsCustomerCache(int maxSize, long positiveTtlMillis, long negativeTtlMillis) {
+        this.maxSize = maxSize;
+        this.positiveTtlMillis = positiveTtlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                var evict = size() > ExistsCustomerCache.this.maxSize;
+                if (evict)
+                    evictions.increment();
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * Create a cache from the options {@code exists-customer-cache-max-size} (zero disables the cache),
+     * {@code exists-customer-cache-positive-ttl-millis}, and {@code exists-customer-cache-negative-ttl-millis}.
+     */
+    static ExistsCustomerCache fromConfig(Config.Scope config) {
+        return new ExistsCustomerCache(
+            config.getInt("exists-customer-cache-max-size", 10_000),
+            config.getLong("exists-customer-cache-positive-ttl-millis", 300_000L),
+            config.getLong("exists-customer-cache-negative-ttl-millis", 30_000L)
+        );
+    }
+
+    /**
+     * Get the cached existence of the customer with the given email, or {@code null} if there is no valid entry.
+     */
+    Boolean get(String apiUrl, String email) {
+        if (maxSize <= 0)
+            return null;
+
+        var key = new Key(apiUrl, email);
+        synchronized (entries) {
+            var entry = entries.get(key);
+            if (entry != null && entry.expiresAt() > System.currentTimeMillis()) {
+                hits.increment();
+                return entry.exists();
+            }
+
+            if (entry != null)
+                entries.remove(key);
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(String apiUrl, String email, boolean exists) {
+        if (maxSize <= 0)
+            return;
+
+        var ttl = exists ? positiveTtlMillis : negativeTtlMillis;
+        if (ttl <= 0)
+            return;
+
+        synchronized (entries) {
+            entries.put(new Key(apiUrl, email), new Entry(exists, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    void invalidate(String apiUrl, String email) {
+        if (maxSize <= 0)
+            return;
+
+        synchronized (entries) {
+            entries.remove(new Key(apiUrl, email));
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private record Key(String apiUrl, String email) {
+        // NOOP
+    }
+
+    private record Entry(boolean exists, long expiresAt) {
+        // NOOP
+    }
+}
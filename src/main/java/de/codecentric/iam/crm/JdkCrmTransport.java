@@ -0,0 +1,204 @@
+package de.codecentric.iam.crm;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.message.BasicHttpResponse;
+import org.keycloak.connections.httpclient.ProxyMappings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * {@link CrmTransport} of the JDK's HttpClient, which multiplexes concurrent calls as streams over a few HTTP/2
+ * connections, i.e., over TLS with ALPN or via an upgrade of cleartext connections. CRM APIs without HTTP/2 support are
+ * called via HTTP/1.1. Requests and responses of calls are translated from and to Apache HttpCore, so that calls are
+ * prepared and their responses are handled like with the {@link ApacheCrmTransport}. Response bodies are streamed to
+ * the response handlers, while the small request bodies are buffered.
+ * <p>
+ * The JDK's HttpClient manages its connections itself, so that of the pool options only the TLS session cache applies,
+ * and per-operation connect timeouts give way to the general one. Read timeouts limit the time until the response
+ * headers arrive. Moreover, the JDK's HttpClient always verifies hostnames, regardless of Keycloak's hostname
+ * verification policy, and doesn't authenticate with proxies.
+ */
+class JdkCrmTransport extends CrmTransport {
+    // Headers that the JDK's HttpClient sets itself and rejects in requests
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host",
+        "upgrade");
+
+    private final HttpClient httpClient;
+
+    JdkCrmTransport(CrmHttpPoolSettings settings, int connectTimeoutMillis, HttpClient.Version version) {
+        this(settings, CrmNetworkSettings.DEFAULT, connectTimeoutMillis, version);
+    }
+
+    JdkCrmTransport(CrmHttpPoolSettings settings, CrmNetworkSettings networkSettings, int connectTimeoutMillis,
+        HttpClient.Version version) {
+        var builder = HttpClient.newBuilder()
+            .version(version)
+            .sslContext(createSslContext(settings, networkSettings))
+            .followRedirects(HttpClient.Redirect.NEVER);
+        if (connectTimeoutMillis > 0)
+            builder.connectTimeout(Duration.ofMillis(connectTimeoutMillis));
+        if (networkSettings.proxyMappings() != null)
+            builder.proxy(new ProxyMappingsSelector(networkSettings.proxyMappings()));
+        httpClient = builder.build();
+    }
+
+    /**
+     * Execute the given call. Aborting the call's request cancels the exchange, or closes the response body if the
+     * response is being handled already. The rest of the response body is consumed after response handling, so that
+     * HTTP/1.1 connections can be reused.
+     */
+    @Override
+    <T> T execute(CrmApiCall<T> call) throws IOException {
+        var request = call.request();
+        var exchange = httpClient.sendAsync(toJdkRequest(request), HttpResponse.BodyHandlers.ofInputStream());
+        request.setCancellable(() -> exchange.cancel(true));
+        if (request.isAborted())
+            exchange.cancel(true);
+
+        var response = await(exchange);
+        try (var body = response.body()) {
+            request.setCancellable(() -> {
+                closeQuietly(body);
+                return true;
+            });
+            var result = call.handleResponse(toApacheResponse(response, body));
+            body.transferTo(OutputStream.nullOutputStream());
+            return result;
+        }
+    }
+
+    private static HttpRequest toJdkRequest(HttpRequestBase request) throws IOException {
+        var builder = HttpRequest.newBuilder(request.getURI());
+        for (var header : request.getAllHeaders())
+            if (!RESTRICTED_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT)))
+                builder.header(header.getName(), header.getValue());
+
+        var body = HttpRequest.BodyPublishers.noBody();
+        if (request instanceof HttpEntityEnclosingRequest enclosingRequest && enclosingRequest.getEntity() != null) {
+            var entity = enclosingRequest.getEntity();
+            if (entity.getContentType() != null)
+                builder.setHeader(HttpHeaders.CONTENT_TYPE, entity.getContentType().getValue());
+            if (entity.getContentEncoding() != null)
+                builder.setHeader(HttpHeaders.CONTENT_ENCODING, entity.getContentEncoding().getValue());
+            var content = new ByteArrayOutputStream();
+            entity.writeTo(content);
+            body = HttpRequest.BodyPublishers.ofByteArray(content.toByteArray());
+        }
+        builder.method(request.getMethod(), body);
+
+        var requestConfig = request.getConfig();
+        if (requestConfig != null && requestConfig.getSocketTimeout() > 0)
+            builder.timeout(Duration.ofMillis(requestConfig.getSocketTimeout()));
+        return builder.build();
+    }
+
+    private static HttpResponse<InputStream> await(CompletableFuture<HttpResponse<InputStream>> exchange)
+        throws IOException {
+        try {
+            return exchange.get();
+        } catch (InterruptedException ex) {
+            exchange.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while awaiting response");
+        } catch (CancellationException ex) {
+            // Same exception as the Apache HttpClient throws for aborted requests
+            throw new RequestAbortedException("Request aborted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof CancellationException cancellation)
+                throw new RequestAbortedException("Request aborted", cancellation);
+            if (ex.getCause() instanceof IOException ioException)
+                throw ioException;
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private static org.apache.http.HttpResponse toApacheResponse(HttpResponse<InputStream> response,
+        InputStream body) {
+        var apacheResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, response.statusCode(), null);
+        response.headers().map().forEach((name, values) ->
+            values.forEach(value -> apacheResponse.addHeader(name, value)));
+        var entity = new BasicHttpEntity();
+        entity.setContent(body);
+        entity.setContentLength(response.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH).orElse(-1));
+        apacheResponse.setEntity(entity);
+        return apacheResponse;
+    }
+
+    private static void closeQuietly(InputStream body) {
+        try {
+            body.close();
+        } catch (IOException ex) {
+            // NOOP, since the exchange is aborted anyway
+        }
+    }
+
+    @Override
+    public String getName() {
+        return JDK;
+    }
+
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        var info = new LinkedHashMap<String, String>();
+        info.put("httpVersion", httpClient.version().name());
+        return info;
+    }
+
+    @Override
+    public void close() {
+        httpClient.close();
+    }
+
+    /**
+     * Selector of the proxies of Keycloak's proxy mappings per host, which the JDK's HttpClient consults per request.
+     */
+    private static class ProxyMappingsSelector extends ProxySelector {
+        private final ProxyMappings proxyMappings;
+
+        ProxyMappingsSelector(ProxyMappings proxyMappings) {
+            this.proxyMappings = proxyMappings;
+        }
+
+        @Override
+        public List<Proxy> select(URI uri) {
+            var mapping = proxyMappings.getProxyFor(uri.getHost());
+            var proxyHost = mapping != null ? mapping.getProxyHost() : null;
+            if (proxyHost == null)
+                return List.of(Proxy.NO_PROXY);
+
+            return List.of(new Proxy(Proxy.Type.HTTP,
+                InetSocketAddress.createUnresolved(proxyHost.getHostName(), proxyHost.getPort())));
+        }
+
+        @Override
+        public void connectFailed(URI uri, SocketAddress address, IOException ex) {
+            // NOOP, since the failure surfaces in the call
+        }
+    }
+}
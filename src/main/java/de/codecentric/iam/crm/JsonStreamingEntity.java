@@ -0,0 +1,54 @@
+package de.codecentric.iam.crm;
+
+import jakarta.ws.rs.core.MediaType;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * HTTP entity whose JSON content is written by a {@link CrmJsonCodec.JsonBodyWriter} directly to the output stream of
+ * the underlying connection. The entity is repeatable, because the writer can be invoked repeatedly.
+ */
+class JsonStreamingEntity extends AbstractHttpEntity {
+    private final CrmJsonCodec.JsonBodyWriter bodyWriter;
+
+    JsonStreamingEntity(CrmJsonCodec.JsonBodyWriter bodyWriter) {
+        this.bodyWriter = bodyWriter;
+        setContentType(MediaType.APPLICATION_JSON);
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * Buffered access to the content for clients that don't stream entities, e.g., for logging.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        var buffer = new ByteArrayOutputStream();
+        bodyWriter.writeTo(buffer);
+        return new ByteArrayInputStream(buffer.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        bodyWriter.writeTo(outStream);
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,53 @@
+package de.codecentric.iam.crm;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalescing of concurrent identical calls. While a call for a key is in flight, further calls for the same key don't
+ * start their own call, but share the result of the in-flight one. The entry of a key is removed as soon as its call
+ * completes, so that later calls start afresh and failed calls aren't remembered.
+ */
+class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalescedCalls = new LongAdder();
+
+    /**
+     * Start the given call for the given key, unless a call for the key is in flight already. Each caller receives its
+     * own copy of the shared future, so that cancelling it doesn't affect other callers or the shared call.
+     */
+    CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+        var flight = new CompletableFuture<V>();
+        var current = inFlight.putIfAbsent(key, flight);
+        if (current != null) {
+            coalescedCalls.increment();
+            return current.copy();
+        }
+
+        try {
+            call.get().whenComplete((result, ex) -> {
+                // Remove the entry before completion, so that callers reacting to the result start a new call
+                inFlight.remove(key, flight);
+                if (ex != null)
+                    flight.completeExceptionally(ex);
+                else
+                    flight.complete(result);
+            });
+        } catch (RuntimeException ex) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(ex);
+        }
+        return flight.copy();
+    }
+
+    int size() {
+        return inFlight.size();
+    }
+
+    long getCoalescedCalls() {
+        return coalescedCalls.sum();
+    }
+}
@@ -0,0 +1,138 @@
+package de.codecentric.iam.keycloak;
+
+import de.codecentric.iam.crm.CrmApiFacade;
+import de.codecentric.iam.crm.CrmClientProvider;
+import jakarta.ws.rs.core.Response;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static de.codecentric.iam.keycloak.UserAttributes.CRM_CUSTOMER_ADDRESS_ATTRIBUTE;
+import static de.codecentric.iam.keycloak.UserAttributes.CRM_CUSTOMER_ID_ATTRIBUTE;
+import static de.codecentric.iam.keycloak.UserAttributes.CRM_LAST_REFRESH_ATTRIBUTE;
+import static de.codecentric.iam.keycloak.UserUtils.syncKeycloakUserAttributes;
+import static org.keycloak.models.UserModel.FIRST_NAME;
+import static org.keycloak.models.UserModel.LAST_NAME;
+
+/**
+ * Background refresh of the CRM customer attributes and names of migrated users (stale-while-revalidate). Logins
+ * complete with the stored attributes, while the refresh runs on the CRM client's executor in its own Keycloak session
+ * and transaction. At most one refresh per user is in flight, and users are refreshed at most once per given interval.
+ * <p>
+ * Users are only written if their attributes changed, including the time of their last refresh in the attribute
+ * {@value UserAttributes#CRM_LAST_REFRESH_ATTRIBUTE}, so that unchanged users are neither written nor validated.
+ * Completed refreshes are tracked in memory instead, for up to {@value #MAX_TRACKED_USERS} recently refreshed users.
+ */
+class CrmCustomerRefresher {
+    private static final Logger logger = Logger.getLogger(CrmCustomerRefresher.class);
+    private static final int MAX_TRACKED_USERS = 100_000;
+
+    private final Set<String> refreshingUsers = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> lastRefreshes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_TRACKED_USERS;
+        }
+    };
+
+    /**
+     * Schedule the refresh of the given user from the CRM customer identified by the given ID and login token, unless
+     * the user was refreshed within the given interval or a refresh of the user is in flight already.
+     */
+    void schedule(KeycloakSession session, RealmModel realm, UserModel user, String customerId, String loginToken,
+        long minIntervalSeconds) {
+        var lastRefresh = NumberUtils.toLong(user.getFirstAttribute(CRM_LAST_REFRESH_ATTRIBUTE), 0);
+        var sessionFactory = session.getKeycloakSessionFactory();
+        var realmId = realm.getId();
+        var userId = user.getId();
+        schedule(session.getProvider(CrmClientProvider.class).getAsyncExecutor(), realmId + " " + userId, lastRefresh,
+            minIntervalSeconds, () -> {
+                try {
+                    refresh(sessionFactory, realmId, userId, customerId, loginToken);
+                } catch (Exception ex) {
+                    logger.warnf(ex, "Background refresh of CRM customer %s failed", customerId);
+                }
+            });
+    }
+
+    /**
+     * Execute the given refresh of the user with the given key on the given executor, unless the user's last refresh
+     * lies within the given interval, or a refresh of the user is in flight already. The last refresh is the later of
+     * the given time in seconds and the user's last completed refresh on this node. Refreshes that throw exceptions
+     * don't count as completed.
+     *
+     * @return whether the refresh was scheduled
+     */
+    boolean schedule(Executor executor, String userKey, long lastRefresh, long minIntervalSeconds, Runnable refresh) {
+        synchronized (lastRefreshes) {
+            lastRefresh = Math.max(lastRefresh, lastRefreshes.getOrDefault(userKey, 0L));
+        }
+        if (Time.currentTime() - lastRefresh < minIntervalSeconds)
+            return false;
+        if (!refreshingUsers.add(userKey))
+            return false;
+
+        try {
+            executor.execute(() -> {
+                try {
+                    refresh.run();
+                    synchronized (lastRefreshes) {
+                        lastRefreshes.put(userKey, (long) Time.currentTime());
+                    }
+                } finally {
+                    refreshingUsers.remove(userKey);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            refreshingUsers.remove(userKey);
+            return false;
+        }
+    }
+
+    /**
+     * Refresh the given user from the CRM API, bypassing the {@link de.codecentric.iam.crm.CrmCustomerCache}, which
+     * is updated with the requested details instead. The time of the last refresh is only written along with changed
+     * attributes, and without another validation of the user profile.
+     */
+    private void refresh(KeycloakSessionFactory sessionFactory, String realmId, String userId, String customerId,
+        String loginToken) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            var realm = session.realms().getRealm(realmId);
+            if (realm == null)
+                return;
+
+            session.getContext().setRealm(realm);
+            var user = session.users().getUserById(realm, userId);
+            if (user == null)
+                return;
+
+            var customer = CrmApiFacade.session(session).refreshCustomer(customerId, loginToken);
+            if (customer.isEmpty() || Response.Status.fromStatusCode(customer.get().httpStatus()) != Response.Status.OK)
+                return;
+
+            var attributes = new HashMap<String, String>();
+            attributes.put(CRM_CUSTOMER_ID_ATTRIBUTE, customerId);
+            attributes.put(CRM_CUSTOMER_ADDRESS_ATTRIBUTE, customer.get().address());
+            if (customer.get().firstname() != null)
+                attributes.put(FIRST_NAME, customer.get().firstname());
+            if (customer.get().lastname() != null)
+                attributes.put(LAST_NAME, customer.get().lastname());
+            if (syncKeycloakUserAttributes(session, user, attributes))
+                user.setSingleAttribute(CRM_LAST_REFRESH_ATTRIBUTE, String.valueOf(Time.currentTime()));
+        });
+    }
+}
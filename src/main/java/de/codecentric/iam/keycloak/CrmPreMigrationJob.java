@@ -0,0 +1,331 @@
+package de.codecentric.iam.keycloak;
+
+import de.codecentric.iam.crm.CrmApiFacade;
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.ExportedCustomer;
+import jakarta.ws.rs.core.Response;
+import org.apache.commons.lang3.StringUtils;
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.userprofile.UserProfileProvider;
+import org.keycloak.userprofile.ValidationException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+import static de.codecentric.iam.keycloak.UserAttributes.CRM_CUSTOMER_ADDRESS_ATTRIBUTE;
+import static de.codecentric.iam.keycloak.UserAttributes.CRM_CUSTOMER_ID_ATTRIBUTE;
+import static de.codecentric.iam.keycloak.UserUtils.syncKeycloakUserAttributes;
+import static org.keycloak.models.UserModel.EMAIL;
+import static org.keycloak.models.UserModel.FIRST_NAME;
+import static org.keycloak.models.UserModel.LAST_NAME;
+import static org.keycloak.models.UserModel.USERNAME;
+import static org.keycloak.userprofile.UserProfileContext.REGISTRATION;
+
+/**
+ * Background job that migrates all customers of the CRM system into Keycloak users of a realm ahead of their first
+ * login. The job pages through the customers of the CRM API, and creates or updates the corresponding users in batched
+ * transactions, of which a bounded number runs in parallel. After each page, the job stores the cursor of the next page
+ * as a checkpoint in the realm attribute {@value #CHECKPOINT_REALM_ATTRIBUTE}, so that a failed or cancelled job can be
+ * resumed. Migrating a customer is idempotent, hence resuming repeats at most one page. Users are created through the
+ * user profile like on a migrating login, and existing users are only updated if they are linked to the same customer.
+ * The checkpoint also advances past customers that failed to migrate, whose IDs are reported in the job's progress
+ * instead, up to {@value #MAX_FAILED_CUSTOMER_IDS} of them, so that an admin can migrate them again.
+ * <p>
+ * A job holds a cluster-wide lock on its realm while it runs, so that at most one job per realm runs in the cluster.
+ * Its progress is tracked by the node that runs it.
+ * <p>
+ * Pre-migrated users don't have a password, because the CRM API doesn't expose passwords. The
+ * {@link MigratingLoginFormAuthenticator} sets it on the users' first login.
+ */
+public class CrmPreMigrationJob implements Runnable {
+    public static final String CHECKPOINT_REALM_ATTRIBUTE = "crmPreMigrationCursor";
+    private static final String LOCK_TASK_KEY_PREFIX = "crmPreMigration::";
+    private static final int MAX_FAILED_CUSTOMER_IDS = 1000;
+
+    public enum State {
+        RUNNING,
+        COMPLETED,
+        CANCELLED,
+        FAILED
+    }
+
+    private static final Logger logger = Logger.getLogger(CrmPreMigrationJob.class);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final CrmPreMigrationSettings settings;
+    private final ExecutorService batchExecutor;
+    private final long startedAt = System.currentTimeMillis();
+
+    private final LongAdder pages = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder updated = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final List<String> failedCustomerIds = new ArrayList<>();
+    private final CompletableFuture<Boolean> lockAcquisition = new CompletableFuture<>();
+
+    private volatile State state = State.RUNNING;
+    private volatile String cursor = "";
+    private volatile String error;
+    private volatile boolean cancelled;
+
+    CrmPreMigrationJob(KeycloakSessionFactory sessionFactory, String realmId, CrmPreMigrationSettings settings,
+        ExecutorService batchExecutor) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.settings = settings;
+        this.batchExecutor = batchExecutor;
+    }
+
+    /**
+     * Run the job while holding the realm's cluster-wide lock, unless another job holds it already.
+     */
+    @Override
+    public void run() {
+        try (var session = sessionFactory.create()) {
+            var result = session.getProvider(ClusterProvider.class).executeIfNotExecuted(
+                LOCK_TASK_KEY_PREFIX + realmId, settings.lockTimeoutSeconds(), () -> {
+                    lockAcquisition.complete(true);
+                    migrateAll();
+                    return null;
+                });
+            if (!result.isExecuted()) {
+                error = "A pre-migration of the realm is running on another node";
+                state = State.FAILED;
+            }
+        } catch (RuntimeException ex) {
+            logger.errorf(ex, "Failed to lock CRM pre-migration of realm %s", realmId);
+            error = ex.getMessage();
+            state = State.FAILED;
+        } finally {
+            lockAcquisition.complete(false);
+        }
+    }
+
+    /**
+     * Wait until the job either acquired the realm's cluster-wide lock, or failed to, and return whether it did.
+     */
+    boolean awaitLock() {
+        return lockAcquisition.join();
+    }
+
+    private void migrateAll() {
+        try {
+            cursor = inRealm((session, realm) ->
+                Objects.requireNonNullElse(realm.getAttribute(CHECKPOINT_REALM_ATTRIBUTE), "")
+            );
+            if (!cursor.isEmpty())
+                logger.infof("Resuming CRM pre-migration of realm %s at cursor %s", realmId, cursor);
+
+            do {
+                if (cancelled) {
+                    state = State.CANCELLED;
+                    return;
+                }
+
+                var page = inRealm((session, realm) ->
+                    CrmApiFacade.session(session).listCustomers(cursor, settings.pageSize())
+                );
+                if (page.isEmpty() || Response.Status.fromStatusCode(page.get().httpStatus()) != Response.Status.OK)
+                    throw new IllegalStateException("Failed to fetch CRM customers at cursor '" + cursor + "'");
+
+                migrate(page.get().customers());
+
+                // The checkpoint is only advanced once all customers of the page are processed. Failed customers
+                // aren't repeated on resume, but are recorded in the progress.
+                var nextCursor = page.get().nextCursor();
+                inRealm((session, realm) -> {
+                    if (nextCursor.isEmpty())
+                        realm.removeAttribute(CHECKPOINT_REALM_ATTRIBUTE);
+                    else
+                        realm.setAttribute(CHECKPOINT_REALM_ATTRIBUTE, nextCursor);
+                    return null;
+                });
+                cursor = nextCursor;
+                pages.increment();
+            } while (!cursor.isEmpty());
+
+            state = State.COMPLETED;
+            logger.infof("Completed CRM pre-migration of realm %s: %s", realmId, getProgress());
+        } catch (Exception ex) {
+            if (ex instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            logger.errorf(ex, "CRM pre-migration of realm %s failed at cursor '%s'", realmId, cursor);
+            error = ex.getMessage();
+            state = cancelled ? State.CANCELLED : State.FAILED;
+        }
+    }
+
+    /**
+     * Migrate the given customers in batches, of which at most the configured parallelism runs at a time.
+     */
+    private void migrate(List<ExportedCustomer> customers) throws InterruptedException, ExecutionException {
+        var permits = new Semaphore(settings.parallelism());
+        var batches = new ArrayList<Future<?>>();
+        for (var from = 0; from < customers.size(); from += settings.batchSize()) {
+            var batch = customers.subList(from, Math.min(from + settings.batchSize(), customers.size()));
+            permits.acquire();
+            batches.add(batchExecutor.submit(() -> {
+                try {
+                    migrateBatch(batch);
+                } finally {
+                    permits.release();
+                }
+            }));
+        }
+
+        for (var batch : batches)
+            batch.get();
+    }
+
+    /**
+     * Migrate the given customers in a single transaction. If the transaction fails, all customers of the batch count
+     * as failed. Failed customers are recorded in the progress, and are migrated on their first login otherwise.
+     */
+    private void migrateBatch(List<ExportedCustomer> batch) {
+        var counts = new long[4];
+        var failedIds = new ArrayList<String>();
+        try {
+            inRealm((session, realm) -> {
+                for (var customer : batch) {
+                    var result = migrateCustomer(session, realm, customer);
+                    counts[result]++;
+                    if (result == 3)
+                        failedIds.add(customer.id());
+                }
+                return null;
+            });
+            created.add(counts[0]);
+            updated.add(counts[1]);
+            skipped.add(counts[2]);
+            failed.add(counts[3]);
+            recordFailed(failedIds);
+        } catch (Exception ex) {
+            logger.errorf(ex, "Failed to migrate batch of %d CRM customers into realm %s", batch.size(), realmId);
+            failed.add(batch.size());
+            recordFailed(batch.stream().map(ExportedCustomer::id).toList());
+        }
+        processed.add(batch.size());
+    }
+
+    /**
+     * Record the IDs of the given failed customers for the progress, unless the maximum number of IDs is recorded
+     * already.
+     */
+    private void recordFailed(List<String> customerIds) {
+        synchronized (failedCustomerIds) {
+            customerIds.stream()
+                .limit(Math.max(MAX_FAILED_CUSTOMER_IDS - failedCustomerIds.size(), 0))
+                .forEach(failedCustomerIds::add);
+        }
+    }
+
+    /**
+     * Create or update the user for the given customer. Returns 0 for created, 1 for updated, 2 for skipped, and 3 for
+     * failed users. Users that exist, but aren't linked to the customer, are skipped, e.g., local users, or users
+     * migrated from another customer with the same email before.
+     */
+    private int migrateCustomer(KeycloakSession session, RealmModel realm, ExportedCustomer customer) {
+        if (StringUtils.isAnyBlank(customer.id(), customer.email()))
+            return 2;
+
+        var user = session.users().getUserByEmail(realm, customer.email());
+        if (user == null)
+            user = session.users().getUserByUsername(realm, customer.email());
+
+        var crmAttributes = new HashMap<String, String>();
+        crmAttributes.put(CRM_CUSTOMER_ADDRESS_ATTRIBUTE, customer.address());
+        if (user == null) {
+            user = createUser(session, customer);
+            if (user == null)
+                return 3;
+
+            crmAttributes.put(CRM_CUSTOMER_ID_ATTRIBUTE, customer.id());
+            syncKeycloakUserAttributes(session, user, crmAttributes);
+            return 0;
+        }
+
+        if (!customer.id().equals(user.getFirstAttribute(CRM_CUSTOMER_ID_ATTRIBUTE)))
+            return 2;
+
+        if (customer.firstname() != null)
+            crmAttributes.put(FIRST_NAME, customer.firstname());
+        if (customer.lastname() != null)
+            crmAttributes.put(LAST_NAME, customer.lastname());
+        return syncKeycloakUserAttributes(session, user, crmAttributes) ? 1 : 2;
+    }
+
+    /**
+     * Create a user for the given customer through the user profile, or return {@code null} if the customer's details
+     * are invalid for the profile. Validation happens before the user is created, so that the batch's transaction may
+     * proceed with the other customers.
+     */
+    private UserModel createUser(KeycloakSession session, ExportedCustomer customer) {
+        var attributes = new HashMap<String, List<String>>();
+        attributes.put(USERNAME, List.of(customer.email()));
+        attributes.put(EMAIL, List.of(customer.email()));
+        attributes.put(FIRST_NAME, customer.firstname() != null ? List.of(customer.firstname()) : List.of());
+        attributes.put(LAST_NAME, customer.lastname() != null ? List.of(customer.lastname()) : List.of());
+        try {
+            var user = session.getProvider(UserProfileProvider.class).create(REGISTRATION, attributes).create();
+            user.setEnabled(true);
+            return user;
+        } catch (ValidationException ex) {
+            logger.warnf("Failed to migrate CRM customer %s into realm %s: %s", customer.id(), realmId,
+                ex.getErrors().stream().map(error -> error.getAttribute() + " " + error.getMessage()).toList());
+            return null;
+        }
+    }
+
+    private <T> T inRealm(BiFunction<KeycloakSession, RealmModel, T> task) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            var realm = session.realms().getRealm(realmId);
+            if (realm == null)
+                throw new IllegalStateException("Realm " + realmId + " doesn't exist anymore");
+
+            session.getContext().setRealm(realm);
+            return task.apply(session, realm);
+        });
+    }
+
+    /**
+     * Request cancellation. The job stops before its next page.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isRunning() {
+        return state == State.RUNNING;
+    }
+
+    public Progress getProgress() {
+        List<String> failedIds;
+        synchronized (failedCustomerIds) {
+            failedIds = List.copyOf(failedCustomerIds);
+        }
+        return new Progress(state, cursor, pages.sum(), processed.sum(), created.sum(), updated.sum(), skipped.sum(),
+            failed.sum(), failedIds, startedAt, error);
+    }
+
+    public record Progress(State state, String cursor, long pages, long processed, long created, long updated,
+        long skipped, long failed, List<String> failedCustomerIds, long startedAt, String error) {
+        // NOOP
+    }
+}
@@ -0,0 +1,95 @@
+package de.codecentric.iam.keycloak;
+
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+
+/**
+ * REST resource for starting, monitoring, and cancelling the {@link CrmPreMigrationJob} of a realm at
+ * {@code /realms/{realm}/crm-pre-migration}. Requests require a bearer token of the realm whose user may manage users.
+ */
+public class CrmPreMigrationResource implements RealmResourceProvider {
+    private final KeycloakSession session;
+    private final CrmPreMigrationResourceProviderFactory factory;
+
+    CrmPreMigrationResource(KeycloakSession session, CrmPreMigrationResourceProviderFactory factory) {
+        this.session = session;
+        this.factory = factory;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    /**
+     * Start the realm's pre-migration, or resume it from its checkpoint. Responds with 409 if a job is running already,
+     * whose progress is included if it runs on this node.
+     */
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response start() {
+        requireManageUsers();
+        var realmId = session.getContext().getRealm().getId();
+        var job = factory.startJob(session.getKeycloakSessionFactory(), realmId);
+        if (job == null) {
+            var runningJob = factory.getJob(realmId);
+            return Response.status(Response.Status.CONFLICT)
+                .entity(runningJob != null ? runningJob.getProgress() : null)
+                .build();
+        }
+        return Response.accepted(job.getProgress()).build();
+    }
+
+    /**
+     * Get the progress of the realm's current or most recent pre-migration.
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response progress() {
+        requireManageUsers();
+        var job = factory.getJob(session.getContext().getRealm().getId());
+        if (job == null)
+            return Response.status(Response.Status.NOT_FOUND).build();
+        return Response.ok(job.getProgress()).build();
+    }
+
+    /**
+     * Cancel the realm's running pre-migration. The job stops before its next page and can be resumed later.
+     */
+    @DELETE
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response cancel() {
+        requireManageUsers();
+        var job = factory.getJob(session.getContext().getRealm().getId());
+        if (job == null || !job.isRunning())
+            return Response.status(Response.Status.NOT_FOUND).build();
+
+        job.cancel();
+        return Response.accepted(job.getProgress()).build();
+    }
+
+    private void requireManageUsers() {
+        var auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null)
+            throw new NotAuthorizedException("Bearer");
+
+        var realm = session.getContext().getRealm();
+        var adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient());
+        AdminPermissions.evaluator(session, realm, adminAuth).users().requireManage();
+    }
+
+    @Override
+    public void close() {
+        // NOOP
+    }
+}
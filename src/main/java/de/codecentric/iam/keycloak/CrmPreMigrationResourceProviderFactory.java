@@ -0,0 +1,90 @@
+package de.codecentric.iam.keycloak;
+
+import com.google.auto.service.AutoService;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Factory of the {@link CrmPreMigrationResource}. The factory owns the {@link CrmPreMigrationJob}s of the node, and the
+ * executor that runs them and their batches on virtual threads. At most one job per realm runs in the cluster, which is
+ * ensured by a cluster-wide lock. Jobs are configured with the following options (see {@link CrmPreMigrationSettings}
+ * for defaults):
+ * <ul>
+ *     <li>{@code spi-realm-restapi-extension-crm-pre-migration-page-size}: Number of CRM customers requested per
+ *     page.</li>
+ *     <li>{@code spi-realm-restapi-extension-crm-pre-migration-batch-size}: Number of users created or updated per
+ *     transaction.</li>
+ *     <li>{@code spi-realm-restapi-extension-crm-pre-migration-parallelism}: Maximum number of batches migrated in
+ *     parallel.</li>
+ *     <li>{@code spi-realm-restapi-extension-crm-pre-migration-lock-timeout-seconds}: Time after which the cluster-wide
+ *     lock of a job expires, e.g., if the node that runs the job crashed.</li>
+ * </ul>
+ */
+@AutoService(RealmResourceProviderFactory.class)
+public class CrmPreMigrationResourceProviderFactory implements RealmResourceProviderFactory {
+    public static final String PROVIDER_ID = "crm-pre-migration";
+
+    private final Map<String, CrmPreMigrationJob> jobs = new ConcurrentHashMap<>();
+    private CrmPreMigrationSettings settings;
+    private ExecutorService executor;
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new CrmPreMigrationResource(session, this);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        settings = CrmPreMigrationSettings.fromConfig(config);
+        executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("crm-pre-migration-", 0).factory());
+    }
+
+    /**
+     * Start a job for the given realm, unless one is running already on this or another node. Returns the started job
+     * or {@code null}.
+     */
+    CrmPreMigrationJob startJob(KeycloakSessionFactory sessionFactory, String realmId) {
+        var job = new CrmPreMigrationJob(sessionFactory, realmId, settings, executor);
+        var current = jobs.compute(realmId, (id, previous) ->
+            previous != null && previous.isRunning() ? previous : job
+        );
+        if (current != job)
+            return null;
+
+        executor.submit(job);
+        if (!job.awaitLock()) {
+            jobs.remove(realmId, job);
+            return null;
+        }
+        return job;
+    }
+
+    CrmPreMigrationJob getJob(String realmId) {
+        return jobs.get(realmId);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // NOOP
+    }
+
+    @Override
+    public void close() {
+        jobs.values().forEach(CrmPreMigrationJob::cancel);
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,22 @@
+package de.codecentric.iam.keycloak;
+
+import org.keycloak.Config;
+
+/**
+ * Settings of {@link CrmPreMigrationJob}s.
+ */
+record CrmPreMigrationSettings(
+    int pageSize,
+    int batchSize,
+    int parallelism,
+    int lockTimeoutSeconds
+) {
+    static CrmPreMigrationSettings fromConfig(Config.Scope config) {
+        return new CrmPreMigrationSettings(
+            Math.max(1, config.getInt("page-size", 200)),
+            Math.max(1, config.getInt("batch-size", 50)),
+            Math.max(1, config.getInt("parallelism", 4)),
+            Math.max(1, config.getInt("lock-timeout-seconds", 86_400))
+        );
+    }
+}
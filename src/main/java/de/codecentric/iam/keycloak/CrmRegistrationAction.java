@@ -2,22 +2,28 @@ package de.codecentric.iam.keycloak;
 
 import com.google.auto.service.AutoService;
 import de.codecentric.iam.crm.CrmApiFacade;
+import de.codecentric.iam.crm.CrmApiUnavailableException;
+import de.codecentric.iam.crm.CrmClientProvider;
 import jakarta.ws.rs.core.Response;
 import org.apache.commons.lang3.StringUtils;
+import org.jboss.logging.Logger;
 import org.keycloak.authentication.FormActionFactory;
 import org.keycloak.authentication.FormContext;
 import org.keycloak.authentication.ValidationContext;
 import org.keycloak.authentication.forms.RegistrationUserCreation;
 import org.keycloak.events.Details;
 import org.keycloak.events.Errors;
-import org.keycloak.jose.jws.JWSInput;
-import org.keycloak.representations.AccessToken;
+import org.keycloak.models.utils.FormMessage;
+import org.keycloak.services.messages.Messages;
+import org.keycloak.tracing.TracingProvider;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 import static de.codecentric.iam.keycloak.UserAttributes.CRM_CUSTOMER_ADDRESS_ATTRIBUTE;
 import static de.codecentric.iam.keycloak.UserAttributes.CRM_CUSTOMER_ID_ATTRIBUTE;
-import static de.codecentric.iam.keycloak.UserUtils.updateKeycloakUser;
+import static de.codecentric.iam.keycloak.UserUtils.syncKeycloakUserAttributes;
 import static org.keycloak.models.UserModel.EMAIL;
 import static org.keycloak.models.UserModel.FIRST_NAME;
 import static org.keycloak.models.UserModel.LAST_NAME;
@@ -29,6 +35,8 @@ import static org.keycloak.representations.idm.CredentialRepresentation.PASSWORD
  */
 @AutoService(FormActionFactory.class)
 public class CrmRegistrationAction extends RegistrationUserCreation {
+    private static final Logger logger = Logger.getLogger(CrmRegistrationAction.class);
+
     @Override
     public String getId() {
         return "crm-" + super.getId();
@@ -40,19 +48,40 @@ public class CrmRegistrationAction extends RegistrationUserCreation {
     }
 
     /**
-     * Validate form inputs.
+     * Validate form inputs, traced as a span of its own.
      */
     @Override
     public void validate(ValidationContext context) {
+        var tracing = context.getSession().getProvider(TracingProvider.class);
+        tracing.startSpan(CrmRegistrationAction.class, "CrmRegistrationAction.validate");
+        try {
+            doValidate(context);
+        } catch (RuntimeException ex) {
+            tracing.error(ex);
+            throw ex;
+        } finally {
+            tracing.endSpan();
+        }
+    }
+
+    private void doValidate(ValidationContext context) {
         var formData = context.getHttpRequest().getDecodedFormParameters();
         var email = formData.getFirst(EMAIL);
         if (StringUtils.isBlank(email))
             return;
 
-        // Make sure that CRM customer doesn't exist already
-        var customerExists = CrmApiFacade
-            .session(context.getSession())
-            .existsCustomer(email);
+        // Make sure that CRM customer doesn't exist already. Registration can't proceed without the CRM API.
+        Optional<Boolean> customerExists;
+        try {
+            customerExists = CrmApiFacade
+                .session(context.getSession())
+                .existsCustomer(email);
+        } catch (CrmApiUnavailableException ex) {
+            context.error(Errors.INVALID_REGISTRATION);
+            context.validationError(formData, List.of(new FormMessage(null, Messages.INTERNAL_SERVER_ERROR)));
+            return;
+        }
+
         if (customerExists.orElse(true)) {
             context.getEvent().detail(Details.EMAIL, email);
             context.error(Errors.EMAIL_IN_USE);
@@ -63,12 +92,30 @@ public class CrmRegistrationAction extends RegistrationUserCreation {
     }
 
     /**
-     * Handle validation success and proceed with actual form handling.
+     * Handle validation success and proceed with actual form handling, traced as a span of its own.
      */
     @Override
     public void success(FormContext context) {
-        super.success(context);
+        var tracing = context.getSession().getProvider(TracingProvider.class);
+        tracing.startSpan(CrmRegistrationAction.class, "CrmRegistrationAction.success");
+        try {
+            super.success(context);
+
+            try {
+                createCrmCustomer(context);
+            } catch (CrmApiUnavailableException ex) {
+                logger.warnf("Registered user %s without CRM customer: %s", context.getUser().getUsername(),
+                    ex.getMessage());
+            }
+        } catch (RuntimeException ex) {
+            tracing.error(ex);
+            throw ex;
+        } finally {
+            tracing.endSpan();
+        }
+    }
 
+    private void createCrmCustomer(FormContext context) {
         /* Create the CRM customer */
         var formData = context.getHttpRequest().getDecodedFormParameters();
         var email = formData.getFirst(EMAIL);
@@ -95,26 +142,34 @@ public class CrmRegistrationAction extends RegistrationUserCreation {
             return;
 
         var crmLoginTokenJwt = crmLoginResponse.get().loginToken();
-        AccessToken crmLoginToken;
-        try {
-            crmLoginToken = new JWSInput(crmLoginTokenJwt).readJsonContent(AccessToken.class);
-        } catch (Exception ex) {
+        var crmLoginToken = context.getSession()
+            .getProvider(CrmClientProvider.class)
+            .getLoginTokenVerifier()
+            .verify(context.getSession(), crmLoginTokenJwt)
+            .orElse(null);
+        if (crmLoginToken == null)
             return;
-        }
 
-        var crmCustomer = CrmApiFacade
-            .session(context.getSession())
-            .getCustomer(crmLoginTokenJwt);
+        // Request the CRM customer, unless the login token carries the customer's details
+        var crmCustomer = context.getSession()
+            .getProvider(CrmClientProvider.class)
+            .getLoginTokenVerifier()
+            .customerFromClaims(crmLoginToken);
+        if (crmCustomer.isEmpty())
+            crmCustomer = CrmApiFacade
+                .session(context.getSession())
+                .getCustomer(crmLoginToken.getSubject(), crmLoginTokenJwt);
         if (
             crmCustomer.isEmpty() ||
             Response.Status.fromStatusCode(crmCustomer.get().httpStatus()) != Response.Status.OK
         )
             return;
 
-        context.getUser().setFirstName(crmCustomer.get().firstname());
-        context.getUser().setLastName(crmCustomer.get().lastname());
-        context.getUser().setAttribute(CRM_CUSTOMER_ID_ATTRIBUTE, List.of(crmLoginToken.getSubject()));
-        context.getUser().setAttribute(CRM_CUSTOMER_ADDRESS_ATTRIBUTE, List.of(crmCustomer.get().address()));
-        updateKeycloakUser(context.getSession(), context.getUser());
+        syncKeycloakUserAttributes(context.getSession(), context.getUser(), Map.of(
+            FIRST_NAME, crmCustomer.get().firstname(),
+            LAST_NAME, crmCustomer.get().lastname(),
+            CRM_CUSTOMER_ID_ATTRIBUTE, crmLoginToken.getSubject(),
+            CRM_CUSTOMER_ADDRESS_ATTRIBUTE, crmCustomer.get().address()
+        ));
     }
 }
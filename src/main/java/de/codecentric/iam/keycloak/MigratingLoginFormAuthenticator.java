@@ -1,31 +1,47 @@
 package de.codecentric.iam.keycloak;
 
 import de.codecentric.iam.crm.CrmApiFacade;
+import de.codecentric.iam.crm.CrmApiUnavailableException;
+import de.codecentric.iam.crm.CrmClientProvider;
 import jakarta.ws.rs.core.MultivaluedHashMap;
 import jakarta.ws.rs.core.MultivaluedMap;
 import jakarta.ws.rs.core.Response;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.authenticators.browser.UsernamePasswordForm;
+import org.keycloak.common.util.Time;
 import org.keycloak.credential.CredentialProvider;
 import org.keycloak.credential.PasswordCredentialProvider;
 import org.keycloak.credential.PasswordCredentialProviderFactory;
-import org.keycloak.jose.jws.JWSInput;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.representations.AccessToken;
+import org.keycloak.services.messages.Messages;
+import org.keycloak.tracing.TracingProvider;
 import org.keycloak.userprofile.UserProfileProvider;
 import org.keycloak.userprofile.ValidationException;
 
 import java.lang.ref.WeakReference;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Supplier;
 
+import static de.codecentric.iam.keycloak.MigratingLoginFormAuthenticatorFactory.CRM_BACKGROUND_REFRESH_CONFIG;
+import static de.codecentric.iam.keycloak.MigratingLoginFormAuthenticatorFactory.CRM_LOCAL_VALIDATION_CONFIG;
+import static de.codecentric.iam.keycloak.MigratingLoginFormAuthenticatorFactory.CRM_REFRESH_INTERVAL_CONFIG;
+import static de.codecentric.iam.keycloak.MigratingLoginFormAuthenticatorFactory.CRM_REVALIDATION_INTERVAL_CONFIG;
 import static de.codecentric.iam.keycloak.UserAttributes.CRM_CUSTOMER_ADDRESS_ATTRIBUTE;
 import static de.codecentric.iam.keycloak.UserAttributes.CRM_CUSTOMER_ID_ATTRIBUTE;
-import static de.codecentric.iam.keycloak.UserUtils.updateKeycloakUser;
+import static de.codecentric.iam.keycloak.UserAttributes.CRM_LAST_VALIDATION_ATTRIBUTE;
+import static de.codecentric.iam.keycloak.UserUtils.syncKeycloakUserAttributes;
+import static org.keycloak.authentication.AuthenticationFlowError.INTERNAL_ERROR;
 import static org.keycloak.authentication.AuthenticationFlowError.INVALID_CREDENTIALS;
 import static org.keycloak.models.UserModel.EMAIL;
 import static org.keycloak.models.UserModel.FIRST_NAME;
@@ -40,43 +56,82 @@ import static org.keycloak.userprofile.UserProfileContext.REGISTRATION;
  */
 public class MigratingLoginFormAuthenticator extends UsernamePasswordForm {
     private static final String CRM_LOGIN_TOKEN_JWT_AUTH_NOTE = "CRM_LOGIN_TOKEN_JWT_AUTH_NOTE";
+    private static final String CRM_LOGIN_TOKEN_SESSION_ATTRIBUTE = "CRM_LOGIN_TOKEN";
+
+    private final CrmCustomerRefresher customerRefresher = new CrmCustomerRefresher();
 
     /**
-     * Action implementation.
+     * Action implementation, traced as a span of its own.
      */
     @Override
     public void action(AuthenticationFlowContext context) {
+        traced(context, "action", () -> {
+            doAction(context);
+            return null;
+        });
+    }
+
+    private void doAction(AuthenticationFlowContext context) {
         var formData = context.getHttpRequest().getDecodedFormParameters();
         if (formData.containsKey("cancel")) {
             context.cancelLogin();
             return;
         }
 
+        // Fast path: migrated users are validated against their Keycloak credentials only, if so configured
+        var existingUser = getKeycloakUser(context.getSession(), context.getRealm(), formData.getFirst(FORM_USERNAME));
+        if (isValidatedLocally(context, existingUser)) {
+            if (validateFormLocally(context, formData))
+                context.success();
+            return;
+        }
+
         var validForm = validateForm(context, formData);
         if (!validForm)
             return;
 
         /*
-         * Acquire CRM customer login token set by form validation (see below) as a Keycloak auth note. Then, use the
-         * token to extract CRM customer ID and address, which are to be stored as attributes for the new Keycloak user
+         * Acquire CRM customer login token set by form validation (see below) as a Keycloak auth note, and the token's
+         * verified claims. Then, use the token to extract CRM customer ID and address, which are to be stored as
+         * attributes for the new Keycloak user
          */
         var crmLoginTokenJwt = context.getAuthenticationSession().getAuthNote(CRM_LOGIN_TOKEN_JWT_AUTH_NOTE);
-        if (StringUtils.isBlank(crmLoginTokenJwt)) {
+        var crmLoginToken = context.getSession().getAttribute(CRM_LOGIN_TOKEN_SESSION_ATTRIBUTE, AccessToken.class);
+        if (StringUtils.isBlank(crmLoginTokenJwt) || crmLoginToken == null) {
             invalidCredentialsResponse(context);
             return;
         }
         context.getAuthenticationSession().removeAuthNote(CRM_LOGIN_TOKEN_JWT_AUTH_NOTE);
-        AccessToken crmLoginToken;
-        try {
-            crmLoginToken = new JWSInput(crmLoginTokenJwt).readJsonContent(AccessToken.class);
-        } catch (Exception ex) {
-            invalidCredentialsResponse(context);
+
+        // Stale-while-revalidate: complete the login of a migrated user with the stored attributes, if so configured,
+        // and refresh the attributes in the background
+        var keycloakUser = existingUser;
+        if (isRefreshedInBackground(context, keycloakUser, crmLoginToken.getSubject())) {
+            customerRefresher.schedule(context.getSession(), context.getRealm(), keycloakUser,
+                crmLoginToken.getSubject(), crmLoginTokenJwt, NumberUtils.toLong(
+                    context.getAuthenticatorConfig().getConfig().get(CRM_REFRESH_INTERVAL_CONFIG), 300));
+            if (isLocalValidationEnabled(context))
+                syncKeycloakUserAttributes(context.getSession(), keycloakUser,
+                    Map.of(CRM_LAST_VALIDATION_ATTRIBUTE, String.valueOf(Time.currentTime())));
+            context.setUser(keycloakUser);
+            context.success();
             return;
         }
 
-        var crmCustomer = CrmApiFacade
-            .session(context.getSession())
-            .getCustomer(crmLoginTokenJwt);
+        // Request the CRM customer, unless the login token carries the customer's details
+        var crmCustomer = context.getSession()
+            .getProvider(CrmClientProvider.class)
+            .getLoginTokenVerifier()
+            .customerFromClaims(crmLoginToken);
+        if (crmCustomer.isEmpty())
+            try {
+                crmCustomer = CrmApiFacade
+                    .session(context.getSession())
+                    .getCustomer(crmLoginToken.getSubject(), crmLoginTokenJwt);
+            } catch (CrmApiUnavailableException ex) {
+                crmUnavailableResponse(context);
+                return;
+            }
         if (
             crmCustomer.isEmpty() ||
             Response.Status.fromStatusCode(crmCustomer.get().httpStatus()) != Response.Status.OK
@@ -85,34 +140,78 @@ public class MigratingLoginFormAuthenticator extends UsernamePasswordForm {
             return;
         }
 
-        var username = formData.getFirst(FORM_USERNAME);
-        // Retrieve existing Keycloak user or create new one
-        var keycloakUser = Objects.requireNonNullElse(
-                getKeycloakUser(context.getSession(), context.getRealm(), username),
-                createKeycloakUser(context.getSession(), formData, crmCustomer.get().firstname(),
-                    crmCustomer.get().lastname())
-            );
-        keycloakUser.setAttribute(CRM_CUSTOMER_ID_ATTRIBUTE, List.of(crmLoginToken.getSubject()));
-        keycloakUser.setAttribute(CRM_CUSTOMER_ADDRESS_ATTRIBUTE, List.of(crmCustomer.get().address()));
-        updateKeycloakUser(context.getSession(), keycloakUser);
+        // Create new Keycloak user if there isn't one yet. Users from a bulk pre-migration of the CRM customer exist,
+        // but lack a password. Other users without a password, e.g., of identity providers, never get one here.
+        if (keycloakUser == null)
+            keycloakUser = createKeycloakUser(context.getSession(), formData, crmCustomer.get().firstname(),
+                crmCustomer.get().lastname());
+        else if (isPreMigrated(keycloakUser, crmLoginToken.getSubject()))
+            createPassword(context.getSession(), keycloakUser, formData.getFirst(PASSWORD));
+        else if (!hasPassword(keycloakUser)) {
+            invalidCredentialsResponse(context);
+            return;
+        }
+        var crmAttributes = new HashMap<String, String>();
+        crmAttributes.put(CRM_CUSTOMER_ID_ATTRIBUTE, crmLoginToken.getSubject());
+        crmAttributes.put(CRM_CUSTOMER_ADDRESS_ATTRIBUTE, crmCustomer.get().address());
+        if (isLocalValidationEnabled(context))
+            crmAttributes.put(CRM_LAST_VALIDATION_ATTRIBUTE, String.valueOf(Time.currentTime()));
+        syncKeycloakUserAttributes(context.getSession(), keycloakUser, crmAttributes);
         context.setUser(keycloakUser);
         context.success();
     }
 
     /**
-     * Validate form inputs.
+     * Validate form inputs, traced as a span of its own.
      */
     @Override
     protected boolean validateForm(AuthenticationFlowContext context, MultivaluedMap<String, String> formData) {
+        return traced(context, "validateForm", () -> doValidateForm(context, formData));
+    }
+
+    /**
+     * Validate form inputs against the Keycloak credentials only, i.e., without a CRM login, traced as a span of its
+     * own.
+     */
+    private boolean validateFormLocally(AuthenticationFlowContext context, MultivaluedMap<String, String> formData) {
+        return traced(context, "validateFormLocally", () -> super.validateForm(context, formData));
+    }
+
+    /**
+     * Run the given task in a span with the given name, which records exceptions of the task.
+     */
+    private <T> T traced(AuthenticationFlowContext context, String name, Supplier<T> task) {
+        var tracing = context.getSession().getProvider(TracingProvider.class);
+        tracing.startSpan(MigratingLoginFormAuthenticator.class, "MigratingLoginFormAuthenticator." + name);
+        try {
+            return task.get();
+        } catch (RuntimeException ex) {
+            tracing.error(ex);
+            throw ex;
+        } finally {
+            tracing.endSpan();
+        }
+    }
+
+    private boolean doValidateForm(AuthenticationFlowContext context, MultivaluedMap<String, String> formData) {
         var username = formData.getFirst(FORM_USERNAME);
         var password = formData.getFirst(PASSWORD);
         if (StringUtils.isBlank(username) || StringUtils.isBlank(password))
             return super.validateForm(context, formData);
 
-        // Check whether the given Keycloak user credentials are also valid for the corresponding CRM customer
-        var crmLoginResponse = CrmApiFacade
-            .session(context.getSession())
+        // Check whether the given Keycloak user credentials are also valid for the corresponding CRM customer. The CRM
+        // login is performed asynchronously, while the corresponding Keycloak user is looked up.
+        var crmLoginRequest = CrmApiFacade
+            .async(context.getSession())
             .login(username, password);
+        var keycloakUser = getKeycloakUser(context.getSession(), context.getRealm(), username);
+        Optional<CrmApiFacade.CrmApiFacadeWithSession.LoginResponse> crmLoginResponse;
+        try {
+            crmLoginResponse = CrmApiFacade.await(crmLoginRequest);
+        } catch (CrmApiUnavailableException ex) {
+            crmUnavailableResponse(context);
+            return false;
+        }
         if (
             crmLoginResponse.isEmpty() ||
             Response.Status.fromStatusCode(crmLoginResponse.get().httpStatus()) != Response.Status.OK
@@ -121,27 +220,108 @@ public class MigratingLoginFormAuthenticator extends UsernamePasswordForm {
             return false;
         }
 
-        // Consider validation successful if a Keycloak user for the corresponding CRM customer doesn't exist yet.
-        // Otherwise, let the superclass perform its validation logic on the existing Keycloak user, which comprises,
-        // among others, checking the user's Keycloak credentials for correctness.
-        var validForm = !existsKeycloakUser(context.getSession(), context.getRealm(), username) ||
+        // Verify the CRM login token locally, i.e., its signature, expiry, and audience
+        var crmLoginToken = context.getSession()
+            .getProvider(CrmClientProvider.class)
+            .getLoginTokenVerifier()
+            .verify(context.getSession(), crmLoginResponse.get().loginToken());
+        if (crmLoginToken.isEmpty()) {
+            invalidCredentialsResponse(context);
+            return false;
+        }
+
+        // Consider validation successful if a Keycloak user for the corresponding CRM customer doesn't exist yet, or
+        // was pre-migrated from the verified CRM customer without a password (see CrmPreMigrationJob). Otherwise, let
+        // the superclass perform its validation logic on the existing Keycloak user, which comprises, among others,
+        // checking whether the user is enabled, and the user's Keycloak credentials for correctness.
+        var validForm = keycloakUser == null ||
+            isPreMigrated(keycloakUser, crmLoginToken.get().getSubject()) ||
             super.validateForm(context, formData);
         if (!validForm)
             return false;
 
-        // Store CRM login token for reuse by form action (see above)
+        // Store CRM login token for reuse by form action (see above), which needn't parse the verified token again
         context.getAuthenticationSession().setAuthNote(CRM_LOGIN_TOKEN_JWT_AUTH_NOTE,
             crmLoginResponse.get().loginToken());
+        context.getSession().setAttribute(CRM_LOGIN_TOKEN_SESSION_ATTRIBUTE, crmLoginToken.get());
         return true;
     }
 
+    /**
+     * Check whether the given existing user may be validated against its Keycloak credentials only, i.e., without a
+     * CRM login. This applies to migrated users, if enabled in the authenticator config, and unless the configured
+     * revalidation interval since the user's last validation against the CRM API elapsed.
+     */
+    private boolean isValidatedLocally(AuthenticationFlowContext context, UserModel user) {
+        if (
+            user == null ||
+            !isLocalValidationEnabled(context) ||
+            StringUtils.isBlank(user.getFirstAttribute(CRM_CUSTOMER_ID_ATTRIBUTE)) ||
+            !hasPassword(user)
+        )
+            return false;
+
+        var revalidationInterval = NumberUtils.toLong(
+            context.getAuthenticatorConfig().getConfig().get(CRM_REVALIDATION_INTERVAL_CONFIG), 0);
+        if (revalidationInterval <= 0)
+            return true;
+
+        var lastValidation = NumberUtils.toLong(user.getFirstAttribute(CRM_LAST_VALIDATION_ATTRIBUTE), 0);
+        return Time.currentTime() - lastValidation < revalidationInterval;
+    }
+
+    /**
+     * Check whether the CRM customer attributes of the given existing user may be refreshed in the background, i.e.,
+     * whether the user was migrated from the CRM customer with the given ID before, and background refresh is enabled
+     * in the authenticator config.
+     */
+    private boolean isRefreshedInBackground(AuthenticationFlowContext context, UserModel user, String customerId) {
+        var config = context.getAuthenticatorConfig();
+        return user != null &&
+            config != null &&
+            Boolean.parseBoolean(config.getConfig().get(CRM_BACKGROUND_REFRESH_CONFIG)) &&
+            Objects.equals(user.getFirstAttribute(CRM_CUSTOMER_ID_ATTRIBUTE), customerId) &&
+            hasPassword(user);
+    }
+
+    private boolean isLocalValidationEnabled(AuthenticationFlowContext context) {
+        var config = context.getAuthenticatorConfig();
+        return config != null && Boolean.parseBoolean(config.getConfig().get(CRM_LOCAL_VALIDATION_CONFIG));
+    }
+
     private void invalidCredentialsResponse(AuthenticationFlowContext context) {
         context.failureChallenge(INVALID_CREDENTIALS,
             challenge(context, this.getDefaultChallengeMessage(context), "password"));
     }
 
-    private boolean existsKeycloakUser(KeycloakSession session, RealmModel realm, String username) {
-        return getKeycloakUser(session, realm, username) != null;
+    /**
+     * Fail fast with a generic error if the CRM API is currently unavailable, instead of blaming the user's
+     * credentials.
+     */
+    private void crmUnavailableResponse(AuthenticationFlowContext context) {
+        context.failureChallenge(INTERNAL_ERROR, challenge(context, Messages.INTERNAL_SERVER_ERROR, null));
+    }
+
+    /**
+     * Check whether the given existing user was pre-migrated from the CRM customer with the given ID, and awaits its
+     * password, i.e., whether the user is enabled and linked to the customer, but lacks a password. Other users without
+     * a password, e.g., users of identity providers or service users, aren't considered pre-migrated.
+     */
+    private boolean isPreMigrated(UserModel user, String customerId) {
+        return user.isEnabled() &&
+            StringUtils.isNotBlank(customerId) &&
+            customerId.equals(user.getFirstAttribute(CRM_CUSTOMER_ID_ATTRIBUTE)) &&
+            !hasPassword(user);
+    }
+
+    private boolean hasPassword(UserModel user) {
+        return user.credentialManager().isConfiguredFor(PasswordCredentialModel.TYPE);
+    }
+
+    private void createPassword(KeycloakSession session, UserModel user, String password) {
+        var passwordProvider = (PasswordCredentialProvider) session.getProvider(CredentialProvider.class,
+            PasswordCredentialProviderFactory.PROVIDER_ID);
+        passwordProvider.createCredential(session.getContext().getRealm(), user, password);
     }
 
     private UserModel getKeycloakUser(KeycloakSession session, RealmModel realm, String username) {
@@ -167,10 +347,7 @@ public class MigratingLoginFormAuthenticator extends UsernamePasswordForm {
         user.setLastName(lastname);
         profile.update();
 
-        var passwordProvider = (PasswordCredentialProvider) session.getProvider(CredentialProvider.class,
-            PasswordCredentialProviderFactory.PROVIDER_ID);
-        passwordProvider.createCredential(session.getContext().getRealm(), user, password.get());
-
+        createPassword(session, user, password.get());
         return user;
     }
 
@@ -6,6 +6,10 @@ import org.keycloak.authentication.AuthenticatorFactory;
 import org.keycloak.authentication.authenticators.browser.UsernamePasswordForm;
 import org.keycloak.authentication.authenticators.browser.UsernamePasswordFormFactory;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+
+import java.util.List;
 
 /**
  * Implementation of Keycloak's {@link UsernamePasswordFormFactory} authenticator factory for the
@@ -13,8 +17,46 @@ import org.keycloak.models.KeycloakSession;
  */
 @AutoService(AuthenticatorFactory.class)
 public class MigratingLoginFormAuthenticatorFactory extends UsernamePasswordFormFactory {
-    private static final String PROVIDER_ID = "migrating-login-form-factory";
+    public static final String PROVIDER_ID = "migrating-login-form-factory";
+    public static final String CRM_LOCAL_VALIDATION_CONFIG = "crmLocalValidation";
+    public static final String CRM_REVALIDATION_INTERVAL_CONFIG = "crmRevalidationIntervalSeconds";
+    public static final String CRM_BACKGROUND_REFRESH_CONFIG = "crmBackgroundRefresh";
+    public static final String CRM_REFRESH_INTERVAL_CONFIG = "crmRefreshIntervalSeconds";
+
     private static final UsernamePasswordForm SINGLETON = new MigratingLoginFormAuthenticator();
+    private static final List<ProviderConfigProperty> CONFIG_PROPERTIES = ProviderConfigurationBuilder.create()
+        .property()
+            .name(CRM_LOCAL_VALIDATION_CONFIG)
+            .label("Validate migrated users locally")
+            .helpText("Validate users that were migrated from the CRM system against their Keycloak credentials " +
+                "only, i.e., without a CRM login.")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .defaultValue(false)
+            .add()
+        .property()
+            .name(CRM_REVALIDATION_INTERVAL_CONFIG)
+            .label("CRM revalidation interval")
+            .helpText("Seconds after which migrated users are validated against the CRM system again, even if they " +
+                "are validated locally. Zero disables revalidation.")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue("0")
+            .add()
+        .property()
+            .name(CRM_BACKGROUND_REFRESH_CONFIG)
+            .label("Refresh migrated users in background")
+            .helpText("Complete logins of migrated users with their stored CRM customer attributes, and refresh the " +
+                "attributes from the CRM system in the background.")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .defaultValue(false)
+            .add()
+        .property()
+            .name(CRM_REFRESH_INTERVAL_CONFIG)
+            .label("CRM refresh interval")
+            .helpText("Minimum number of seconds between background refreshes of a user's CRM customer attributes.")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue("300")
+            .add()
+        .build();
 
     @Override
     public String getId() {
@@ -31,6 +73,16 @@ public class MigratingLoginFormAuthenticatorFactory extends UsernamePasswordForm
         return "Controller for the migrating login form.";
     }
 
+    @Override
+    public boolean isConfigurable() {
+        return true;
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return CONFIG_PROPERTIES;
+    }
+
     @Override
     public Authenticator create(KeycloakSession session) {
         return SINGLETON;
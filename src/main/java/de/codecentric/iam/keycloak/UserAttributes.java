@@ -6,6 +6,8 @@ package de.codecentric.iam.keycloak;
 public abstract class UserAttributes {
     public static final String CRM_CUSTOMER_ADDRESS_ATTRIBUTE = "crmCustomerAddress";
     public static final String CRM_CUSTOMER_ID_ATTRIBUTE = "crmCustomerId";
+    public static final String CRM_LAST_REFRESH_ATTRIBUTE = "crmLastRefresh";
+    public static final String CRM_LAST_VALIDATION_ATTRIBUTE = "crmLastValidation";
 
     private UserAttributes() {
         // NOOP
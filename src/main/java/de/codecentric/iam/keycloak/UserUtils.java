@@ -5,6 +5,10 @@ import org.keycloak.models.UserModel;
 import org.keycloak.userprofile.UserProfileProvider;
 import org.keycloak.userprofile.ValidationException;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
 import static org.keycloak.userprofile.UserProfileContext.UPDATE_PROFILE;
 
 /**
@@ -15,9 +19,35 @@ public abstract class UserUtils {
         // NOOP
     }
 
-    public static void updateKeycloakUser(KeycloakSession session, UserModel user) throws ValidationException {
+    /**
+     * Synchronize the given attribute values (e.g., from the CRM system) into the given user. Values that equal the
+     * stored ones are skipped. If no value changed, the user is neither validated nor written. Otherwise, only the
+     * changed attributes are written, and the user is validated against the user profile. Names of root attributes
+     * like {@link UserModel#FIRST_NAME} are supported, and {@code null} values remove attributes.
+     *
+     * @return whether the user changed
+     */
+    public static boolean syncKeycloakUserAttributes(KeycloakSession session, UserModel user,
+        Map<String, String> attributes) throws ValidationException {
+        var changedAttributes = new LinkedHashMap<String, String>();
+        attributes.forEach((name, value) -> {
+            if (!Objects.equals(user.getFirstAttribute(name), value))
+                changedAttributes.put(name, value);
+        });
+        if (changedAttributes.isEmpty())
+            return false;
+
+        changedAttributes.forEach((name, value) -> {
+            if (value != null)
+                user.setSingleAttribute(name, value);
+            else
+                user.removeAttribute(name);
+        });
+
+        // Validation happens after writing, so that the profile regards the new values as unchanged for read-only
+        // attributes. A failed validation rolls back the writes with the surrounding transaction.
         var profileProvider = session.getProvider(UserProfileProvider.class);
-        var profile = profileProvider.create(UPDATE_PROFILE, user.getAttributes(), user);
-        profile.update();
+        profileProvider.create(UPDATE_PROFILE, user.getAttributes(), user).validate();
+        return true;
     }
 }
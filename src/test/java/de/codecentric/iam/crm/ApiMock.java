@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.net.URLDecoder;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.keycloak.OAuth2Constants.SCOPE_EMAIL;
@@ -33,7 +34,8 @@ import static org.keycloak.util.TokenUtil.TOKEN_TYPE_BEARER;
  * Helper class for API mock configuration within a given {@link MicrocksContainer}.
  */
 class ApiMock {
-    private static final String API_TOKEN = "eyJhbGciOiJIUzI1NiIsInR5cCI6IkpXVCJ9." +
+    static final String LOGIN_TOKEN_SECRET = "secret";
+    static final String API_TOKEN = "eyJhbGciOiJIUzI1NiIsInR5cCI6IkpXVCJ9." +
         "eyJzdWIiOiJDUk0gQVBJIiwiaWF0IjoxNTE2MjM5MDIyfQ.3myIhJ8VBtyFcokU-CgA42OoEJZba4SnDAxQzengRlY";
     private static final String EXISTING_CUSTOMER_EMAIL_TEMPLATE_PARAMETER = "${EXISTING_CUSTOMER_EMAIL}";
     private static final String EXISTING_CUSTOMER_LOGIN_TOKEN_TEMPLATE_PARAMETER = "${EXISTING_CUSTOMER_LOGIN_TOKEN}";
@@ -42,19 +44,25 @@ class ApiMock {
     private static final String NEW_CUSTOMER_LOGIN_TOKEN_TEMPLATE_PARAMETER = "${NEW_CUSTOMER_LOGIN_TOKEN}";
     private static final String NEW_CUSTOMER_PASSWORD_TEMPLATE_PARAMETER = "${NEW_CUSTOMER_PASSWORD}";
 
-    private final CustomerMockData existingCustomerMockData;
+    private final String apiExamplesResourcePath;
+    private final String apiMetadataResourcePath;
+    private final String apiSpecResourcePath;
     private final String keycloakApiConfigResourcePath;
     private final MicrocksContainer microcksContainer;
-    private final CustomerMockData newCustomerMockData;
+    private final AtomicLong nextCustomerId = new AtomicLong(1_234_567_890L);
     private final String specifiedApiTitle;
     private final String specifiedApiVersion;
 
     /**
-     * Constructor.
+     * Constructor. The given {@link MicrocksContainer} doesn't need to be started yet. Mock data gets imported into the
+     * started container per test with {@link #createFixture(String)}.
      */
     ApiMock(String apiSpecResourcePath, MicrocksContainer microcksContainer, String apiMetadataResourcePath,
         String apiExamplesResourcePath, String keycloakApiConfigResourcePath) {
         this.microcksContainer = microcksContainer;
+        this.apiSpecResourcePath = apiSpecResourcePath;
+        this.apiExamplesResourcePath = apiExamplesResourcePath;
+        this.apiMetadataResourcePath = apiMetadataResourcePath;
         this.keycloakApiConfigResourcePath = keycloakApiConfigResourcePath;
 
         // Microcks builds the URLs of mocks for OpenAPI definitions from definitions' titles and versions. Therefore,
@@ -62,32 +70,75 @@ class ApiMock {
         var specifiedApiTitleAndVersion = parseSpecifiedApiTitleAndVersion(apiSpecResourcePath);
         specifiedApiTitle = specifiedApiTitleAndVersion.getLeft();
         specifiedApiVersion = specifiedApiTitleAndVersion.getRight();
+    }
+
+    /**
+     * Create the mock data of a single test, which is isolated from that of other tests: The given fixture ID becomes
+     * part of the customers' emails, and of a version of the mocked API of its own. As Microcks dispatches requests
+     * and keeps its store per API version, tests with different fixtures may run concurrently.
+     */
+    Fixture createFixture(String fixtureId) {
+        var apiVersion = specifiedApiVersion + "-" + fixtureId;
+        var mockedApiUrl = getMockedApiUrl(microcksContainer, specifiedApiTitle, apiVersion);
 
         // Setup objects with mock data for an existing CRM customer (test of migrating login Keycloak authenticator)
         // and a new CRM customer (test of CRM registration Keycloak action)
-        var mockedApiUrl = getMockedApiUrl(microcksContainer, specifiedApiTitle, specifiedApiVersion);
-        existingCustomerMockData = new CustomerMockData(
-                "john.doe@example.com",
+        var existingCustomerMockData = new CustomerMockData(
+                "john.doe." + fixtureId + "@example.com",
                 "securePassword1!",
                 "John",
                 "Doe",
-                "1234567890",
+                String.valueOf(nextCustomerId.getAndIncrement()),
                 mockedApiUrl
             );
-        newCustomerMockData = new CustomerMockData(
-                "jane.roe@example.com",
+        var newCustomerMockData = new CustomerMockData(
+                "jane.roe." + fixtureId + "@example.com",
                 "completelyDifferentSecurePassword2!",
                 "Jane",
                 "Roe",
-                "0987654321",
+                String.valueOf(nextCustomerId.getAndIncrement()),
+                mockedApiUrl
+            );
+        // CRM customer that is only exported for the bulk pre-migration, and never logs in
+        var exportedCustomerMockData = new CustomerMockData(
+                "max.mustermann." + fixtureId + "@example.com",
+                "unusedPassword3!",
+                "Max",
+                "Mustermann",
+                String.valueOf(nextCustomerId.getAndIncrement()),
                 mockedApiUrl
             );
 
-        // Import the given Microcks API Examples file (non-intrusive extension of Microcks mocks with mock requests and
-        // responses) and Microcks API Metadata file (retrofitted mock behavior)
-        importExamplesWithRuntimeData(apiExamplesResourcePath, existingCustomerMockData, newCustomerMockData);
-        importMetadataWithRuntimeData(apiMetadataResourcePath, microcksContainer, existingCustomerMockData,
-            newCustomerMockData);
+        // Import the OpenAPI definition with the fixture's API version, the given Microcks API Examples file
+        // (non-intrusive extension of Microcks mocks with mock requests and responses), and Microcks API Metadata file
+        // (retrofitted mock behavior)
+        importArtifactRenderedFromTemplate(microcksContainer, apiSpecResourcePath, true,
+            Pair.of("\"" + specifiedApiVersion + "\"", "\"" + apiVersion + "\""));
+        importExamplesWithRuntimeData(apiExamplesResourcePath, apiVersion, existingCustomerMockData,
+            newCustomerMockData, exportedCustomerMockData);
+        importMetadataWithRuntimeData(apiMetadataResourcePath, microcksContainer, apiVersion,
+            existingCustomerMockData, newCustomerMockData);
+        return new Fixture(apiVersion, existingCustomerMockData, newCustomerMockData, exportedCustomerMockData);
+    }
+
+    /**
+     * Mock data of a single test, i.e., the version of the mocked API, and the customers.
+     */
+    record Fixture(String apiVersion, CustomerMockData existingCustomerMockData,
+        CustomerMockData newCustomerMockData, CustomerMockData exportedCustomerMockData) {
+        // NOOP
+    }
+
+    /**
+     * Path of the resource with the JSON structure in the Keycloak secret for the CRM API of the given realm, which is
+     * also the path of the secret in Keycloak's vault below {@code /opt}.
+     */
+    static String keycloakApiConfigResourcePath(String realmName) {
+        return String.format(
+                "keycloak/secrets/%s_%s",
+                realmName,
+                StringUtils.replace(CrmApiConfig.API_CONFIG_SECRET_NAME, "_", "__")
+            );
     }
 
     /**
@@ -130,7 +181,7 @@ class ApiMock {
         /**
          * Create a JWT token with a 5-minutes expiration that shall act as an access token from CRM customer mock data.
          */
-        private String createAccessToken(String issuer, String subject) {
+        static String createAccessToken(String issuer, String subject) {
             var token = new AccessToken();
             long nowInSeconds = Time.currentTime();
             long fiveMinutesFromNowInSeconds = nowInSeconds + 300;
@@ -147,7 +198,7 @@ class ApiMock {
             keyWrapper.setAlgorithm(algorithm);
             keyWrapper.setUse(KeyUse.SIG);
             keyWrapper.setSecretKey(
-                new SecretKeySpec("secret".getBytes(UTF_8), JavaAlgorithm.getJavaAlgorithm(algorithm))
+                new SecretKeySpec(LOGIN_TOKEN_SECRET.getBytes(UTF_8), JavaAlgorithm.getJavaAlgorithm(algorithm))
             );
 
             return new JWSBuilder().jsonContent(token).sign(new MacSignatureSignerContext(keyWrapper));
@@ -183,37 +234,47 @@ class ApiMock {
      */
     private void importExamplesWithRuntimeData(
         String apiExamplesResourcePath,
+        String apiVersion,
         CustomerMockData existingCustomerMockData,
-        CustomerMockData newCustomerMockData
+        CustomerMockData newCustomerMockData,
+        CustomerMockData exportedCustomerMockData
     ) {
         // The import happens as a Microcks secondary artifact. The given Microcks API Examples file is also considered
         // a template with placeholders in the form ${...} and those placeholders are replaced by actual values in the
         // following step. This step, for example, replaces placeholders for the mock data of an existing CRM customer
         // with the actual mock data, e.g., the customer's login token derived at test runtime. Therefore, we are
         // maximum flexible in adding new mock customer data and use it in Microcks secondary artifacts as we go.
-        importSecondaryArtifactRenderedFromTemplate(
+        importArtifactRenderedFromTemplate(
             microcksContainer,
             apiExamplesResourcePath,
+            false,
+            Pair.of("${API_VERSION}", apiVersion),
             Pair.of(EXISTING_CUSTOMER_EMAIL_TEMPLATE_PARAMETER, existingCustomerMockData.getEmail()),
             Pair.of(EXISTING_CUSTOMER_LOGIN_TOKEN_TEMPLATE_PARAMETER, existingCustomerMockData.getLoginToken()),
             Pair.of(EXISTING_CUSTOMER_PASSWORD_TEMPLATE_PARAMETER, existingCustomerMockData.getPassword()),
             Pair.of("${EXISTING_CUSTOMER_FIRSTNAME}", existingCustomerMockData.getFirstname()),
             Pair.of("${EXISTING_CUSTOMER_LASTNAME}", existingCustomerMockData.getLastname()),
+            Pair.of("${EXISTING_CUSTOMER_ID}", existingCustomerMockData.getCustomerId()),
             Pair.of(NEW_CUSTOMER_EMAIL_TEMPLATE_PARAMETER, newCustomerMockData.getEmail()),
             Pair.of(NEW_CUSTOMER_LOGIN_TOKEN_TEMPLATE_PARAMETER, newCustomerMockData.getLoginToken()),
-            Pair.of(NEW_CUSTOMER_PASSWORD_TEMPLATE_PARAMETER, newCustomerMockData.getPassword())
+            Pair.of(NEW_CUSTOMER_PASSWORD_TEMPLATE_PARAMETER, newCustomerMockData.getPassword()),
+            Pair.of("${EXPORTED_CUSTOMER_EMAIL}", exportedCustomerMockData.getEmail()),
+            Pair.of("${EXPORTED_CUSTOMER_FIRSTNAME}", exportedCustomerMockData.getFirstname()),
+            Pair.of("${EXPORTED_CUSTOMER_LASTNAME}", exportedCustomerMockData.getLastname()),
+            Pair.of("${EXPORTED_CUSTOMER_ID}", exportedCustomerMockData.getCustomerId())
         );
     }
 
     /**
-     * Import a given resource as a Microcks secondary artifact (e.g., Microcks API Examples or Metadata). The resource
-     * is considered a template with placeholders in the form ${...} and those placeholders are replaced by actual
-     * values from the given template replacements.
+     * Import a given resource as a Microcks main artifact (e.g., an OpenAPI definition) or secondary artifact (e.g.,
+     * Microcks API Examples or Metadata). The resource is considered a template with placeholders in the form ${...}
+     * and those placeholders are replaced by actual values from the given template replacements.
      */
     @SafeVarargs
-    private void importSecondaryArtifactRenderedFromTemplate(
+    private void importArtifactRenderedFromTemplate(
         MicrocksContainer microcksContainer,
         String templatedResourcePath,
+        boolean mainArtifact,
         Pair<String, String>... templateReplacements
     ) {
         try {
@@ -223,9 +284,12 @@ class ApiMock {
                     (renderedSoFar, repl) -> StringUtils.replace(renderedSoFar, repl.getKey(), repl.getValue()),
                     (rendered1, rendered2) -> rendered1 + rendered2
                 );
-            var renderedTemplateFile = File.createTempFile("rendered-microcks-secondary-artifact", null);
+            var renderedTemplateFile = File.createTempFile("rendered-microcks-artifact", ".yaml");
             FileUtils.writeStringToFile(renderedTemplateFile, renderedTemplate, UTF_8);
-            microcksContainer.importAsSecondaryArtifact(renderedTemplateFile);
+            if (mainArtifact)
+                microcksContainer.importAsMainArtifact(renderedTemplateFile);
+            else
+                microcksContainer.importAsSecondaryArtifact(renderedTemplateFile);
             renderedTemplateFile.deleteOnExit();
         } catch (Exception ex) {
             throw new RuntimeException(ex);
@@ -242,15 +306,18 @@ class ApiMock {
      * Retrieve a version of the JSON structure in the Keycloak secret with which access to the CRM API can be
      * configured with an actual API token and the URL of the CRM API set to that of the corresponding Microcks mock.
      * That is, if this secret is installed within a running Keycloak instance, Keycloak will interact with the mock for
-     * the CRM API when invoking the methods of {@link CrmApiFacade}.
+     * the CRM API when invoking the methods of {@link CrmApiFacade}. The URL is that of the given fixture's API
+     * version.
      */
-    String mockedKeycloakConfig() {
+    String mockedKeycloakConfig(Fixture fixture) {
         try {
             var apiConfig = CrmApiConfig.parseConfigEntry(
                     FileUtils.readFileToString(getResourceAsFile(keycloakApiConfigResourcePath), UTF_8.name())
                 );
-            apiConfig.setUrl(getMockedApiUrl(microcksContainer, specifiedApiTitle, specifiedApiVersion));
+            apiConfig.setUrl(getMockedApiUrl(microcksContainer, specifiedApiTitle, fixture.apiVersion()));
             apiConfig.setApiToken(API_TOKEN);
+            apiConfig.setLoginTokenSecret(LOGIN_TOKEN_SECRET);
+            apiConfig.setLoginTokenIssuer(apiConfig.getUrl());
             return JsonSerialization.writeValueAsPrettyString(apiConfig);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
@@ -274,10 +341,12 @@ class ApiMock {
      * Import Microcks API Metadata into a running Microcks Testcontainer.
      */
     private void importMetadataWithRuntimeData(String apiMetadataResourcePath, MicrocksContainer microcksContainer,
-        CustomerMockData existingCustomerMockData, CustomerMockData newCustomerMockData) {
-        importSecondaryArtifactRenderedFromTemplate(
+        String apiVersion, CustomerMockData existingCustomerMockData, CustomerMockData newCustomerMockData) {
+        importArtifactRenderedFromTemplate(
             microcksContainer,
             apiMetadataResourcePath,
+            false,
+            Pair.of("${API_VERSION}", apiVersion),
             Pair.of("${API_TOKEN}", API_TOKEN),
             Pair.of(EXISTING_CUSTOMER_EMAIL_TEMPLATE_PARAMETER, existingCustomerMockData.getEmail()),
             Pair.of(EXISTING_CUSTOMER_LOGIN_TOKEN_TEMPLATE_PARAMETER, existingCustomerMockData.getLoginToken()),
@@ -296,12 +365,4 @@ class ApiMock {
     public String getSpecifiedApiVersion() {
         return specifiedApiVersion;
     }
-
-    CustomerMockData getExistingCustomerMockData() {
-        return existingCustomerMockData;
-    }
-
-    public CustomerMockData getNewCustomerMockData() {
-        return newCustomerMockData;
-    }
 }
@@ -0,0 +1,163 @@
+package de.codecentric.iam.crm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests of the {@link CrmApiGuard}, whose calls go to a {@link CrmStubServer} that injects server errors, latencies,
+ * and throttling.
+ */
+class CrmApiGuardTest {
+    private static final String EMAIL = "customer0@example.com";
+
+    private final CrmStubServer crmStub = new CrmStubServer().withGeneratedCustomers(1).start();
+    private final CrmApiConfig.CrmApiConfigEntry apiConfig =
+        new CrmApiConfig.CrmApiConfigEntry(crmStub.getUrl(), ApiMock.API_TOKEN);
+    private final CrmTransport transport = new ApacheCrmTransport(poolSettings());
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @AfterEach
+    void close() throws IOException {
+        executor.close();
+        transport.close();
+        crmStub.close();
+    }
+
+    /**
+     * Server errors open the circuit breaker, which then rejects calls without contacting the CRM API, while other
+     * operations are still called.
+     */
+    @Test
+    void circuitBreakerTest() throws IOException {
+        var guard = new CrmApiGuard(settings(60_000L, 64, 0L));
+        crmStub.withErrorRate(1.0);
+
+        for (var i = 0; i < 4; i++)
+            assertThatThrownBy(() -> guard.execute(CrmApiCall.existsCustomer(apiConfig, EMAIL), transport))
+                .isInstanceOfSatisfying(CrmApiServerErrorException.class, ex ->
+                    assertThat(ex.getHttpStatus()).isEqualTo(503));
+        assertThat(guard.getCircuitBreakerState(CrmApiOperation.EXISTS_CUSTOMER)).isEqualTo("OPEN");
+
+        assertThatThrownBy(() -> guard.execute(CrmApiCall.existsCustomer(apiConfig, EMAIL), transport))
+            .isInstanceOf(CrmApiUnavailableException.class)
+            .hasMessageContaining("circuit breaker open");
+        assertThat(crmStub.getRequests()).isEqualTo(4);
+
+        crmStub.withErrorRate(0);
+        assertThat(guard.execute(CrmApiCall.listCustomers(apiConfig, null, 10), transport).customers()).hasSize(1);
+        assertThat(guard.isCircuitBreakerClosed(CrmApiOperation.LIST_CUSTOMERS)).isTrue();
+    }
+
+    /**
+     * Once the CRM API recovers, probing calls close the circuit breaker after its open duration.
+     */
+    @Test
+    void recoveryTest() throws Exception {
+        var guard = new CrmApiGuard(settings(100L, 64, 0L));
+        crmStub.withErrorRate(1.0);
+        for (var i = 0; i < 4; i++)
+            assertThatThrownBy(() -> guard.execute(CrmApiCall.existsCustomer(apiConfig, EMAIL), transport))
+                .isInstanceOf(CrmApiServerErrorException.class);
+        assertThat(guard.isCircuitBreakerClosed(CrmApiOperation.EXISTS_CUSTOMER)).isFalse();
+
+        crmStub.withErrorRate(0);
+        Thread.sleep(150);
+        assertThat(guard.execute(CrmApiCall.existsCustomer(apiConfig, EMAIL), transport)).isTrue();
+        assertThat(guard.getCircuitBreakerState(CrmApiOperation.EXISTS_CUSTOMER)).isEqualTo("HALF_OPEN");
+        assertThat(guard.execute(CrmApiCall.existsCustomer(apiConfig, EMAIL), transport)).isTrue();
+        assertThat(guard.isCircuitBreakerClosed(CrmApiOperation.EXISTS_CUSTOMER)).isTrue();
+    }
+
+    /**
+     * Slow responses open the circuit breaker, even though they succeed.
+     */
+    @Test
+    void slowCallTest() throws IOException {
+        var guard = new CrmApiGuard(settings(60_000L, 64, 0L));
+        crmStub.withLatency(CrmStubServer.Latency.fixed(Duration.ofMillis(150)));
+
+        for (var i = 0; i < 4; i++)
+            assertThat(guard.execute(CrmApiCall.existsCustomer(apiConfig, EMAIL), transport)).isTrue();
+        assertThat(guard.getCircuitBreakerState(CrmApiOperation.EXISTS_CUSTOMER)).isEqualTo("OPEN");
+    }
+
+    /**
+     * Calls beyond the bulkhead's capacity are rejected across operations without contacting the CRM API, and don't
+     * count as failures of the circuit breaker.
+     */
+    @Test
+    void bulkheadTest() throws Exception {
+        var guard = new CrmApiGuard(settings(60_000L, 2, 0L));
+        crmStub.withLatency(CrmStubServer.Latency.fixed(Duration.ofMillis(500)));
+
+        var inFlight = new ArrayList<CompletableFuture<Boolean>>();
+        for (var i = 0; i < 2; i++)
+            inFlight.add(executeAsync(guard, CrmApiCall.existsCustomer(apiConfig, EMAIL)));
+        while (guard.getConcurrentCalls() < 2)
+            Thread.sleep(10);
+
+        assertThatThrownBy(() -> guard.execute(CrmApiCall.existsCustomer(apiConfig, EMAIL), transport))
+            .isInstanceOf(CrmApiUnavailableException.class)
+            .hasMessageContaining("too many concurrent calls");
+        assertThatThrownBy(() -> guard.execute(CrmApiCall.listCustomers(apiConfig, null, 10), transport))
+            .isInstanceOf(CrmApiUnavailableException.class);
+
+        assertThat(inFlight).allSatisfy(call -> assertThat(call.join()).isTrue());
+        assertThat(guard.getConcurrentCalls()).isZero();
+        assertThat(crmStub.getRequests()).isEqualTo(2);
+        assertThat(guard.isCircuitBreakerClosed(CrmApiOperation.EXISTS_CUSTOMER)).isTrue();
+    }
+
+    /**
+     * Calls that wait for the bulkhead keep the calls in flight within the throttling of the CRM API, so that none of
+     * them is rejected with 429. The stub permits one more request than the bulkhead, because it counts a request as
+     * in flight until its exchange is closed.
+     */
+    @Test
+    void bulkheadWaitTest() {
+        var guard = new CrmApiGuard(settings(60_000L, 2, 5_000L));
+        crmStub
+            .withThrottling(3)
+            .withLatency(CrmStubServer.Latency.fixed(Duration.ofMillis(20)));
+
+        var calls = new ArrayList<CompletableFuture<Boolean>>();
+        for (var i = 0; i < 8; i++)
+            calls.add(executeAsync(guard, CrmApiCall.existsCustomer(apiConfig, EMAIL)));
+
+        assertThat(calls).allSatisfy(call -> assertThat(call.join()).isTrue());
+        assertThat(crmStub.getRequests()).isEqualTo(8);
+    }
+
+    private CompletableFuture<Boolean> executeAsync(CrmApiGuard guard, CrmApiCall<Boolean> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return guard.execute(call, transport);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, executor);
+    }
+
+    /**
+     * Settings with failure and slow call rate thresholds of 50%, a slow call duration of 100 ms, and a window of four
+     * calls, which are evaluated from the fourth call on.
+     */
+    private static CrmResilienceSettings settings(long openDurationMillis, int maxConcurrentCalls, long maxWaitMillis) {
+        return new CrmResilienceSettings(50, 50, 100L, 4, 4, openDurationMillis, 2, maxConcurrentCalls, maxWaitMillis);
+    }
+
+    static CrmHttpPoolSettings poolSettings() {
+        return new CrmHttpPoolSettings(16, 16, 60_000L, 30_000L, 30_000L, 60_000L, 16, 3600);
+    }
+}
@@ -0,0 +1,120 @@
+package de.codecentric.iam.crm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests of the {@link CrmCircuitBreaker}'s sliding window and state transitions, whose outcomes are recorded by the
+ * tests instead of calls of the CRM API.
+ */
+class CrmCircuitBreakerTest {
+    private static final long FAST_CALL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW_CALL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long OPEN_DURATION_MILLIS = 100;
+
+    /**
+     * Rates aren't evaluated before the minimum number of calls is recorded.
+     */
+    @Test
+    void minimumCallsTest() {
+        var circuitBreaker = circuitBreaker(10, 5, 1);
+
+        for (var i = 0; i < 4; i++)
+            circuitBreaker.onResult(true, FAST_CALL_NANOS);
+        assertThat(circuitBreaker.getState()).isEqualTo(CrmCircuitBreaker.State.CLOSED);
+
+        circuitBreaker.onResult(false, FAST_CALL_NANOS);
+        assertThat(circuitBreaker.getState()).isEqualTo(CrmCircuitBreaker.State.OPEN);
+        assertThat(circuitBreaker.tryAcquirePermission()).isFalse();
+    }
+
+    /**
+     * Outcomes of calls that dropped out of the sliding window don't count anymore.
+     */
+    @Test
+    void slidingWindowTest() {
+        var circuitBreaker = circuitBreaker(4, 4, 1);
+
+        circuitBreaker.onResult(true, FAST_CALL_NANOS);
+        for (var i = 0; i < 4; i++)
+            circuitBreaker.onResult(false, FAST_CALL_NANOS);
+        circuitBreaker.onResult(true, FAST_CALL_NANOS);
+        assertThat(circuitBreaker.getState()).isEqualTo(CrmCircuitBreaker.State.CLOSED);
+
+        // Two of the last four calls failed, while three of all seven calls did
+        circuitBreaker.onResult(true, FAST_CALL_NANOS);
+        assertThat(circuitBreaker.getState()).isEqualTo(CrmCircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    void slowCallRateTest() {
+        var circuitBreaker = circuitBreaker(4, 2, 1);
+
+        circuitBreaker.onResult(false, SLOW_CALL_NANOS);
+        assertThat(circuitBreaker.getState()).isEqualTo(CrmCircuitBreaker.State.CLOSED);
+
+        circuitBreaker.onResult(false, SLOW_CALL_NANOS);
+        assertThat(circuitBreaker.getState()).isEqualTo(CrmCircuitBreaker.State.OPEN);
+    }
+
+    /**
+     * After the open duration, the breaker permits a limited number of probing calls, and closes once all of them
+     * succeeded. Released permissions may be acquired by other probing calls.
+     */
+    @Test
+    void halfOpenTest() throws InterruptedException {
+        var circuitBreaker = circuitBreaker(4, 1, 2);
+        open(circuitBreaker);
+
+        Thread.sleep(OPEN_DURATION_MILLIS + 50);
+        assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+        assertThat(circuitBreaker.getState()).isEqualTo(CrmCircuitBreaker.State.HALF_OPEN);
+        assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+        assertThat(circuitBreaker.tryAcquirePermission()).isFalse();
+
+        circuitBreaker.releasePermission();
+        assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+
+        circuitBreaker.onResult(false, FAST_CALL_NANOS);
+        assertThat(circuitBreaker.getState()).isEqualTo(CrmCircuitBreaker.State.HALF_OPEN);
+        circuitBreaker.onResult(false, FAST_CALL_NANOS);
+        assertThat(circuitBreaker.getState()).isEqualTo(CrmCircuitBreaker.State.CLOSED);
+        assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+    }
+
+    /**
+     * A failed or slow probing call reopens the breaker for another open duration.
+     */
+    @Test
+    void halfOpenReopenTest() throws InterruptedException {
+        var circuitBreaker = circuitBreaker(4, 1, 2);
+        open(circuitBreaker);
+
+        Thread.sleep(OPEN_DURATION_MILLIS + 50);
+        assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+        circuitBreaker.onResult(true, FAST_CALL_NANOS);
+        assertThat(circuitBreaker.getState()).isEqualTo(CrmCircuitBreaker.State.OPEN);
+        assertThat(circuitBreaker.tryAcquirePermission()).isFalse();
+
+        Thread.sleep(OPEN_DURATION_MILLIS + 50);
+        assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+        circuitBreaker.onResult(false, SLOW_CALL_NANOS);
+        assertThat(circuitBreaker.getState()).isEqualTo(CrmCircuitBreaker.State.OPEN);
+    }
+
+    /**
+     * Circuit breaker with failure and slow call rate thresholds of 50% and a slow call duration of 100 ms.
+     */
+    private static CrmCircuitBreaker circuitBreaker(int slidingWindowSize, int minimumCalls, int halfOpenCalls) {
+        return new CrmCircuitBreaker(CrmApiOperation.EXISTS_CUSTOMER, new CrmResilienceSettings(50, 50, 100L,
+            slidingWindowSize, minimumCalls, OPEN_DURATION_MILLIS, halfOpenCalls, 64, 0L));
+    }
+
+    private static void open(CrmCircuitBreaker circuitBreaker) {
+        circuitBreaker.onResult(true, FAST_CALL_NANOS);
+        assertThat(circuitBreaker.getState()).isEqualTo(CrmCircuitBreaker.State.OPEN);
+    }
+}
@@ -0,0 +1,190 @@
+package de.codecentric.iam.crm;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests of the {@link CrmContentEncoding} of requests and responses, including the counting of transferred bytes, and
+ * of compressed exchanges with a {@link CrmStubServer}.
+ */
+class CrmContentEncodingTest {
+    private static final String API_URL = "https://crm.example.com";
+    private static final byte[] CONTENT = """
+        {"firstname": "Max", "lastname": "Mustermann", "address": "Musterstrasse 1, 12345 Musterstadt, Germany"}
+        """.repeat(10).getBytes(UTF_8);
+
+    @Test
+    void gzipResponseTest() throws IOException {
+        var transferredContent = encode(CONTENT, GZIPOutputStream::new);
+        var transferredBytes = new CrmApiCall.TransferredBytes();
+
+        assertThat(decode(transferredContent, CrmContentEncoding.GZIP, transferredBytes)).isEqualTo(CONTENT);
+        assertThat(transferredBytes.receivedEncoding).isEqualTo(CrmContentEncoding.GZIP);
+        assertThat(transferredBytes.received).hasValue(transferredContent.length);
+        assertThat(transferredContent.length).isLessThan(CONTENT.length);
+    }
+
+    @Test
+    void deflateResponseTest() throws IOException {
+        var transferredContent = encode(CONTENT, DeflaterOutputStream::new);
+        var transferredBytes = new CrmApiCall.TransferredBytes();
+
+        assertThat(decode(transferredContent, CrmContentEncoding.DEFLATE, transferredBytes)).isEqualTo(CONTENT);
+        assertThat(transferredBytes.receivedEncoding).isEqualTo(CrmContentEncoding.DEFLATE);
+        assertThat(transferredBytes.received).hasValue(transferredContent.length);
+    }
+
+    /**
+     * Draining counts all transferred bytes of a response, even if its handler didn't read the content.
+     */
+    @Test
+    void drainTest() throws IOException {
+        var transferredContent = encode(CONTENT, GZIPOutputStream::new);
+        var transferredBytes = new CrmApiCall.TransferredBytes();
+        var response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        var entity = new ByteArrayEntity(transferredContent);
+        entity.setContentEncoding(CrmContentEncoding.GZIP);
+        response.setEntity(entity);
+
+        var decodingEntity = CrmContentEncoding.decode(response, transferredBytes);
+        assertThat(response.containsHeader(HttpHeaders.CONTENT_ENCODING)).isFalse();
+        assertThat(decodingEntity.getContentLength()).isEqualTo(-1);
+        decodingEntity.drain();
+        assertThat(transferredBytes.received).hasValue(transferredContent.length);
+    }
+
+    /**
+     * Empty responses labelled as compressed, e.g., with status 204, are drained without decoding them.
+     */
+    @Test
+    void emptyGzipResponseTest() throws IOException {
+        var transferredBytes = new CrmApiCall.TransferredBytes();
+        var response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 204, "No Content");
+        var entity = new ByteArrayEntity(new byte[0]);
+        entity.setContentEncoding(CrmContentEncoding.GZIP);
+        response.setEntity(entity);
+
+        CrmContentEncoding.decode(response, transferredBytes).drain();
+        assertThat(transferredBytes.receivedEncoding).isEqualTo(CrmContentEncoding.GZIP);
+        assertThat(transferredBytes.received).hasValue(0);
+    }
+
+    @Test
+    void identityResponseTest() throws IOException {
+        var transferredBytes = new CrmApiCall.TransferredBytes();
+
+        assertThat(decode(CONTENT, null, transferredBytes)).isEqualTo(CONTENT);
+        assertThat(transferredBytes.receivedEncoding).isEqualTo(CrmContentEncoding.IDENTITY);
+        assertThat(transferredBytes.received).hasValue(CONTENT.length);
+    }
+
+    /**
+     * Request bodies are compressed from the threshold on, and their compressed bytes are counted.
+     */
+    @Test
+    void requestCompressionTest() throws IOException {
+        var call = createCustomer();
+        new CrmContentEncoding(true, 16).prepare(call);
+        assertThat(call.request().getFirstHeader(HttpHeaders.ACCEPT_ENCODING).getValue()).isEqualTo("gzip, deflate");
+
+        var sentContent = send(call);
+        assertThat(call.transferredBytes().sentEncoding).isEqualTo(CrmContentEncoding.GZIP);
+        assertThat(call.transferredBytes().sent).hasValue(sentContent.length);
+        try (var in = new GZIPInputStream(new ByteArrayInputStream(sentContent))) {
+            assertThat(new String(in.readAllBytes(), UTF_8)).contains("\"email\"");
+        }
+
+        var smallCall = createCustomer();
+        new CrmContentEncoding(true, 10_000).prepare(smallCall);
+        var smallSentContent = send(smallCall);
+        assertThat(smallCall.transferredBytes().sentEncoding).isEqualTo(CrmContentEncoding.IDENTITY);
+        assertThat(smallCall.transferredBytes().sent).hasValue(smallSentContent.length);
+
+        var uncompressedCall = createCustomer();
+        new CrmContentEncoding(false, 16).prepare(uncompressedCall);
+        assertThat(uncompressedCall.request().containsHeader(HttpHeaders.ACCEPT_ENCODING)).isFalse();
+        send(uncompressedCall);
+        assertThat(uncompressedCall.transferredBytes().sentEncoding).isEqualTo(CrmContentEncoding.IDENTITY);
+    }
+
+    /**
+     * The stub decodes compressed request bodies, and compresses its responses if requests accept it.
+     */
+    @Test
+    void stubServerTest() throws IOException {
+        var contentEncoding = new CrmContentEncoding(true, 16);
+        try (var crmStub = new CrmStubServer().withGeneratedCustomers(20).start();
+             var transport = new ApacheCrmTransport(CrmApiGuardTest.poolSettings())) {
+            var apiConfig = new CrmApiConfig.CrmApiConfigEntry(crmStub.getUrl(), ApiMock.API_TOKEN);
+
+            var createCall = CrmApiCall.createCustomer(apiConfig, "new@example.com", "password", "New", "Customer");
+            contentEncoding.prepare(createCall);
+            assertThat(createCall.execute(transport)).isTrue();
+            assertThat(crmStub.hasCustomer("new@example.com")).isTrue();
+            assertThat(createCall.transferredBytes().sentEncoding).isEqualTo(CrmContentEncoding.GZIP);
+            assertThat(createCall.transferredBytes().sent).hasPositiveValue();
+
+            var listCall = CrmApiCall.listCustomers(apiConfig, null, 100);
+            contentEncoding.prepare(listCall);
+            assertThat(listCall.execute(transport).customers()).hasSize(21);
+            assertThat(listCall.transferredBytes().receivedEncoding).isEqualTo(CrmContentEncoding.GZIP);
+            assertThat(listCall.transferredBytes().received).hasPositiveValue();
+        }
+    }
+
+    private static CrmApiCall<Boolean> createCustomer() {
+        return CrmApiCall.createCustomer(new CrmApiConfig.CrmApiConfigEntry(API_URL, ApiMock.API_TOKEN),
+            "new@example.com", "password", "New", "Customer");
+    }
+
+    private static byte[] send(CrmApiCall<?> call) throws IOException {
+        var sentContent = new ByteArrayOutputStream();
+        ((HttpEntityEnclosingRequest) call.request()).getEntity().writeTo(sentContent);
+        return sentContent.toByteArray();
+    }
+
+    /**
+     * Decode the given transferred content of a response with the given content encoding.
+     */
+    private static byte[] decode(byte[] transferredContent, String encoding,
+        CrmApiCall.TransferredBytes transferredBytes) throws IOException {
+        var response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        var entity = new ByteArrayEntity(transferredContent);
+        if (encoding != null)
+            entity.setContentEncoding(encoding);
+        response.setEntity(entity);
+
+        var decodingEntity = CrmContentEncoding.decode(response, transferredBytes);
+        var content = response.getEntity().getContent().readAllBytes();
+        decodingEntity.drain();
+        return content;
+    }
+
+    private static byte[] encode(byte[] content, Encoder encoder) throws IOException {
+        var encodedContent = new ByteArrayOutputStream();
+        try (var out = encoder.wrap(encodedContent)) {
+            out.write(content);
+        }
+        return encodedContent.toByteArray();
+    }
+
+    @FunctionalInterface
+    private interface Encoder {
+        OutputStream wrap(OutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,133 @@
+package de.codecentric.iam.crm;
+
+import de.codecentric.iam.crm.CrmApiFacade.CrmApiFacadeWithSession.GetCustomerResponse;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests of the {@link CrmCustomerCache} in an embedded Infinispan and in memory, and of its use by the
+ * {@link CrmApiFacade} with a {@link CrmStubServer}.
+ */
+class CrmCustomerCacheTest {
+    private static final String API_URL = "https://crm.example.com";
+    private static final String CUSTOMER_ID = "1000000000";
+
+    private final DefaultCacheManager cacheManager = new DefaultCacheManager();
+    private final CrmCustomerCache customerCache = new CrmCustomerCache(300L, 100L);
+
+    @BeforeEach
+    void defineUserCache() {
+        cacheManager.defineConfiguration(InfinispanConnectionProvider.USER_CACHE_NAME,
+            new ConfigurationBuilder().build());
+    }
+
+    @AfterEach
+    void stopCacheManager() {
+        cacheManager.stop();
+    }
+
+    /**
+     * Only details from successful requests are cached, and entries are qualified with the URL of the CRM API.
+     */
+    @Test
+    void putAndGetTest() {
+        var cache = cacheManager.<String, String>getCache(InfinispanConnectionProvider.USER_CACHE_NAME);
+        var customer = new GetCustomerResponse(200, "Max", "Mustermann", "Musterstrasse 1, 12345 Musterstadt");
+
+        customerCache.put(cache, API_URL, CUSTOMER_ID, customer);
+        assertThat(customerCache.get(cache, API_URL, CUSTOMER_ID)).contains(customer);
+        assertThat(customerCache.get(cache, "https://other-crm.example.com", CUSTOMER_ID)).isEmpty();
+        assertThat(customerCache.get(null, API_URL, CUSTOMER_ID)).isEmpty();
+
+        customerCache.put(cache, API_URL, "1000000001", new GetCustomerResponse(401, "", "", ""));
+        assertThat(customerCache.get(cache, API_URL, "1000000001")).isEmpty();
+        assertThat(cache.size()).isOne();
+    }
+
+    /**
+     * Without an Infinispan cache, customer details are cached in memory until they expire, and the least recently
+     * used ones are evicted beyond the maximum count.
+     */
+    @Test
+    void inMemoryTest() throws InterruptedException {
+        var smallCache = new CrmCustomerCache(300L, 2L);
+        var customer = new GetCustomerResponse(200, "Max", "Mustermann", "Musterstrasse 1, 12345 Musterstadt");
+
+        smallCache.put(null, API_URL, "1000000000", customer);
+        smallCache.put(null, API_URL, "1000000001", customer);
+        assertThat(smallCache.get(null, API_URL, "1000000000")).contains(customer);
+        smallCache.put(null, API_URL, "1000000002", customer);
+        assertThat(smallCache.get(null, API_URL, "1000000000")).contains(customer);
+        assertThat(smallCache.get(null, API_URL, "1000000001")).isEmpty();
+
+        Thread.sleep(400);
+        assertThat(smallCache.get(null, API_URL, "1000000002")).isEmpty();
+    }
+
+    @Test
+    void invalidEntryTest() {
+        var cache = cacheManager.<String, String>getCache(InfinispanConnectionProvider.USER_CACHE_NAME);
+        cache.put(API_URL + " " + CUSTOMER_ID, "not json");
+
+        assertThat(customerCache.get(cache, API_URL, CUSTOMER_ID)).isEmpty();
+        assertThat(cache.isEmpty()).isTrue();
+    }
+
+    /**
+     * The facade serves a customer's details from the Infinispan cache, which the Infinispan configuration defines
+     * like Keycloak's, until they expire, while refreshes bypass the cache.
+     */
+    @Test
+    void facadeTest() throws Exception {
+        cacheManager.defineConfiguration(CrmCustomerCache.CACHE_NAME, new ConfigurationBuilder()
+            .expiration().lifespan(300L, TimeUnit.MILLISECONDS)
+            .build());
+        try (var crmStub = new CrmStubServer().withGeneratedCustomers(1).start();
+             var testSession = new CrmTestSession(crmStub.getUrl()).withCustomerCache(customerCache, cacheManager)) {
+            var loginToken = ApiMock.CustomerMockData.createAccessToken(crmStub.getUrl(), CUSTOMER_ID);
+
+            var customer = CrmApiFacade.session(testSession.session()).getCustomer(CUSTOMER_ID, loginToken);
+            assertThat(customer).map(GetCustomerResponse::firstname).contains("First0");
+            assertThat(cacheManager.getCache(CrmCustomerCache.CACHE_NAME).size()).isOne();
+
+            assertThat(CrmApiFacade.session(testSession.session()).getCustomer(CUSTOMER_ID, loginToken))
+                .isEqualTo(customer);
+            assertThat(crmStub.getRequests()).isEqualTo(1);
+
+            assertThat(CrmApiFacade.session(testSession.session()).refreshCustomer(CUSTOMER_ID, loginToken))
+                .isEqualTo(customer);
+            assertThat(crmStub.getRequests()).isEqualTo(2);
+
+            Thread.sleep(400);
+            assertThat(CrmApiFacade.session(testSession.session()).getCustomer(CUSTOMER_ID, loginToken))
+                .isEqualTo(customer);
+            assertThat(crmStub.getRequests()).isEqualTo(3);
+        }
+    }
+
+    /**
+     * Unless the Infinispan configuration defines the cache, the facade caches customer details in memory, and the
+     * cache isn't defined by the extension.
+     */
+    @Test
+    void inMemoryFacadeTest() throws Exception {
+        try (var crmStub = new CrmStubServer().withGeneratedCustomers(1).start();
+             var testSession = new CrmTestSession(crmStub.getUrl()).withCustomerCache(customerCache, cacheManager)) {
+            var loginToken = ApiMock.CustomerMockData.createAccessToken(crmStub.getUrl(), CUSTOMER_ID);
+
+            var customer = CrmApiFacade.session(testSession.session()).getCustomer(CUSTOMER_ID, loginToken);
+            assertThat(CrmApiFacade.session(testSession.session()).getCustomer(CUSTOMER_ID, loginToken))
+                .isEqualTo(customer);
+            assertThat(crmStub.getRequests()).isEqualTo(1);
+            assertThat(cacheManager.getCacheConfiguration(CrmCustomerCache.CACHE_NAME)).isNull();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package de.codecentric.iam.crm;
+
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import de.codecentric.iam.keycloak.testframework.extensions.testcontainers.TestcontainersKeycloakServerConfig;
+import de.codecentric.iam.keycloak.testframework.extensions.testcontainers.TestcontainersKeycloakServerConfigBuilder;
+import org.keycloak.testframework.annotations.KeycloakIntegrationTest;
+
+/**
+ * Keycloak integration tests of {@link CrmTest}, whose Keycloak calls the CRM API with the {@link JdkCrmTransport}
+ * instead of the default transport. The tests run in a Keycloak testcontainer of their own, but share Microcks.
+ */
+@KeycloakIntegrationTest(config = CrmJdkTransportTest.KeycloakTestcontainerConfig.class)
+class CrmJdkTransportTest extends CrmTest {
+    static class KeycloakTestcontainerConfig extends TestcontainersKeycloakServerConfig {
+        static final TestcontainersKeycloakServerConfigBuilder builder =
+            keycloakConfigBuilder(CrmTransport.JDK, 32782);
+
+        @Override
+        public TestcontainersKeycloakServerConfigBuilder getBuilder() {
+            return builder;
+        }
+    }
+
+    @Override
+    KeycloakContainer keycloakContainer() {
+        return KeycloakTestcontainerConfig.builder.getConfiguredKeycloakContainer();
+    }
+}
@@ -0,0 +1,188 @@
+package de.codecentric.iam.crm;
+
+import de.codecentric.iam.keycloak.testframework.extensions.testcontainers.TestcontainersKeycloakServerConfig;
+import de.codecentric.iam.keycloak.testframework.extensions.testcontainers.TestcontainersKeycloakServerConfigBuilder;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.keycloak.testframework.annotations.InjectRealm;
+import org.keycloak.testframework.annotations.KeycloakIntegrationTest;
+import org.keycloak.testframework.realm.ManagedRealm;
+import org.testcontainers.Testcontainers;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static de.codecentric.iam.crm.CrmTest.TEST_REALM_NAME;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Load test of the migrating login and the CRM registration, which drives Keycloak's login and registration forms over
+ * plain HTTP, i.e., without a browser, with the given number of concurrent virtual users. Keycloak runs in a
+ * testcontainer, and calls the in-process {@link CrmStubServer} with generated customers on the host. The test reports
+ * throughput and latency percentiles of complete flows, i.e., requesting and submitting a form, separately for
+ * first-time logins that migrate CRM customers, repeat logins of migrated users, and registrations.
+ * <p>
+ * The test is excluded from regular builds. Run it with {@code mvn -Pload test}, and adjust it with the following
+ * system properties:
+ * <ul>
+ *     <li>{@code crm.load.customers}: Number of generated CRM customers, which log in twice, and of registrations
+ *     (default: {@value #DEFAULT_CUSTOMERS}).</li>
+ *     <li>{@code crm.load.concurrency}: Number of concurrent virtual users (default:
+ *     {@value #DEFAULT_CONCURRENCY}).</li>
+ *     <li>{@code crm.load.warmup}: Number of failing logins of unknown customers that warm up Keycloak before
+ *     measurement (default: {@value #DEFAULT_WARMUP}).</li>
+ *     <li>{@code crm.load.crm-median-latency-millis}: Median of the log-normally distributed latency of the CRM stub,
+ *     whose 99th percentile is five times the median (default: {@value #DEFAULT_CRM_MEDIAN_LATENCY_MILLIS}).</li>
+ *     <li>{@code crm.load.transport}: {@link CrmTransport} of Keycloak's CRM API calls, i.e., {@code apache} or
+ *     {@code jdk} (default: {@code apache}).</li>
+ * </ul>
+ */
+@Tag("load")
+@KeycloakIntegrationTest(config = CrmLoadTest.KeycloakTestcontainerConfig.class)
+class CrmLoadTest {
+    private static final Logger logger = Logger.getLogger(CrmLoadTest.class);
+
+    private static final int DEFAULT_CUSTOMERS = 1000;
+    private static final int DEFAULT_CONCURRENCY = 32;
+    private static final int DEFAULT_WARMUP = 200;
+    private static final int DEFAULT_CRM_MEDIAN_LATENCY_MILLIS = 20;
+    private static final int CUSTOMERS = Integer.getInteger("crm.load.customers", DEFAULT_CUSTOMERS);
+    private static final int CONCURRENCY = Integer.getInteger("crm.load.concurrency", DEFAULT_CONCURRENCY);
+    private static final int WARMUP = Integer.getInteger("crm.load.warmup", DEFAULT_WARMUP);
+    private static final Duration CRM_MEDIAN_LATENCY = Duration.ofMillis(
+        Integer.getInteger("crm.load.crm-median-latency-millis", DEFAULT_CRM_MEDIAN_LATENCY_MILLIS));
+    private static final String TRANSPORT = System.getProperty("crm.load.transport", CrmTransport.APACHE);
+
+    private static final CrmStubServer crmStub = new CrmStubServer()
+        .withGeneratedCustomers(CUSTOMERS)
+        .withLatency(CRM_MEDIAN_LATENCY.isZero()
+            ? CrmStubServer.Latency.none()
+            : CrmStubServer.Latency.logNormal(CRM_MEDIAN_LATENCY, CRM_MEDIAN_LATENCY.multipliedBy(5)))
+        .start();
+
+    private final KeycloakForms keycloakForms = new KeycloakForms();
+
+    /**
+     * Configuration of the Keycloak testcontainer, which reaches the CRM stub on the host via Testcontainers' host port
+     * forwarding.
+     */
+    static class KeycloakTestcontainerConfig extends TestcontainersKeycloakServerConfig {
+        @Override
+        public TestcontainersKeycloakServerConfigBuilder getBuilder() {
+            var crmStubPort = URI.create(crmStub.getUrl()).getPort();
+            Testcontainers.exposeHostPorts(crmStubPort);
+            return new TestcontainersKeycloakServerConfigBuilder()
+                .withCopyClasspathResourceToContainer("keycloak/keycloak.conf", "/opt/keycloak/conf/keycloak.conf")
+                .withEnv("KC_SPI_CRM_CLIENT_DEFAULT_TRANSPORT", TRANSPORT)
+                .withWriteStringToContainerFile(crmStub.keycloakConfig("http://host.testcontainers.internal:" +
+                    crmStubPort), "/opt/" + ApiMock.keycloakApiConfigResourcePath(TEST_REALM_NAME))
+                .withProviderClassesFrom("target/classes")
+                .withOptimizedImage()
+                .withRealmImportFile("keycloak/test-realm.json");
+        }
+    }
+
+    @InjectRealm(attachTo = TEST_REALM_NAME)
+    private ManagedRealm testRealm;
+
+    @AfterAll
+    static void stopCrmStub() {
+        crmStub.close();
+    }
+
+    /**
+     * Measure first-time logins, which migrate all generated CRM customers into Keycloak users, repeat logins of the
+     * migrated users, and registrations of new CRM customers.
+     */
+    @Test
+    void loginAndRegistrationLoadTest() throws InterruptedException {
+        logger.infof("Load test with %d customers, %d concurrent users, and the %s transport", CUSTOMERS, CONCURRENCY,
+            TRANSPORT);
+        var realmUrl = testRealm.getBaseUrl();
+        runLoad("Warmup", WARMUP, n -> keycloakForms.login(realmUrl, "unknown" + n + "@example.com",
+            "password" + n + "!"));
+
+        var userCountBeforeMigration = testRealm.admin().users().count();
+        var migration = runLoad("First-time login", CUSTOMERS,
+            n -> keycloakForms.login(realmUrl, "customer" + n + "@example.com", "password" + n + "!"));
+        assertThat(migration.failures()).isZero();
+        assertThat(testRealm.admin().users().count()).isEqualTo(userCountBeforeMigration + CUSTOMERS);
+
+        var repeat = runLoad("Repeat login", CUSTOMERS,
+            n -> keycloakForms.login(realmUrl, "customer" + n + "@example.com", "password" + n + "!"));
+        assertThat(repeat.failures()).isZero();
+
+        var registration = runLoad("Registration", CUSTOMERS,
+            n -> keycloakForms.register(realmUrl, "registrant" + n + "@example.com", "password" + n + "!",
+                "Registrant" + n, "Load"));
+        assertThat(registration.failures()).isZero();
+        assertThat(crmStub.hasCustomer("registrant0@example.com")).isTrue();
+    }
+
+    /**
+     * Perform the given flow the given number of times with {@link #CONCURRENCY} virtual users, i.e., as a closed
+     * model in which each user starts its next flow as soon as the previous one has completed.
+     */
+    private LoadResult runLoad(String name, int count, Flow flow) throws InterruptedException {
+        var latencies = new long[count];
+        var failures = new AtomicInteger();
+        var next = new AtomicInteger();
+        var start = System.nanoTime();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (var user = 0; user < CONCURRENCY; user++)
+                executor.submit(() -> {
+                    for (var n = next.getAndIncrement(); n < count; n = next.getAndIncrement()) {
+                        var flowStart = System.nanoTime();
+                        try {
+                            if (!flow.perform(n))
+                                failures.incrementAndGet();
+                        } catch (Exception ex) {
+                            logger.debugf(ex, "%s flow %d failed", name, n);
+                            failures.incrementAndGet();
+                        }
+                        latencies[n] = System.nanoTime() - flowStart;
+                    }
+                });
+        }
+
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        var result = new LoadResult(name, count, failures.get(), System.nanoTime() - start, latencies);
+        logger.info(result);
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface Flow {
+        boolean perform(int n) throws Exception;
+    }
+
+    /**
+     * Throughput and latency percentiles of a load phase.
+     */
+    private record LoadResult(String name, int count, int failures, long durationNanos, long[] latencies) {
+        private double percentileMillis(double percentile) {
+            if (latencies.length == 0)
+                return 0;
+
+            var sorted = latencies.clone();
+            Arrays.sort(sorted);
+            var index = Math.max((int) Math.ceil(percentile * sorted.length) - 1, 0);
+            return sorted[index] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "%s: %d flows, %d failures, %.1f flows/s, latency p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms",
+                name, count, failures, count / (durationNanos / (double) TimeUnit.SECONDS.toNanos(1)),
+                percentileMillis(0.5), percentileMillis(0.95), percentileMillis(0.99), percentileMillis(1));
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package de.codecentric.iam.crm;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.AsymmetricSignatureSignerContext;
+import org.keycloak.crypto.JavaAlgorithm;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.crypto.MacSignatureSignerContext;
+import org.keycloak.crypto.SignatureSignerContext;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.jose.jwk.JWKBuilder;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AddressClaimSet;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests of the {@link CrmLoginTokenVerifier} with HMAC secrets, JWKS, and without key material. JWKS are served by a
+ * counting function instead of the CRM API, so that refreshes of the cached keys can be asserted.
+ */
+class CrmLoginTokenVerifierTest {
+    private static final String ISSUER = "https://crm.example.com";
+    private static final String JWKS_URL = ISSUER + "/jwks";
+    private static final String SUBJECT = "1000000000";
+
+    private final AtomicInteger jwksFetches = new AtomicInteger();
+    private CrmLoginTokenVerifier verifier;
+
+    @BeforeEach
+    void createVerifier() {
+        verifier = new CrmLoginTokenVerifier(3_600_000L, 60_000L, 10, false);
+    }
+
+    @Test
+    void hmacSignedTokenTest() {
+        var apiConfig = hmacConfig();
+
+        var token = verifier.verify(apiConfig, token(ISSUER, hmacSigner(ApiMock.LOGIN_TOKEN_SECRET)), noJwks());
+        assertThat(token).map(AccessToken::getSubject).contains(SUBJECT);
+
+        assertThat(verifier.verify(apiConfig, token(ISSUER, hmacSigner("other secret")), noJwks())).isEmpty();
+    }
+
+    /**
+     * Tokens whose algorithm doesn't match the configured key material are rejected, so that, e.g., public keys can't
+     * be misused as HMAC secrets.
+     */
+    @Test
+    void unexpectedAlgorithmTest() throws Exception {
+        var rsaToken = token(ISSUER, rsaSigner(rsaKeyPair(), "key-1"));
+
+        assertThat(verifier.verify(hmacConfig(), rsaToken, noJwks())).isEmpty();
+        assertThat(jwksFetches).hasValue(0);
+    }
+
+    @Test
+    void expiredTokenTest() {
+        assertThat(verifier.verify(hmacConfig(), sign(expiredToken(), hmacSigner(ApiMock.LOGIN_TOKEN_SECRET)),
+            noJwks())).isEmpty();
+    }
+
+    @Test
+    void issuerAndAudienceTest() {
+        var apiConfig = hmacConfig();
+        apiConfig.setLoginTokenIssuer(ISSUER);
+        apiConfig.setLoginTokenAudience("keycloak");
+        var signer = hmacSigner(ApiMock.LOGIN_TOKEN_SECRET);
+
+        var matchingToken = accessToken(ISSUER);
+        matchingToken.audience("keycloak");
+        assertThat(verifier.verify(apiConfig, sign(matchingToken, signer), noJwks())).isPresent();
+
+        var foreignIssuerToken = accessToken("https://other.example.com");
+        foreignIssuerToken.audience("keycloak");
+        assertThat(verifier.verify(apiConfig, sign(foreignIssuerToken, signer), noJwks())).isEmpty();
+
+        var foreignAudienceToken = accessToken(ISSUER);
+        foreignAudienceToken.audience("other");
+        assertThat(verifier.verify(apiConfig, sign(foreignAudienceToken, signer), noJwks())).isEmpty();
+    }
+
+    /**
+     * Without key material, the signature can't be verified, so that tokens are rejected.
+     */
+    @Test
+    void missingKeyTest() {
+        var apiConfig = new CrmApiConfig.CrmApiConfigEntry(ISSUER, ApiMock.API_TOKEN);
+
+        assertThat(verifier.verify(apiConfig, token(ISSUER, hmacSigner("unknown secret")), noJwks())).isEmpty();
+        assertThat(jwksFetches).hasValue(0);
+    }
+
+    /**
+     * If unverified signatures are allowed, tokens without key material are accepted, but their claims are still
+     * checked, and customers' details aren't taken from them.
+     */
+    @Test
+    void unverifiedSignatureTest() {
+        verifier = new CrmLoginTokenVerifier(3_600_000L, 60_000L, 10, true);
+        var apiConfig = new CrmApiConfig.CrmApiConfigEntry(ISSUER, ApiMock.API_TOKEN);
+        var signer = hmacSigner("unknown secret");
+
+        var token = verifier.verify(apiConfig, sign(customerToken(), signer), noJwks());
+        assertThat(token).map(AccessToken::getSubject).contains(SUBJECT);
+        assertThat(verifier.customerFromClaims(token.orElseThrow())).isEmpty();
+
+        assertThat(verifier.verify(apiConfig, sign(expiredToken(), signer), noJwks())).isEmpty();
+
+        var tokenWithoutSubject = accessToken(ISSUER);
+        tokenWithoutSubject.subject(null);
+        assertThat(verifier.verify(apiConfig, sign(tokenWithoutSubject, signer), noJwks())).isEmpty();
+    }
+
+    /**
+     * Verified tokens which carry all of a customer's details save requesting them from the CRM API.
+     */
+    @Test
+    void customerFromClaimsTest() {
+        var signer = hmacSigner(ApiMock.LOGIN_TOKEN_SECRET);
+
+        var token = verifier.verify(hmacConfig(), sign(customerToken(), signer), noJwks()).orElseThrow();
+        assertThat(verifier.customerFromClaims(token)).hasValueSatisfying(customer -> {
+            assertThat(customer.firstname()).isEqualTo("Max");
+            assertThat(customer.lastname()).isEqualTo("Mustermann");
+            assertThat(customer.address()).isEqualTo("Musterstrasse 1, 12345 Musterstadt, Germany");
+        });
+
+        var tokenWithoutAddress = verifier.verify(hmacConfig(), token(ISSUER, signer), noJwks()).orElseThrow();
+        assertThat(verifier.customerFromClaims(tokenWithoutAddress)).isEmpty();
+    }
+
+    /**
+     * Keys of a JWKS are fetched once and cached, and unknown key IDs refresh them, e.g., after a key rotation.
+     */
+    @Test
+    void jwksSignedTokenTest() throws Exception {
+        verifier = new CrmLoginTokenVerifier(3_600_000L, 0L, 10, false);
+        var apiConfig = jwksConfig();
+        var keyPair = rsaKeyPair();
+        var rotatedKeyPair = rsaKeyPair();
+        var jwks = jwks(keyPair, "key-1");
+
+        var token = token(ISSUER, rsaSigner(keyPair, "key-1"));
+        assertThat(verifier.verify(apiConfig, token, () -> fetch(jwks))).isPresent();
+        assertThat(verifier.verify(apiConfig, token, () -> fetch(jwks))).isPresent();
+        assertThat(jwksFetches).hasValue(1);
+
+        var rotatedJwks = jwks(keyPair, "key-1", rotatedKeyPair, "key-2");
+        var rotatedToken = token(ISSUER, rsaSigner(rotatedKeyPair, "key-2"));
+        assertThat(verifier.verify(apiConfig, rotatedToken, () -> fetch(rotatedJwks))).isPresent();
+        assertThat(jwksFetches).hasValue(2);
+
+        var foreignToken = token(ISSUER, rsaSigner(rsaKeyPair(), "key-1"));
+        assertThat(verifier.verify(apiConfig, foreignToken, () -> fetch(rotatedJwks))).isEmpty();
+    }
+
+    /**
+     * Unknown key IDs don't refresh the keys within the minimum refresh interval, which also applies to failed
+     * refreshes, so that a JWKS endpoint which is down isn't called on every login.
+     */
+    @Test
+    void jwksMinRefreshIntervalTest() throws Exception {
+        var apiConfig = jwksConfig();
+        var keyPair = rsaKeyPair();
+        var token = token(ISSUER, rsaSigner(keyPair, "key-1"));
+
+        assertThat(verifier.verify(apiConfig, token, () -> fetch(null))).isEmpty();
+        assertThat(verifier.verify(apiConfig, token, () -> fetch(null))).isEmpty();
+        assertThat(jwksFetches).hasValue(1);
+
+        var jwks = jwks(keyPair, "key-1");
+        assertThat(verifier.verify(apiConfig, token, () -> fetch(jwks))).isEmpty();
+        assertThat(jwksFetches).hasValue(1);
+    }
+
+    /**
+     * Concurrent verifications that need the keys of the same JWKS fetch them only once.
+     */
+    @Test
+    void jwksCoalescingTest() throws Exception {
+        var apiConfig = jwksConfig();
+        var keyPair = rsaKeyPair();
+        var jwks = jwks(keyPair, "key-1");
+        var token = token(ISSUER, rsaSigner(keyPair, "key-1"));
+        var start = new CountDownLatch(1);
+        Supplier<Optional<JSONWebKeySet>> slowFetch = () -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return fetch(jwks);
+        };
+
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var verifications = new ArrayList<CompletableFuture<Optional<AccessToken>>>();
+            for (var i = 0; i < 16; i++)
+                verifications.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return verifier.verify(apiConfig, token, slowFetch);
+                }, executor));
+            start.countDown();
+
+            assertThat(verifications).allSatisfy(verification -> assertThat(verification.join()).isPresent());
+        }
+        assertThat(jwksFetches).hasValue(1);
+    }
+
+    private static CrmApiConfig.CrmApiConfigEntry hmacConfig() {
+        var apiConfig = new CrmApiConfig.CrmApiConfigEntry(ISSUER, ApiMock.API_TOKEN);
+        apiConfig.setLoginTokenSecret(ApiMock.LOGIN_TOKEN_SECRET);
+        return apiConfig;
+    }
+
+    private static CrmApiConfig.CrmApiConfigEntry jwksConfig() {
+        var apiConfig = new CrmApiConfig.CrmApiConfigEntry(ISSUER, ApiMock.API_TOKEN);
+        apiConfig.setLoginTokenJwksUrl(JWKS_URL);
+        return apiConfig;
+    }
+
+    private Supplier<Optional<JSONWebKeySet>> noJwks() {
+        return () -> fetch(null);
+    }
+
+    private Optional<JSONWebKeySet> fetch(JSONWebKeySet jwks) {
+        jwksFetches.incrementAndGet();
+        return Optional.ofNullable(jwks);
+    }
+
+    private static AccessToken accessToken(String issuer) {
+        var now = Time.currentTime();
+        var token = new AccessToken();
+        token.issuer(issuer);
+        token.subject(SUBJECT);
+        token.iat((long) now);
+        token.exp(now + 300L);
+        return token;
+    }
+
+    /**
+     * Token that carries all of the customer's details.
+     */
+    private static AccessToken customerToken() {
+        var token = accessToken(ISSUER);
+        token.setGivenName("Max");
+        token.setFamilyName("Mustermann");
+        var address = new AddressClaimSet();
+        address.setFormattedAddress("Musterstrasse 1, 12345 Musterstadt, Germany");
+        token.setAddress(address);
+        return token;
+    }
+
+    /**
+     * Token that expired beyond the verifier's clock skew.
+     */
+    private static AccessToken expiredToken() {
+        var now = Time.currentTime();
+        var token = accessToken(ISSUER);
+        token.iat(now - 600L);
+        token.exp(now - 60L);
+        return token;
+    }
+
+    private static String token(String issuer, SignatureSignerContext signer) {
+        return sign(accessToken(issuer), signer);
+    }
+
+    private static String sign(AccessToken token, SignatureSignerContext signer) {
+        return new JWSBuilder().jsonContent(token).sign(signer);
+    }
+
+    private static SignatureSignerContext hmacSigner(String secret) {
+        var key = new KeyWrapper();
+        key.setAlgorithm(Algorithm.HS256);
+        key.setUse(KeyUse.SIG);
+        key.setSecretKey(new SecretKeySpec(secret.getBytes(UTF_8), JavaAlgorithm.getJavaAlgorithm(Algorithm.HS256)));
+        return new MacSignatureSignerContext(key);
+    }
+
+    private static SignatureSignerContext rsaSigner(KeyPair keyPair, String keyId) {
+        var key = new KeyWrapper();
+        key.setKid(keyId);
+        key.setAlgorithm(Algorithm.RS256);
+        key.setType(KeyType.RSA);
+        key.setUse(KeyUse.SIG);
+        key.setPrivateKey(keyPair.getPrivate());
+        key.setPublicKey(keyPair.getPublic());
+        return new AsymmetricSignatureSignerContext(key);
+    }
+
+    private static KeyPair rsaKeyPair() throws NoSuchAlgorithmException {
+        var generator = KeyPairGenerator.getInstance(KeyType.RSA);
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * JWKS with the public keys of the given key pairs, which alternate with their key IDs.
+     */
+    private static JSONWebKeySet jwks(Object... keyPairsAndIds) {
+        var keys = new JWK[keyPairsAndIds.length / 2];
+        for (var i = 0; i < keys.length; i++)
+            keys[i] = JWKBuilder.create()
+                .kid((String) keyPairsAndIds[2 * i + 1])
+                .algorithm(Algorithm.RS256)
+                .rsa(((KeyPair) keyPairsAndIds[2 * i]).getPublic());
+        var jwks = new JSONWebKeySet();
+        jwks.setKeys(keys);
+        return jwks;
+    }
+}
@@ -0,0 +1,112 @@
+package de.codecentric.iam.crm;
+
+import org.apache.http.client.config.RequestConfig;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.EnumMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests of the {@link CrmRequestTimeouts} and {@link CrmDeadline flow deadlines}, and of their use by the
+ * {@link CrmApiFacade} with a {@link CrmStubServer}.
+ */
+class CrmRequestTimeoutsTest {
+    private static final String EMAIL = "customer0@example.com";
+
+    @Test
+    void defaultTimeoutsTest() throws CrmApiDeadlineExceededException {
+        var timeouts = CrmRequestTimeouts.fromConfig(CrmTestSession.DEFAULT_CONFIG);
+
+        for (var operation : CrmApiOperation.values()) {
+            var requestConfig = timeouts.forCall(operation, null);
+            assertThat(requestConfig.getConnectTimeout()).isEqualTo(2_000);
+            assertThat(requestConfig.getSocketTimeout()).isEqualTo(5_000);
+            assertThat(requestConfig.getConnectionRequestTimeout()).isEqualTo(1_000);
+        }
+        assertThat(timeouts.getFlowDeadlineMillis()).isEqualTo(10_000L);
+    }
+
+    /**
+     * A session's deadline starts with its first access, and later accesses get the same deadline regardless of the
+     * budget. A budget of zero disables deadlines.
+     */
+    @Test
+    void sessionDeadlineTest() throws Exception {
+        try (var testSession = new CrmTestSession("https://crm.example.com")) {
+            var session = testSession.session();
+            assertThat(CrmDeadline.of(session, 0L)).isNull();
+
+            var deadline = CrmDeadline.of(session, 1_000L);
+            assertThat(CrmDeadline.of(session, 60_000L)).isSameAs(deadline);
+            assertThat(deadline.remainingMillis()).isBetween(0L, 1_000L);
+            assertThat(deadline.isExceeded()).isFalse();
+
+            assertThat(CrmDeadline.of(testSession.session(), 1_000L)).isNotSameAs(deadline);
+        }
+    }
+
+    /**
+     * Timeouts are capped to the remaining budget of the deadline, which also replaces infinite timeouts.
+     */
+    @Test
+    void cappedTimeoutsTest() throws Exception {
+        var requestConfigs = new EnumMap<CrmApiOperation, RequestConfig>(CrmApiOperation.class);
+        requestConfigs.put(CrmApiOperation.EXISTS_CUSTOMER, RequestConfig.custom()
+            .setConnectTimeout(200)
+            .setSocketTimeout(5_000)
+            .setConnectionRequestTimeout(0)
+            .build());
+        var timeouts = new CrmRequestTimeouts(requestConfigs, 1_000L);
+
+        try (var testSession = new CrmTestSession("https://crm.example.com")) {
+            var deadline = CrmDeadline.of(testSession.session(), 1_000L);
+            var requestConfig = timeouts.forCall(CrmApiOperation.EXISTS_CUSTOMER, deadline);
+            assertThat(requestConfig.getConnectTimeout()).isEqualTo(200);
+            assertThat(requestConfig.getSocketTimeout()).isBetween(1, 1_000);
+            assertThat(requestConfig.getConnectionRequestTimeout()).isBetween(1, 1_000);
+
+            assertThat(timeouts.forCall(CrmApiOperation.EXISTS_CUSTOMER, null))
+                .isSameAs(requestConfigs.get(CrmApiOperation.EXISTS_CUSTOMER));
+        }
+    }
+
+    @Test
+    void exceededDeadlineTest() throws Exception {
+        var timeouts = CrmRequestTimeouts.fromConfig(CrmTestSession.DEFAULT_CONFIG);
+
+        try (var testSession = new CrmTestSession("https://crm.example.com")) {
+            var deadline = CrmDeadline.of(testSession.session(), 50L);
+            Thread.sleep(100);
+            assertThat(deadline.isExceeded()).isTrue();
+            assertThatThrownBy(() -> timeouts.forCall(CrmApiOperation.EXISTS_CUSTOMER, deadline))
+                .isInstanceOf(CrmApiDeadlineExceededException.class);
+        }
+    }
+
+    /**
+     * Facade calls are skipped once the session's deadline has passed, and aborted when it passes while they are in
+     * flight.
+     */
+    @Test
+    void facadeDeadlineTest() throws Exception {
+        try (var crmStub = new CrmStubServer().withGeneratedCustomers(1).start();
+             var testSession = new CrmTestSession(crmStub.getUrl())) {
+            var exceededSession = testSession.session();
+            CrmDeadline.of(exceededSession, 50L);
+            Thread.sleep(100);
+            assertThat(CrmApiFacade.session(exceededSession).existsCustomer(EMAIL)).isEmpty();
+            assertThat(crmStub.getRequests()).isZero();
+
+            crmStub.withLatency(CrmStubServer.Latency.fixed(Duration.ofSeconds(2)));
+            var session = testSession.session();
+            CrmDeadline.of(session, 200L);
+            var start = System.nanoTime();
+            assertThat(CrmApiFacade.session(session).existsCustomer(EMAIL)).isEmpty();
+            assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(1));
+            assertThat(crmStub.getRequests()).isPositive();
+        }
+    }
+}
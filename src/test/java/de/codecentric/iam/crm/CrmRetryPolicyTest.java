@@ -0,0 +1,221 @@
+package de.codecentric.iam.crm;
+
+import org.apache.http.client.config.RequestConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests of the {@link CrmRetryPolicy}, whose calls go to a {@link CrmStubServer} that injects server errors, connection
+ * resets, and latencies. The guard's circuit breakers don't open during the tests.
+ */
+class CrmRetryPolicyTest {
+    private static final String EMAIL = "customer0@example.com";
+
+    private final CrmStubServer crmStub = new CrmStubServer().withGeneratedCustomers(1).start();
+    private final CrmApiConfig.CrmApiConfigEntry apiConfig =
+        new CrmApiConfig.CrmApiConfigEntry(crmStub.getUrl(), ApiMock.API_TOKEN);
+    private final CrmTransport transport = new ApacheCrmTransport(CrmApiGuardTest.poolSettings());
+    private final CrmApiGuard guard =
+        new CrmApiGuard(new CrmResilienceSettings(50, 100, 10_000L, 100, 100, 60_000L, 1, 64, 0L));
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @AfterEach
+    void close() throws IOException {
+        executor.close();
+        transport.close();
+        crmStub.close();
+    }
+
+    @Test
+    void serverErrorRetryTest() {
+        var retryPolicy = retryPolicy(3, 10, 0);
+        crmStub.withErrorRate(1.0);
+
+        assertThatThrownBy(() -> execute(retryPolicy, CrmApiCall.existsCustomer(apiConfig, EMAIL)))
+            .isInstanceOfSatisfying(CrmApiServerErrorException.class, ex ->
+                assertThat(ex.getHttpStatus()).isEqualTo(503));
+        assertThat(crmStub.getRequests()).isEqualTo(3);
+        assertThat(retryPolicy.getRetries()).isEqualTo(2);
+    }
+
+    /**
+     * Reset connections are retried, and the retry's response is the call's result. The HTTP client doesn't retry on
+     * its own, so that every retry is subject to the policy.
+     */
+    @Test
+    void resetRetryTest() throws IOException {
+        var retryPolicy = retryPolicy(3, 10, 0);
+        crmStub.withResetRate(1.0);
+
+        var call = CrmApiCall.existsCustomer(apiConfig, EMAIL);
+        assertThat(retryPolicy.execute(call, guard, null, executor, attempt -> {
+            try {
+                return guard.execute(attempt, transport);
+            } finally {
+                crmStub.withResetRate(0);
+            }
+        })).isTrue();
+        assertThat(call.httpStatus()).hasValue(200);
+        assertThat(crmStub.getRequests()).isEqualTo(2);
+        assertThat(retryPolicy.getRetries()).isEqualTo(1);
+    }
+
+    @Test
+    void nonIdempotentCallTest() {
+        var retryPolicy = retryPolicy(3, 10, 0);
+        crmStub.withErrorRate(1.0);
+
+        assertThatThrownBy(() -> execute(retryPolicy,
+            CrmApiCall.createCustomer(apiConfig, "new@example.com", "password", "New", "Customer")))
+            .isInstanceOf(CrmApiServerErrorException.class);
+        assertThat(crmStub.getRequests()).isEqualTo(1);
+        assertThat(retryPolicy.getRetries()).isZero();
+    }
+
+    /**
+     * Calls aborted by the caller, e.g., on cancellation, aren't retried.
+     */
+    @Test
+    void abortedCallTest() {
+        var retryPolicy = retryPolicy(3, 10, 0);
+        crmStub.withLatency(CrmStubServer.Latency.fixed(Duration.ofMillis(500)));
+
+        var call = CrmApiCall.existsCustomer(apiConfig, EMAIL);
+        CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS).execute(call::abort);
+        assertThatThrownBy(() -> execute(retryPolicy, call)).isInstanceOf(IOException.class);
+        assertThat(crmStub.getRequests()).isEqualTo(1);
+        assertThat(retryPolicy.getRetries()).isZero();
+    }
+
+    /**
+     * Socket timeouts are retried, unlike calls that are aborted once the flow's deadline passes.
+     */
+    @Test
+    void timeoutRetryTest() throws Exception {
+        var retryPolicy = retryPolicy(3, 10, 0);
+        var slowRequests = new AtomicInteger(1);
+        crmStub.withLatency(random -> slowRequests.getAndDecrement() > 0 ? Duration.ofSeconds(2) : Duration.ZERO);
+        var requestConfig = RequestConfig.custom().setSocketTimeout(200).build();
+
+        var call = CrmApiCall.existsCustomer(apiConfig, EMAIL);
+        assertThat(retryPolicy.execute(call, guard, null, executor, attempt -> {
+            attempt.configure(requestConfig);
+            return guard.execute(attempt, transport);
+        })).isTrue();
+        assertThat(call.httpStatus()).hasValue(200);
+        assertThat(crmStub.getRequests()).isEqualTo(2);
+        assertThat(retryPolicy.getRetries()).isEqualTo(1);
+
+        crmStub.withLatency(CrmStubServer.Latency.fixed(Duration.ofSeconds(2)));
+        try (var testSession = new CrmTestSession(crmStub.getUrl())) {
+            var deadline = CrmDeadline.of(testSession.session(), 300L);
+            var abortedCall = CrmApiCall.existsCustomer(apiConfig, EMAIL);
+            assertThatThrownBy(() -> retryPolicy.execute(abortedCall, guard, deadline, executor, attempt -> {
+                attempt.abortOn(deadline);
+                return guard.execute(attempt, transport);
+            })).isInstanceOf(IOException.class);
+            assertThat(abortedCall.isAbortedOn(deadline)).isTrue();
+        }
+        assertThat(crmStub.getRequests()).isEqualTo(3);
+        assertThat(retryPolicy.getRetries()).isEqualTo(1);
+    }
+
+    /**
+     * Retries withdraw tokens from the budget, which isn't refilled without deposits, so that retries stop once it is
+     * used up.
+     */
+    @Test
+    void budgetExhaustionTest() {
+        var retryPolicy = new CrmRetryPolicy(5, 1L, 10L, 0, 2, 0, 50L);
+        crmStub.withErrorRate(1.0);
+
+        assertThatThrownBy(() -> execute(retryPolicy, CrmApiCall.existsCustomer(apiConfig, EMAIL)))
+            .isInstanceOf(CrmApiServerErrorException.class);
+        assertThat(crmStub.getRequests()).isEqualTo(3);
+        assertThat(retryPolicy.getRetries()).isEqualTo(2);
+        assertThat(retryPolicy.getBudgetExhaustions()).isEqualTo(1);
+
+        assertThatThrownBy(() -> execute(retryPolicy, CrmApiCall.existsCustomer(apiConfig, EMAIL)))
+            .isInstanceOf(CrmApiServerErrorException.class);
+        assertThat(crmStub.getRequests()).isEqualTo(4);
+        assertThat(retryPolicy.getBudgetExhaustions()).isEqualTo(2);
+    }
+
+    /**
+     * A call that takes longer than the hedging delay gets a hedged request, whose response wins, while the call is
+     * aborted. Hedging starts once enough call durations are recorded.
+     */
+    @Test
+    void hedgingTest() throws IOException {
+        var retryPolicy = retryPolicy(1, 10, 50);
+        for (var i = 0; i < 32; i++)
+            assertThat(execute(retryPolicy, CrmApiCall.existsCustomer(apiConfig, EMAIL))).isTrue();
+        assertThat(retryPolicy.getHedgedRequests()).isZero();
+
+        var slowRequests = new AtomicInteger(1);
+        crmStub.withLatency(random -> slowRequests.getAndDecrement() > 0 ? Duration.ofSeconds(5) : Duration.ZERO);
+
+        var call = CrmApiCall.existsCustomer(apiConfig, EMAIL);
+        var start = System.nanoTime();
+        assertThat(execute(retryPolicy, call)).isTrue();
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(2));
+        assertThat(call.request().isAborted()).isTrue();
+        assertThat(call.httpStatus()).hasValue(200);
+        assertThat(retryPolicy.getHedgedRequests()).isEqualTo(1);
+        assertThat(crmStub.getRequests()).isEqualTo(34);
+        assertThat(guard.isCircuitBreakerClosed(CrmApiOperation.EXISTS_CUSTOMER)).isTrue();
+    }
+
+    @Test
+    void backoffCapTest() {
+        var retryPolicy = new CrmRetryPolicy(3, 50L, 500L, 0.1, 10, 0, 50L);
+
+        assertThat(retryPolicy.backoffCapMillis(1)).isEqualTo(50);
+        assertThat(retryPolicy.backoffCapMillis(2)).isEqualTo(100);
+        assertThat(retryPolicy.backoffCapMillis(4)).isEqualTo(400);
+        assertThat(retryPolicy.backoffCapMillis(5)).isEqualTo(500);
+        assertThat(retryPolicy.backoffCapMillis(64)).isEqualTo(500);
+    }
+
+    /**
+     * Only gateway and overload errors and I/O errors of calls that weren't aborted are retryable.
+     */
+    @Test
+    void retryableTest() {
+        var call = CrmApiCall.existsCustomer(apiConfig, EMAIL);
+        var operation = call.operation();
+
+        assertThat(CrmRetryPolicy.isRetryable(call, new CrmApiServerErrorException(operation, 502))).isTrue();
+        assertThat(CrmRetryPolicy.isRetryable(call, new CrmApiServerErrorException(operation, 503))).isTrue();
+        assertThat(CrmRetryPolicy.isRetryable(call, new CrmApiServerErrorException(operation, 504))).isTrue();
+        assertThat(CrmRetryPolicy.isRetryable(call, new CrmApiServerErrorException(operation, 500))).isFalse();
+        assertThat(CrmRetryPolicy.isRetryable(call, new CrmApiDeadlineExceededException(operation))).isFalse();
+        assertThat(CrmRetryPolicy.isRetryable(call, new IOException("Connection reset"))).isTrue();
+
+        call.abort();
+        assertThat(CrmRetryPolicy.isRetryable(call, new IOException("Request aborted"))).isFalse();
+    }
+
+    /**
+     * Retry policy with a budget of ten tokens, and a hedging delay of the 50th percentile if hedging is enabled.
+     */
+    private static CrmRetryPolicy retryPolicy(int maxAttempts, long maxBackoffMillis, long hedgingMinDelayMillis) {
+        return new CrmRetryPolicy(maxAttempts, 1L, maxBackoffMillis, 0.1, 10, hedgingMinDelayMillis > 0 ? 50 : 0,
+            Math.max(1, hedgingMinDelayMillis));
+    }
+
+    private <T> T execute(CrmRetryPolicy retryPolicy, CrmApiCall<T> call) throws IOException {
+        return retryPolicy.execute(call, guard, null, executor, attempt -> guard.execute(attempt, transport));
+    }
+}
@@ -0,0 +1,438 @@
+package de.codecentric.iam.crm;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Lightweight, in-process stand-in for the CRM API on the JDK's built-in HTTP server. Unlike the Microcks mock of
+ * {@link ApiMock}, the stub starts in milliseconds and keeps its customers in memory, so that created customers can log
+ * in afterwards. Its responses follow the examples of the Microcks mock (see crm-api/examples.yaml), e.g., wrong
+ * credentials result in 401 and unknown customers in 404. Moreover, the stub injects configurable faults into its
+ * responses: latencies from a {@link Latency distribution}, server errors and connection resets at given rates, and
+ * throttling beyond a given number of concurrent requests. Faults are drawn from a seeded random generator, and can be
+ * changed while the stub is running. Like a CRM API behind a compressing proxy, the stub decodes gzip request bodies
+ * and compresses its responses with gzip if the request accepts it.
+ */
+class CrmStubServer implements AutoCloseable {
+    private final HttpServer server;
+    private final Map<String, Customer> customersByEmail = new ConcurrentHashMap<>();
+    private final Map<String, Customer> customersById = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextCustomerId = new AtomicLong(1_000_000_000L);
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+
+    private volatile Random random = new Random(0);
+    private volatile Latency latency = Latency.none();
+    private volatile double errorRate;
+    private volatile double resetRate;
+    private volatile int maxConcurrentRequests = Integer.MAX_VALUE;
+
+    CrmStubServer() {
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    CrmStubServer start() {
+        server.start();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    /**
+     * URL of the stubbed CRM API, e.g., for {@link #keycloakConfig()}.
+     */
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * JSON structure of the Keycloak secret for the CRM API with the stub's URL (see
+     * {@link ApiMock#mockedKeycloakConfig(ApiMock.Fixture)}).
+     */
+    String keycloakConfig() {
+        return keycloakConfig(getUrl());
+    }
+
+    /**
+     * JSON structure of the Keycloak secret for the CRM API with the given URL under which Keycloak reaches the stub,
+     * e.g., from within a container. Login tokens are still issued by the stub's own URL.
+     */
+    String keycloakConfig(String url) {
+        var apiConfig = new CrmApiConfig.CrmApiConfigEntry(url, ApiMock.API_TOKEN);
+        apiConfig.setLoginTokenSecret(ApiMock.LOGIN_TOKEN_SECRET);
+        apiConfig.setLoginTokenIssuer(getUrl());
+        try {
+            return JsonSerialization.writeValueAsPrettyString(apiConfig);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Add a customer from the given mock data.
+     */
+    CrmStubServer withCustomer(ApiMock.CustomerMockData customer) {
+        addCustomer(new Customer(customer.getCustomerId(), customer.getEmail(), customer.getPassword(),
+            customer.getFirstname(), customer.getLastname(), address(customer.getCustomerId())));
+        return this;
+    }
+
+    /**
+     * Add the given number of generated customers with emails {@code customer<n>@example.com} and passwords
+     * {@code password<n>!}.
+     */
+    CrmStubServer withGeneratedCustomers(int count) {
+        for (var n = 0; n < count; n++) {
+            var id = String.valueOf(nextCustomerId.getAndIncrement());
+            addCustomer(new Customer(id, "customer" + n + "@example.com", "password" + n + "!", "First" + n,
+                "Last" + n, address(id)));
+        }
+        return this;
+    }
+
+    CrmStubServer withSeed(long seed) {
+        random = new Random(seed);
+        return this;
+    }
+
+    CrmStubServer withLatency(Latency latency) {
+        this.latency = Objects.requireNonNull(latency);
+        return this;
+    }
+
+    /**
+     * Respond with 503 to the given share of requests.
+     */
+    CrmStubServer withErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Reset the connection of the given share of requests without a response.
+     */
+    CrmStubServer withResetRate(double resetRate) {
+        this.resetRate = resetRate;
+        return this;
+    }
+
+    /**
+     * Respond with 429 to requests beyond the given number of concurrent requests.
+     */
+    CrmStubServer withThrottling(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        return this;
+    }
+
+    /**
+     * Number of requests received so far, including faulty ones.
+     */
+    long getRequests() {
+        return requests.get();
+    }
+
+    boolean hasCustomer(String email) {
+        return customersByEmail.containsKey(email);
+    }
+
+    private void addCustomer(Customer customer) {
+        customersByEmail.put(customer.email(), customer);
+        customersById.put(customer.id(), customer);
+    }
+
+    private static String address(String customerId) {
+        return "Main Street " + (Math.abs(customerId.hashCode()) % 500 + 1) + ", 12345 Springfield, Utopia";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        var inFlight = inFlightRequests.incrementAndGet();
+        try (exchange) {
+            var body = requestBody(exchange);
+            if (inFlight > maxConcurrentRequests) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 429, null);
+                return;
+            }
+
+            sleep(latency.next(random));
+            var fault = random.nextDouble();
+            if (fault < resetRate)
+                // Closing the exchange before sending headers closes the connection without a response
+                return;
+            if (fault < resetRate + errorRate) {
+                respond(exchange, 503, null);
+                return;
+            }
+
+            route(exchange, body);
+        } finally {
+            inFlightRequests.decrementAndGet();
+        }
+    }
+
+    private void route(HttpExchange exchange, byte[] body) throws IOException {
+        var method = exchange.getRequestMethod();
+        var path = exchange.getRequestURI().getPath();
+        if ("POST".equals(method) && "/login".equals(path))
+            login(exchange, body);
+        else if ("GET".equals(method) && "/customers".equals(path))
+            getCustomer(exchange);
+        else if ("POST".equals(method) && "/customers".equals(path))
+            createCustomer(exchange, body);
+        else if ("GET".equals(method) && path.startsWith("/customers/"))
+            existsCustomer(exchange, URLDecoder.decode(path.substring("/customers/".length()), UTF_8));
+        else if ("GET".equals(method) && "/export/customers".equals(path))
+            listCustomers(exchange);
+        else
+            respond(exchange, 404, null);
+    }
+
+    private void login(HttpExchange exchange, byte[] body) throws IOException {
+        if (!hasApiToken(exchange)) {
+            respond(exchange, 401, null);
+            return;
+        }
+
+        var credentials = readJson(body);
+        var customer = customersByEmail.get(String.valueOf(credentials.get("email")));
+        if (customer == null || !customer.password().equals(credentials.get("password"))) {
+            respond(exchange, 401, null);
+            return;
+        }
+
+        var loginToken = ApiMock.CustomerMockData.createAccessToken(getUrl(), customer.id());
+        respond(exchange, 200, Map.of("login_token", loginToken));
+    }
+
+    private void getCustomer(HttpExchange exchange) throws IOException {
+        var customer = customerFromLoginToken(exchange);
+        if (customer == null) {
+            respond(exchange, 401, null);
+            return;
+        }
+
+        respond(exchange, 200, Map.of(
+            "firstname", customer.firstname(),
+            "lastname", customer.lastname(),
+            "address", customer.address()
+        ));
+    }
+
+    private void createCustomer(HttpExchange exchange, byte[] body) throws IOException {
+        if (!hasApiToken(exchange)) {
+            respond(exchange, 401, null);
+            return;
+        }
+
+        var details = readJson(body);
+        var email = (String) details.get("email");
+        if (
+            email == null ||
+            email.isBlank() ||
+            details.get("password") == null ||
+            customersByEmail.containsKey(email)
+        ) {
+            respond(exchange, 400, null);
+            return;
+        }
+
+        var id = String.valueOf(nextCustomerId.getAndIncrement());
+        addCustomer(new Customer(id, email, (String) details.get("password"), (String) details.get("firstname"),
+            (String) details.get("lastname"), address(id)));
+        respond(exchange, 201, null);
+    }
+
+    private void existsCustomer(HttpExchange exchange, String email) throws IOException {
+        if (!hasApiToken(exchange)) {
+            respond(exchange, 401, null);
+            return;
+        }
+
+        respond(exchange, customersByEmail.containsKey(email) ? 200 : 404, null);
+    }
+
+    /**
+     * Respond with the page of customers whose IDs follow the cursor, which is the ID of the previous page's last
+     * customer.
+     */
+    private void listCustomers(HttpExchange exchange) throws IOException {
+        if (!hasApiToken(exchange)) {
+            respond(exchange, 401, null);
+            return;
+        }
+
+        var query = queryParameters(exchange);
+        var limit = Integer.parseInt(query.getOrDefault("limit", "100"));
+        var cursor = query.get("cursor");
+        var remaining = cursor != null ? customersById.tailMap(cursor, false) : customersById;
+
+        var page = new ArrayList<Map<String, String>>();
+        String lastId = null;
+        for (var customer : remaining.values()) {
+            if (page.size() == limit)
+                break;
+            page.add(Map.of(
+                "id", customer.id(),
+                "email", customer.email(),
+                "firstname", customer.firstname(),
+                "lastname", customer.lastname(),
+                "address", customer.address()
+            ));
+            lastId = customer.id();
+        }
+
+        var response = new LinkedHashMap<String, Object>();
+        response.put("customers", page);
+        if (lastId != null && remaining.size() > page.size())
+            response.put("next_cursor", lastId);
+        respond(exchange, 200, response);
+    }
+
+    private boolean hasApiToken(HttpExchange exchange) {
+        return ("Bearer " + ApiMock.API_TOKEN).equals(exchange.getRequestHeaders().getFirst("Authorization"));
+    }
+
+    private Customer customerFromLoginToken(HttpExchange exchange) {
+        var authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer "))
+            return null;
+
+        try {
+            var loginToken = new JWSInput(authorization.substring("Bearer ".length()))
+                .readJsonContent(AccessToken.class);
+            return customersById.get(loginToken.getSubject());
+        } catch (JWSInputException ex) {
+            return null;
+        }
+    }
+
+    private static Map<String, Object> readJson(byte[] body) throws IOException {
+        if (body.length == 0)
+            return Map.of();
+        return JsonSerialization.readValue(body, new TypeReference<>() {});
+    }
+
+    private static Map<String, String> queryParameters(HttpExchange exchange) {
+        var parameters = new LinkedHashMap<String, String>();
+        var query = exchange.getRequestURI().getRawQuery();
+        if (query == null)
+            return parameters;
+
+        for (var parameter : query.split("&")) {
+            var separator = parameter.indexOf('=');
+            if (separator > 0)
+                parameters.put(URLDecoder.decode(parameter.substring(0, separator), UTF_8),
+                    URLDecoder.decode(parameter.substring(separator + 1), UTF_8));
+        }
+        return parameters;
+    }
+
+    private static byte[] requestBody(HttpExchange exchange) throws IOException {
+        var body = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+            body = new GZIPInputStream(body);
+        return body.readAllBytes();
+    }
+
+    private static void respond(HttpExchange exchange, int status, Object body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+
+        var bytes = JsonSerialization.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        var acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            var compressed = new ByteArrayOutputStream();
+            try (var gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static void sleep(Duration duration) {
+        if (duration.isZero() || duration.isNegative())
+            return;
+
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Distribution of the latency that the stub adds to its responses.
+     */
+    @FunctionalInterface
+    interface Latency {
+        Duration next(Random random);
+
+        static Latency none() {
+            return random -> Duration.ZERO;
+        }
+
+        static Latency fixed(Duration latency) {
+            return random -> latency;
+        }
+
+        static Latency uniform(Duration min, Duration max) {
+            return random -> Duration.ofNanos(random.nextLong(min.toNanos(), max.toNanos() + 1));
+        }
+
+        /**
+         * Log-normal distribution, i.e., a long-tailed one, with the given median and 99th percentile.
+         */
+        static Latency logNormal(Duration median, Duration p99) {
+            var mu = Math.log(median.toNanos());
+            var sigma = (Math.log(p99.toNanos()) - mu) / 2.326;
+            return random -> Duration.ofNanos((long) Math.exp(mu + sigma * random.nextGaussian()));
+        }
+    }
+
+    private record Customer(String id, String email, String password, String firstname, String lastname,
+        String address) {
+        // NOOP
+    }
+}
@@ -1,101 +1,144 @@
 package de.codecentric.iam.crm;
 
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import de.codecentric.iam.keycloak.CrmPreMigrationJob;
+import de.codecentric.iam.keycloak.MigratingLoginFormAuthenticatorFactory;
+import de.codecentric.iam.keycloak.testframework.extensions.testcontainers.IsolatedRealm;
+import de.codecentric.iam.keycloak.testframework.extensions.testcontainers.SharedNetwork;
 import de.codecentric.iam.keycloak.testframework.extensions.testcontainers.TestcontainersKeycloakServerConfig;
 import de.codecentric.iam.keycloak.testframework.extensions.testcontainers.TestcontainersKeycloakServerConfigBuilder;
 import de.codecentric.iam.keycloak.testframework.extensions.testcontainers.TestcontainersKeycloakServerSupplier;
-import de.codecentric.iam.keycloak.testframework.ui.page.RegistrationPage;
 import io.github.microcks.testcontainers.MicrocksContainer;
-import org.codehaus.plexus.util.StringUtils;
 import org.junit.jupiter.api.AfterEach;
-import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.keycloak.testframework.annotations.InjectRealm;
+import org.keycloak.admin.client.CreatedResponseUtil;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.common.util.Time;
+import org.keycloak.representations.idm.AuthenticatorConfigRepresentation;
+import org.keycloak.representations.idm.CredentialRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.testframework.annotations.InjectAdminClient;
 import org.keycloak.testframework.annotations.KeycloakIntegrationTest;
-import org.keycloak.testframework.oauth.OAuthClient;
-import org.keycloak.testframework.oauth.annotations.InjectOAuthClient;
-import org.keycloak.testframework.realm.ClientConfig;
-import org.keycloak.testframework.realm.ClientConfigBuilder;
-import org.keycloak.testframework.realm.ManagedRealm;
-import org.keycloak.testframework.ui.annotations.InjectPage;
+import org.keycloak.util.JsonSerialization;
 import org.testcontainers.containers.Network;
-import org.testcontainers.junit.jupiter.Container;
-import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.lifecycle.Startables;
 
 import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 
 import static de.codecentric.iam.crm.CrmApiConfig.API_CONFIG_SECRET_NAME;
+import static de.codecentric.iam.keycloak.CrmPreMigrationJob.CHECKPOINT_REALM_ATTRIBUTE;
+import static de.codecentric.iam.keycloak.MigratingLoginFormAuthenticatorFactory.CRM_LOCAL_VALIDATION_CONFIG;
+import static de.codecentric.iam.keycloak.MigratingLoginFormAuthenticatorFactory.CRM_REVALIDATION_INTERVAL_CONFIG;
 import static de.codecentric.iam.keycloak.UserAttributes.CRM_CUSTOMER_ADDRESS_ATTRIBUTE;
 import static de.codecentric.iam.keycloak.UserAttributes.CRM_CUSTOMER_ID_ATTRIBUTE;
+import static de.codecentric.iam.keycloak.UserAttributes.CRM_LAST_VALIDATION_ATTRIBUTE;
+import static org.apache.http.HttpStatus.SC_ACCEPTED;
+import static org.apache.http.HttpStatus.SC_CREATED;
+import static org.apache.http.HttpStatus.SC_FORBIDDEN;
+import static org.apache.http.HttpStatus.SC_NOT_FOUND;
 import static org.apache.http.HttpStatus.SC_NO_CONTENT;
 import static org.assertj.core.api.Assertions.assertThat;
 
 /**
- * Class holding Keycloak integration tests with the CRM system.
+ * Class holding Keycloak integration tests with the CRM system. Microcks and Keycloak start concurrently, and both
+ * containers are reused across test runs if Testcontainers' reuse is enabled (see README). Each test runs in an
+ * {@link IsolatedRealm} of its own with a CRM API configuration that points to a Microcks mock of its own (see
+ * {@link ApiMock#createFixture(String)}), and drives Keycloak's forms without a browser. Thus, tests don't depend on
+ * each other, and may run concurrently against the shared containers. Keycloak calls the CRM API with the default
+ * {@link CrmTransport}, while {@link CrmJdkTransportTest} runs the same tests with the JDK's HttpClient.
  */
-@Testcontainers
 @KeycloakIntegrationTest(config = CrmTest.KeycloakTestcontainerConfig.class)
 class CrmTest {
-    private static final String TEST_REALM_NAME = "test";
+    static final String TEST_REALM_NAME = "test";
+    private static final String TEST_REALM_IMPORT_FILE = "keycloak/test-realm.json";
     private static final String API_SPEC_RESOURCE_PATH = "crm-api.yaml";
-    private static final Network CONTAINER_NETWORK = Network.newNetwork();
-    private static final String KEYCLOAK_API_CONFIG_RESOURCE_PATH = String.format(
-            "keycloak/secrets/%s_%s",
-            TEST_REALM_NAME,
-            StringUtils.replace(API_CONFIG_SECRET_NAME, "_", "__")
-        );
+    private static final String MICROCKS_NETWORK_ALIAS = "microcks";
+    private static final String KEYCLOAK_VAULT_DIR = "/opt/keycloak/secrets";
+    private static final String TEST_USER_PASSWORD = "testPassword4!";
+    private static final String LOGIN_FLOW_ALIAS = "CRM migrating browser";
+    // Containers can only be reused in networks whose IDs don't change between test runs
+    private static final Network CONTAINER_NETWORK = new SharedNetwork("crm-test");
 
-    private static ApiMock apiMock;
-
-    @Container
     static final MicrocksContainer microcksContainer
         = new MicrocksContainer("quay.io/microcks/microcks-uber:" + loadMicrocksVersion())
             .withNetwork(CONTAINER_NETWORK)
-            .withMainArtifacts(API_SPEC_RESOURCE_PATH);
+            .withReuse(true);
+
+    /**
+     * API mock object which provides tests, among others, with mock data of CRM customers, and Keycloak with the
+     * configuration of the mocked CRM API.
+     */
+    private static final ApiMock apiMock;
 
     /**
-     * Prepare the API mock object which provides tests, among others, with mock data of CRM customers.
+     * Microcks startup, which runs while the Keycloak Test Framework starts Keycloak. Microcks is shared by the tests
+     * of all transports, so that it isn't stopped after the tests of a class, but by Testcontainers when the JVM exits,
+     * unless it is reused by later test runs.
      */
-    @BeforeAll
-    static void prepareApiMock() {
+    private static final CompletableFuture<Void> microcksStartup;
+
+    static {
+        // Replace the random default alias with a fixed one, which becomes part of Keycloak's configuration
+        microcksContainer.setNetworkAliases(new ArrayList<>(List.of(MICROCKS_NETWORK_ALIAS)));
         apiMock = new ApiMock(API_SPEC_RESOURCE_PATH, microcksContainer, "crm-api/metadata.yaml",
-            "crm-api/examples.yaml", KEYCLOAK_API_CONFIG_RESOURCE_PATH);
+            "crm-api/examples.yaml", ApiMock.keycloakApiConfigResourcePath(TEST_REALM_NAME));
+        microcksStartup = Startables.deepStart(microcksContainer);
     }
 
     /**
      * Configuration of Keycloak Testcontainer used by our extension of Keycloak's Test Framework to integrate with
-     * Keycloak's Testcontainers Module.
+     * Keycloak's Testcontainers Module. Tests provision their realms in the container of the configuration's builder.
      * @see TestcontainersKeycloakServerSupplier
      */
     static class KeycloakTestcontainerConfig extends TestcontainersKeycloakServerConfig {
+        static final TestcontainersKeycloakServerConfigBuilder builder =
+            keycloakConfigBuilder(CrmTransport.APACHE, 32781);
+
         @Override
         public TestcontainersKeycloakServerConfigBuilder getBuilder() {
-            return new TestcontainersKeycloakServerConfigBuilder()
-                .withCopyClasspathResourceToContainer("keycloak/keycloak.conf", "/opt/keycloak/conf/keycloak.conf")
-                .withWriteStringToContainerFile(apiMock.mockedKeycloakConfig(),
-                    "/opt/" + KEYCLOAK_API_CONFIG_RESOURCE_PATH)
-                .withNetwork(CONTAINER_NETWORK)
-                .withDebugFixedPort(32781, false)
-                .withProviderClassesFrom("target/classes")
-                .withRealmImportFile("keycloak/test-realm.json");
+            return builder;
         }
     }
 
-    @InjectOAuthClient(config = OauthClientConfig.class)
-    private OAuthClient oauthClient;
+    /**
+     * Builder of the configuration of a Keycloak testcontainer whose CRM client uses the given transport. Containers
+     * with different transports run side by side, so that each needs a debug port of its own.
+     */
+    static TestcontainersKeycloakServerConfigBuilder keycloakConfigBuilder(String transport, int debugPort) {
+        return new TestcontainersKeycloakServerConfigBuilder()
+            .withCopyClasspathResourceToContainer("keycloak/keycloak.conf", "/opt/keycloak/conf/keycloak.conf")
+            .withEnv("KC_SPI_CRM_CLIENT_DEFAULT_TRANSPORT", transport)
+            .withNetwork(CONTAINER_NETWORK)
+            .withDebugFixedPort(debugPort, false)
+            .withProviderClassesFrom("target/classes")
+            .withOptimizedImage()
+            .withReuse(true);
+    }
 
-    static class OauthClientConfig implements ClientConfig {
-        @Override
-        public ClientConfigBuilder configure(ClientConfigBuilder clientConfigBuilder) {
-            return clientConfigBuilder.clientId("login-test");
-        }
+    /**
+     * Keycloak testcontainer of the test class's configuration, in which tests provision their realms.
+     */
+    KeycloakContainer keycloakContainer() {
+        return KeycloakTestcontainerConfig.builder.getConfiguredKeycloakContainer();
     }
 
-    @InjectRealm(attachTo = TEST_REALM_NAME)
-    private ManagedRealm testRealm;
+    @InjectAdminClient
+    private Keycloak adminClient;
 
-    @InjectPage
-    private RegistrationPage registrationPage;
+    private final KeycloakForms keycloakForms = new KeycloakForms();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private IsolatedRealm testRealm;
+    private ApiMock.Fixture fixture;
 
     private static String loadMicrocksVersion() {
         try (var is = CrmTest.class.getResourceAsStream("/application.properties")) {
@@ -108,11 +151,26 @@ class CrmTest {
     }
 
     /**
-     * Cleanup Keycloak login sessions on the test realm after each test.
+     * Provision the test's realm from the test realm's import file, and the test's mock data in Microcks, which
+     * started concurrently with Keycloak. The realm's vault secret configures the CRM API with the test's mock.
+     */
+    @BeforeEach
+    void provisionTestRealm() {
+        microcksStartup.join();
+        testRealm = IsolatedRealm.create(keycloakContainer(), adminClient, "crm");
+        fixture = apiMock.createFixture(testRealm.getName());
+        testRealm
+            .withVaultSecret(KEYCLOAK_VAULT_DIR, API_CONFIG_SECRET_NAME, apiMock.mockedKeycloakConfig(fixture))
+            .importFrom(TEST_REALM_IMPORT_FILE);
+    }
+
+    /**
+     * Remove the test's realm, together with its users and sessions.
      */
     @AfterEach
-    void logoutUsers() {
-        testRealm.admin().logoutAll();
+    void removeTestRealm() {
+        if (testRealm != null)
+            testRealm.close();
     }
 
     /**
@@ -120,15 +178,16 @@ class CrmTest {
      * @see de.codecentric.iam.keycloak.MigratingLoginFormAuthenticator
      */
     @Test
-    void loginMigrationTest() {
+    void loginMigrationTest() throws Exception {
         var userCountBeforeMigration = testRealm.admin().users().count();
 
         // Submit Keycloak login page with the mock data of the existing CRM customer
-        var customerMockData = apiMock.getExistingCustomerMockData();
-        oauthClient.doLogin(customerMockData.getEmail(), customerMockData.getPassword());
+        var customerMockData = fixture.existingCustomerMockData();
+        assertThat(keycloakForms.login(testRealm.getBaseUrl(), customerMockData.getEmail(),
+            customerMockData.getPassword())).isTrue();
 
         // Assert that the mocked CRM API got actually called by the migrating login Keycloak authenticator
-        assertThat(microcksContainer.verify(apiMock.getSpecifiedApiTitle(), apiMock.getSpecifiedApiVersion())).isTrue();
+        assertThat(microcksContainer.verify(apiMock.getSpecifiedApiTitle(), fixture.apiVersion())).isTrue();
 
         // Assert that there is now one more Keycloak user as before
         assertThat(testRealm.admin().users().count()).isEqualTo(userCountBeforeMigration + 1);
@@ -144,16 +203,135 @@ class CrmTest {
         assertThat(migratedUser.firstAttribute(CRM_CUSTOMER_ADDRESS_ATTRIBUTE)).matches(".+ \\d+, \\d+ .+, .+(, .+)?");
     }
 
+    /**
+     * Test local validation of migrated users by the migrating login Keycloak authenticator. A Keycloak password that
+     * differs from the CRM password proves whether the CRM API was called: The CRM API rejects it, while the Keycloak
+     * credentials accept it.
+     * @see de.codecentric.iam.keycloak.MigratingLoginFormAuthenticator
+     */
+    @Test
+    void localValidationTest() throws Exception {
+        configureMigratingLogin(Map.of(
+            CRM_LOCAL_VALIDATION_CONFIG, "true",
+            CRM_REVALIDATION_INTERVAL_CONFIG, "3600"
+        ));
+
+        // The first login migrates the CRM customer, and records the validation against the CRM API
+        var customerMockData = fixture.existingCustomerMockData();
+        assertThat(keycloakForms.login(testRealm.getBaseUrl(), customerMockData.getEmail(),
+            customerMockData.getPassword())).isTrue();
+        var migratedUser = testRealm.admin().users().get(
+            testRealm.admin().users().search(customerMockData.getEmail()).getFirst().getId());
+        assertThat(migratedUser.toRepresentation().firstAttribute(CRM_LAST_VALIDATION_ATTRIBUTE)).isNotBlank();
+
+        // Within the revalidation interval, logins are validated against the Keycloak credentials only
+        var localPassword = new CredentialRepresentation();
+        localPassword.setType(CredentialRepresentation.PASSWORD);
+        localPassword.setValue("localPassword5!");
+        localPassword.setTemporary(false);
+        migratedUser.resetPassword(localPassword);
+        assertThat(keycloakForms.login(testRealm.getBaseUrl(), customerMockData.getEmail(),
+            localPassword.getValue())).isTrue();
+
+        // After the revalidation interval, logins are validated against the CRM API again
+        var user = migratedUser.toRepresentation();
+        user.singleAttribute(CRM_LAST_VALIDATION_ATTRIBUTE, String.valueOf(Time.currentTime() - 7200));
+        migratedUser.update(user);
+        assertThat(keycloakForms.login(testRealm.getBaseUrl(), customerMockData.getEmail(),
+            localPassword.getValue())).isFalse();
+    }
+
+    /**
+     * Test login of a user who was pre-migrated without a password. Local validation doesn't apply to the user, whose
+     * CRM password becomes the Keycloak password on the first login.
+     * @see de.codecentric.iam.keycloak.MigratingLoginFormAuthenticator
+     * @see de.codecentric.iam.keycloak.CrmPreMigrationJob
+     */
+    @Test
+    void preMigratedUserLoginTest() throws Exception {
+        configureMigratingLogin(Map.of(CRM_LOCAL_VALIDATION_CONFIG, "true"));
+
+        var customerMockData = fixture.existingCustomerMockData();
+        var preMigratedUser = new UserRepresentation();
+        preMigratedUser.setUsername(customerMockData.getEmail());
+        preMigratedUser.setEmail(customerMockData.getEmail());
+        preMigratedUser.setFirstName(customerMockData.getFirstname());
+        preMigratedUser.setLastName(customerMockData.getLastname());
+        preMigratedUser.setEnabled(true);
+        preMigratedUser.singleAttribute(CRM_CUSTOMER_ID_ATTRIBUTE, customerMockData.getCustomerId());
+        String userId;
+        try (var response = testRealm.admin().users().create(preMigratedUser)) {
+            userId = CreatedResponseUtil.getCreatedId(response);
+        }
+        var userCountBeforeLogin = testRealm.admin().users().count();
+
+        assertThat(keycloakForms.login(testRealm.getBaseUrl(), customerMockData.getEmail(),
+            customerMockData.getPassword())).isTrue();
+
+        // The pre-migrated user got the password, and no other user was created
+        assertThat(testRealm.admin().users().count()).isEqualTo(userCountBeforeLogin);
+        assertThat(testRealm.admin().users().get(userId).credentials())
+            .extracting(CredentialRepresentation::getType)
+            .containsExactly(CredentialRepresentation.PASSWORD);
+        assertThat(testRealm.admin().users().get(userId).toRepresentation().firstAttribute(
+            CRM_CUSTOMER_ADDRESS_ATTRIBUTE)).isNotBlank();
+    }
+
+    /**
+     * Test login of a user without a password who isn't linked to the CRM customer, e.g., a user of an identity
+     * provider. The CRM credentials of the customer with the user's email neither log the user in nor set a password.
+     * @see de.codecentric.iam.keycloak.MigratingLoginFormAuthenticator
+     */
+    @Test
+    void unlinkedUserLoginTest() throws Exception {
+        var customerMockData = fixture.existingCustomerMockData();
+        var unlinkedUser = new UserRepresentation();
+        unlinkedUser.setUsername(customerMockData.getEmail());
+        unlinkedUser.setEmail(customerMockData.getEmail());
+        unlinkedUser.setFirstName("Federated");
+        unlinkedUser.setLastName("User");
+        unlinkedUser.setEnabled(true);
+        String userId;
+        try (var response = testRealm.admin().users().create(unlinkedUser)) {
+            userId = CreatedResponseUtil.getCreatedId(response);
+        }
+
+        assertThat(keycloakForms.login(testRealm.getBaseUrl(), customerMockData.getEmail(),
+            customerMockData.getPassword())).isFalse();
+
+        // The user neither got a password nor the CRM attributes
+        assertThat(testRealm.admin().users().get(userId).credentials()).isEmpty();
+        var user = testRealm.admin().users().get(userId).toRepresentation();
+        assertThat(user.firstAttribute(CRM_CUSTOMER_ID_ATTRIBUTE)).isNull();
+        assertThat(user.firstAttribute(CRM_CUSTOMER_ADDRESS_ATTRIBUTE)).isNull();
+    }
+
+    /**
+     * Set the given config of the migrating login Keycloak authenticator in the test realm's login flow.
+     */
+    private void configureMigratingLogin(Map<String, String> config) {
+        var flows = testRealm.admin().flows();
+        var execution = flows.getExecutions(LOGIN_FLOW_ALIAS).stream()
+            .filter(candidate -> MigratingLoginFormAuthenticatorFactory.PROVIDER_ID.equals(candidate.getProviderId()))
+            .findFirst()
+            .orElseThrow();
+        var authenticatorConfig = new AuthenticatorConfigRepresentation();
+        authenticatorConfig.setAlias("crm-migrating-login");
+        authenticatorConfig.setConfig(config);
+        try (var response = flows.newExecutionConfig(execution.getId(), authenticatorConfig)) {
+            assertThat(response.getStatus()).isEqualTo(SC_CREATED);
+        }
+    }
+
     /**
      * Test CRM registration Keycloak action.
      * @see de.codecentric.iam.keycloak.CrmRegistrationAction
      */
     @Test
-    void registrationTest() {
-        // Navigate to Keycloak registration page, fill it with the mock data of the new CRM customer, and submit it
-        var customerMockData = apiMock.getNewCustomerMockData();
-        doRegistration(customerMockData.getEmail(), customerMockData.getPassword(), customerMockData.getPassword(),
-            customerMockData.getFirstname(), customerMockData.getLastname());
+    void registrationTest() throws Exception {
+        // Request Keycloak registration page, and submit it with the mock data of the new CRM customer
+        var customerMockData = fixture.newCustomerMockData();
+        assertThat(doRegistration(customerMockData)).isTrue();
 
         // Assert that the new CRM customer got actually registered as a Keycloak user
         var registeredUser = assertThat(testRealm.admin().users().search(customerMockData.getEmail()))
@@ -168,19 +346,154 @@ class CrmTest {
         // use the login form to migrate their existing CRM customer into a Keycloak user)
         try (var response = testRealm.admin().users().delete(registeredUser.getId())) {
             assertThat(response.getStatus()).isEqualTo(SC_NO_CONTENT);
-            doRegistration(customerMockData.getEmail(), customerMockData.getPassword(), customerMockData.getPassword(),
-                customerMockData.getFirstname(), customerMockData.getLastname());
+            assertThat(doRegistration(customerMockData)).isFalse();
             assertThat(testRealm.admin().users().search(customerMockData.getEmail())).isEmpty();
         }
     }
 
     /**
-     * Perform Keycloak registration with the given data.
+     * Perform Keycloak registration with the given mock data, and return whether it succeeded.
+     */
+    private boolean doRegistration(ApiMock.CustomerMockData customerMockData) throws Exception {
+        return keycloakForms.register(testRealm.getBaseUrl(), customerMockData.getEmail(),
+            customerMockData.getPassword(), customerMockData.getFirstname(), customerMockData.getLastname());
+    }
+
+    /**
+     * Test bulk pre-migration REST resource, i.e., resuming a job from its checkpoint, restarting it, and leaving users
+     * alone that aren't linked to the exported CRM customers.
+     * @see de.codecentric.iam.keycloak.CrmPreMigrationResource
+     */
+    @Test
+    void preMigrationTest() throws Exception {
+        // Requests require a user who may manage the realm's users
+        var userToken = accessToken(createUser("migration-user"));
+        for (var method : List.of("POST", "GET", "DELETE"))
+            assertThat(preMigration(method, userToken).statusCode()).isEqualTo(SC_FORBIDDEN);
+
+        var adminToken = accessToken(createUser("migration-admin", "manage-users"));
+        assertThat(preMigration("GET", adminToken).statusCode()).isEqualTo(SC_NOT_FOUND);
+
+        // A local user with the email of the existing CRM customer, which isn't linked to the customer
+        var existingCustomerMockData = fixture.existingCustomerMockData();
+        var localUser = new UserRepresentation();
+        localUser.setUsername(existingCustomerMockData.getEmail());
+        localUser.setEmail(existingCustomerMockData.getEmail());
+        localUser.setFirstName("Local");
+        localUser.setLastName("User");
+        localUser.setEnabled(true);
+        try (var response = testRealm.admin().users().create(localUser)) {
+            assertThat(response.getStatus()).isEqualTo(SC_CREATED);
+        }
+
+        // Resume from the checkpoint of the second page, which holds the exported CRM customer only
+        var realm = testRealm.admin().toRepresentation();
+        realm.getAttributes().put(CHECKPOINT_REALM_ATTRIBUTE, "2");
+        testRealm.admin().update(realm);
+
+        assertThat(preMigration("POST", adminToken).statusCode()).isEqualTo(SC_ACCEPTED);
+        var progress = awaitPreMigration(adminToken);
+        assertThat(progress.state()).isEqualTo(CrmPreMigrationJob.State.COMPLETED);
+        assertThat(progress.pages()).isEqualTo(1);
+        assertThat(progress.created()).isEqualTo(1);
+        assertThat(progress.failedCustomerIds()).isEmpty();
+        assertThat(testRealm.admin().toRepresentation().getAttributes()).doesNotContainKey(CHECKPOINT_REALM_ATTRIBUTE);
+
+        var exportedCustomerMockData = fixture.exportedCustomerMockData();
+        var migratedUser = assertThat(testRealm.admin().users().search(exportedCustomerMockData.getEmail()))
+            .hasSize(1)
+            .actual()
+            .getFirst();
+        assertThat(migratedUser.getFirstName()).isEqualTo(exportedCustomerMockData.getFirstname());
+        assertThat(migratedUser.getLastName()).isEqualTo(exportedCustomerMockData.getLastname());
+        assertThat(migratedUser.firstAttribute(CRM_CUSTOMER_ID_ATTRIBUTE))
+            .isEqualTo(exportedCustomerMockData.getCustomerId());
+        assertThat(migratedUser.firstAttribute(CRM_CUSTOMER_ADDRESS_ATTRIBUTE))
+            .isEqualTo("Musterstrasse 1, 12345 Musterstadt, Germany");
+
+        // Without checkpoint, the job starts over, and skips both the unlinked local user and the unchanged user
+        assertThat(preMigration("POST", adminToken).statusCode()).isEqualTo(SC_ACCEPTED);
+        progress = awaitPreMigration(adminToken);
+        assertThat(progress.state()).isEqualTo(CrmPreMigrationJob.State.COMPLETED);
+        assertThat(progress.pages()).isEqualTo(2);
+        assertThat(progress.processed()).isEqualTo(2);
+        assertThat(progress.created()).isZero();
+        assertThat(progress.skipped()).isEqualTo(2);
+
+        var unlinkedUser = assertThat(testRealm.admin().users().search(existingCustomerMockData.getEmail()))
+            .hasSize(1)
+            .actual()
+            .getFirst();
+        assertThat(unlinkedUser.getFirstName()).isEqualTo("Local");
+        assertThat(unlinkedUser.firstAttribute(CRM_CUSTOMER_ID_ATTRIBUTE)).isNull();
+
+        // Completed jobs can't be cancelled
+        assertThat(preMigration("DELETE", adminToken).statusCode()).isEqualTo(SC_NOT_FOUND);
+    }
+
+    /**
+     * Create a user of the test realm with the given roles of the realm management client, and return its username.
+     */
+    private String createUser(String username, String... realmManagementRoles) {
+        var password = new CredentialRepresentation();
+        password.setType(CredentialRepresentation.PASSWORD);
+        password.setValue(TEST_USER_PASSWORD);
+        password.setTemporary(false);
+        var user = new UserRepresentation();
+        user.setUsername(username + "@example.com");
+        user.setEmail(username + "@example.com");
+        user.setEmailVerified(true);
+        user.setFirstName("Test");
+        user.setLastName("User");
+        user.setEnabled(true);
+        user.setCredentials(List.of(password));
+
+        String userId;
+        try (var response = testRealm.admin().users().create(user)) {
+            userId = CreatedResponseUtil.getCreatedId(response);
+        }
+        if (realmManagementRoles.length > 0) {
+            var realmManagement = testRealm.admin().clients().findByClientId("realm-management").getFirst();
+            var roles = testRealm.admin().clients().get(realmManagement.getId()).roles();
+            testRealm.admin().users().get(userId).roles().clientLevel(realmManagement.getId()).add(
+                List.of(realmManagementRoles).stream().map(role -> roles.get(role).toRepresentation()).toList());
+        }
+        return user.getUsername();
+    }
+
+    /**
+     * Access token of the given user of the test realm, which is obtained with the password grant.
+     */
+    private String accessToken(String username) {
+        try (var userClient = Keycloak.getInstance(keycloakContainer().getAuthServerUrl(), testRealm.getName(),
+            username, TEST_USER_PASSWORD, "admin-cli")) {
+            return userClient.tokenManager().getAccessTokenString();
+        }
+    }
+
+    /**
+     * Send a request with the given method and access token to the pre-migration resource of the test realm.
      */
-    private void doRegistration(String email, String password, String passwordConfirmation, String firstname,
-        String lastname) {
-        oauthClient.openRegistrationForm();
-        registrationPage.fillRegistration(email, password, passwordConfirmation, firstname, lastname);
-        registrationPage.submit();
+    private HttpResponse<String> preMigration(String method, String accessToken)
+        throws IOException, InterruptedException {
+        var request = HttpRequest.newBuilder(URI.create(testRealm.getBaseUrl() + "/crm-pre-migration"))
+            .header("Authorization", "Bearer " + accessToken)
+            .method(method, HttpRequest.BodyPublishers.noBody())
+            .build();
+        return httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Poll the progress of the test realm's pre-migration until the job isn't running anymore, or 30 seconds passed.
+     */
+    private CrmPreMigrationJob.Progress awaitPreMigration(String accessToken) throws Exception {
+        var timeout = System.currentTimeMillis() + 30_000;
+        while (true) {
+            var progress = JsonSerialization.readValue(preMigration("GET", accessToken).body(),
+                CrmPreMigrationJob.Progress.class);
+            if (progress.state() != CrmPreMigrationJob.State.RUNNING || System.currentTimeMillis() > timeout)
+                return progress;
+            Thread.sleep(200);
+        }
     }
 }
@@ -0,0 +1,141 @@
+package de.codecentric.iam.crm;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentelemetry.api.OpenTelemetry;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.keycloak.Config;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.tracing.TracingProvider;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+
+/**
+ * Keycloak sessions for tests of the {@link CrmApiFacade} without a Keycloak server. The sessions' realm is configured
+ * for a given CRM API, e.g., a {@link CrmStubServer}, and their {@link CrmClientProvider} hands out infrastructure that
+ * is created with the default options, unless a test replaces it. Each session has its own attributes, and thus its
+ * own {@link CrmDeadline}, while the infrastructure is shared like that of the {@link DefaultCrmClientProviderFactory}.
+ * Other providers and methods of the sessions aren't supported.
+ */
+class CrmTestSession implements AutoCloseable {
+    static final Config.Scope DEFAULT_CONFIG = new Config.SystemPropertiesScope("crm-test.");
+
+    private static final String REALM = "crm-test";
+
+    private final CrmApiConfig.CrmApiConfigEntry apiConfig;
+    private final CrmTransport transport = new ApacheCrmTransport(CrmApiGuardTest.poolSettings());
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final CrmApiGuard guard = new CrmApiGuard(CrmResilienceSettings.fromConfig(DEFAULT_CONFIG));
+    private final CrmRequestCoalescer requestCoalescer = new CrmRequestCoalescer();
+    private ExistsCustomerCache existsCustomerCache = ExistsCustomerCache.fromConfig(DEFAULT_CONFIG);
+    private CrmCustomerCache customerCache = new CrmCustomerCache(0L, 0L);
+    private EmbeddedCacheManager cacheManager;
+
+    CrmTestSession(String apiUrl) {
+        apiConfig = new CrmApiConfig.CrmApiConfigEntry(apiUrl, ApiMock.API_TOKEN);
+    }
+
+    CrmTestSession withExistsCustomerCache(ExistsCustomerCache existsCustomerCache) {
+        this.existsCustomerCache = existsCustomerCache;
+        return this;
+    }
+
+    /**
+     * Use the given customer cache, whose Infinispan cache is looked up in the given cache manager like in Keycloak's.
+     * The cache manager must define Keycloak's user cache.
+     */
+    CrmTestSession withCustomerCache(CrmCustomerCache customerCache, EmbeddedCacheManager cacheManager) {
+        this.customerCache = customerCache;
+        this.cacheManager = cacheManager;
+        return this;
+    }
+
+    CrmRequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * Create a new session for the realm of the CRM API.
+     */
+    KeycloakSession session() {
+        var attributes = new ConcurrentHashMap<String, Object>();
+        var realm = proxy(RealmModel.class, (method, args) -> switch (method.getName()) {
+            case "getId", "getName" -> REALM;
+            default -> throw unsupported(method);
+        });
+        var context = proxy(KeycloakContext.class, (method, args) -> switch (method.getName()) {
+            case "getRealm" -> realm;
+            default -> throw unsupported(method);
+        });
+        var tracingProvider = proxy(TracingProvider.class, (method, args) -> switch (method.getName()) {
+            case "getTracer" -> OpenTelemetry.noop().getTracer(CrmTestSession.class.getName());
+            default -> throw unsupported(method);
+        });
+        var infinispanProvider = proxy(InfinispanConnectionProvider.class, (method, args) -> switch (method.getName()) {
+            case "getCache" -> cacheManager.getCache((String) args[0]);
+            default -> throw unsupported(method);
+        });
+        var clientProvider = clientProvider();
+
+        return proxy(KeycloakSession.class, (method, args) -> switch (method.getName()) {
+            case "getContext" -> context;
+            case "getProvider" -> {
+                if (args[0] == CrmClientProvider.class)
+                    yield clientProvider;
+                if (args[0] == TracingProvider.class)
+                    yield tracingProvider;
+                if (args[0] == InfinispanConnectionProvider.class && cacheManager != null)
+                    yield infinispanProvider;
+                throw unsupported(method);
+            }
+            case "getAttribute" -> attributes.get((String) args[0]);
+            case "setAttribute" -> attributes.put((String) args[0], args[1]);
+            case "removeAttribute" -> attributes.remove((String) args[0]);
+            default -> throw unsupported(method);
+        });
+    }
+
+    private CrmClientProvider clientProvider() {
+        var configRegistry = new CrmApiConfigRegistry(0L, 0L, 0L) {
+            @Override
+            CrmApiConfig.CrmApiConfigEntry get(KeycloakSession session) {
+                return apiConfig;
+            }
+        };
+        return new DefaultCrmClientProvider(configRegistry, transport, executor, guard,
+            CrmRequestTimeouts.fromConfig(DEFAULT_CONFIG), CrmRetryPolicy.fromConfig(DEFAULT_CONFIG),
+            CrmContentEncoding.fromConfig(DEFAULT_CONFIG), requestCoalescer, existsCustomerCache,
+            customerCache, CrmLoginTokenVerifier.fromConfig(DEFAULT_CONFIG),
+            new CrmApiMetrics(new SimpleMeterRegistry(), guard));
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.close();
+        transport.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, BiFunction<Method, Object[], Object> handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) ->
+            switch (method.getName()) {
+                case "equals" -> proxy == args[0];
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "toString" -> type.getSimpleName() + " of realm " + REALM;
+                default -> handler.apply(method, args);
+            });
+    }
+
+    private static UnsupportedOperationException unsupported(Method method) {
+        return new UnsupportedOperationException(method.getDeclaringClass().getSimpleName() + "." + method.getName()
+            + " isn't supported in CRM test sessions");
+    }
+}
@@ -0,0 +1,94 @@
+package de.codecentric.iam.crm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests of the {@link ExistsCustomerCache}, and of its use by the {@link CrmApiFacade} with a {@link CrmStubServer}.
+ */
+class ExistsCustomerCacheTest {
+    private static final String API_URL = "https://crm.example.com";
+
+    /**
+     * Negative results expire before positive ones.
+     */
+    @Test
+    void ttlTest() throws InterruptedException {
+        var cache = new ExistsCustomerCache(10, 300L, 100L);
+        cache.put(API_URL, "existing@example.com", true);
+        cache.put(API_URL, "unknown@example.com", false);
+        assertThat(cache.get(API_URL, "existing@example.com")).isTrue();
+        assertThat(cache.get(API_URL, "unknown@example.com")).isFalse();
+
+        Thread.sleep(150);
+        assertThat(cache.get(API_URL, "existing@example.com")).isTrue();
+        assertThat(cache.get(API_URL, "unknown@example.com")).isNull();
+
+        Thread.sleep(200);
+        assertThat(cache.get(API_URL, "existing@example.com")).isNull();
+        assertThat(cache.size()).isZero();
+        assertThat(cache.getHits()).isEqualTo(3);
+        assertThat(cache.getMisses()).isEqualTo(2);
+    }
+
+    /**
+     * A full cache evicts the least recently used entry, i.e., reads count as use.
+     */
+    @Test
+    void lruEvictionTest() {
+        var cache = new ExistsCustomerCache(2, 60_000L, 60_000L);
+        cache.put(API_URL, "customer0@example.com", true);
+        cache.put(API_URL, "customer1@example.com", true);
+        assertThat(cache.get(API_URL, "customer0@example.com")).isTrue();
+
+        cache.put(API_URL, "customer2@example.com", false);
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.getEvictions()).isEqualTo(1);
+        assertThat(cache.get(API_URL, "customer1@example.com")).isNull();
+        assertThat(cache.get(API_URL, "customer0@example.com")).isTrue();
+        assertThat(cache.get(API_URL, "customer2@example.com")).isFalse();
+    }
+
+    /**
+     * Entries are qualified with the URL of the CRM API, and a maximum size of zero disables the cache.
+     */
+    @Test
+    void keyAndDisabledCacheTest() {
+        var cache = new ExistsCustomerCache(10, 60_000L, 60_000L);
+        cache.put(API_URL, "customer0@example.com", true);
+        assertThat(cache.get("https://other-crm.example.com", "customer0@example.com")).isNull();
+
+        cache.invalidate(API_URL, "customer0@example.com");
+        assertThat(cache.get(API_URL, "customer0@example.com")).isNull();
+
+        var disabledCache = new ExistsCustomerCache(0, 60_000L, 60_000L);
+        disabledCache.put(API_URL, "customer0@example.com", true);
+        assertThat(disabledCache.get(API_URL, "customer0@example.com")).isNull();
+        assertThat(disabledCache.size()).isZero();
+    }
+
+    /**
+     * Existence checks of the facade are served from the cache, and a created customer's cached negative result is
+     * invalidated, so that the customer exists right away.
+     */
+    @Test
+    void createCustomerTest() throws Exception {
+        var email = "new@example.com";
+        var cache = new ExistsCustomerCache(10, 60_000L, 60_000L);
+        try (var crmStub = new CrmStubServer().start();
+             var testSession = new CrmTestSession(crmStub.getUrl()).withExistsCustomerCache(cache)) {
+            assertThat(CrmApiFacade.session(testSession.session()).existsCustomer(email)).contains(false);
+            assertThat(CrmApiFacade.session(testSession.session()).existsCustomer(email)).contains(false);
+            assertThat(crmStub.getRequests()).isEqualTo(1);
+
+            var facade = CrmApiFacade.session(testSession.session());
+            assertThat(facade.createCustomer(email, "password", "New", "Customer")).contains(true);
+            assertThat(cache.get(crmStub.getUrl(), email)).isNull();
+
+            assertThat(facade.existsCustomer(email)).contains(true);
+            assertThat(facade.existsCustomer(email)).contains(true);
+            assertThat(crmStub.getRequests()).isEqualTo(3);
+        }
+    }
+}
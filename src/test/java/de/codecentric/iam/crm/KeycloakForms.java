@@ -0,0 +1,118 @@
+package de.codecentric.iam.crm;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Client of Keycloak's login and registration forms over plain HTTP, i.e., without a browser. Unlike a browser, the
+ * client is thread-safe, and each flow keeps its own cookies, so that flows of different users and realms may run
+ * concurrently.
+ */
+class KeycloakForms {
+    // The account console is a public client of realms with a standard flow. Its authorization codes are never
+    // redeemed, because flows are only followed up to the redirect.
+    private static final String CLIENT_ID = "account";
+    private static final Pattern FORM_ACTION = Pattern.compile("<form[^>]*\\saction=\"([^\"]+)\"");
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+
+    /**
+     * Log in the given user with the login form of the realm with the given URL, and return whether Keycloak redirected
+     * to the client with an authorization code.
+     */
+    boolean login(String realmUrl, String email, String password) throws IOException, InterruptedException {
+        var cookies = new LinkedHashMap<String, String>();
+        var loginForm = send(HttpRequest.newBuilder(authUri(realmUrl, "auth")).GET(), cookies);
+        var response = submit(loginForm, cookies, Map.of(
+            "username", email,
+            "password", password,
+            "credentialId", ""
+        ));
+        return isRedirectWithCode(response);
+    }
+
+    /**
+     * Register the given user with the registration form of the realm with the given URL, and return whether Keycloak
+     * redirected to the client with an authorization code.
+     */
+    boolean register(String realmUrl, String email, String password, String firstname, String lastname)
+        throws IOException, InterruptedException {
+        var cookies = new LinkedHashMap<String, String>();
+        var registrationForm = send(HttpRequest.newBuilder(authUri(realmUrl, "registrations")).GET(), cookies);
+        var response = submit(registrationForm, cookies, Map.of(
+            "email", email,
+            "password", password,
+            "password-confirm", password,
+            "firstName", firstname,
+            "lastName", lastname
+        ));
+        return isRedirectWithCode(response);
+    }
+
+    private static URI authUri(String realmUrl, String endpoint) {
+        return URI.create(realmUrl + "/protocol/openid-connect/" + endpoint +
+            "?client_id=" + CLIENT_ID +
+            "&response_type=code" +
+            "&scope=openid" +
+            "&redirect_uri=" + URLEncoder.encode(realmUrl + "/account/", UTF_8));
+    }
+
+    /**
+     * Submit the form of the given page with the given parameters.
+     */
+    private HttpResponse<String> submit(HttpResponse<String> page, Map<String, String> cookies,
+        Map<String, String> parameters) throws IOException, InterruptedException {
+        var action = FORM_ACTION.matcher(page.body());
+        if (page.statusCode() != 200 || !action.find())
+            throw new IllegalStateException("No form on page with status " + page.statusCode());
+
+        var body = parameters.entrySet().stream()
+            .map(parameter -> URLEncoder.encode(parameter.getKey(), UTF_8) + "=" +
+                URLEncoder.encode(parameter.getValue(), UTF_8))
+            .collect(Collectors.joining("&"));
+        return send(HttpRequest.newBuilder(URI.create(action.group(1).replace("&amp;", "&")))
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString(body)), cookies);
+    }
+
+    /**
+     * Send the given request with the given cookies, and remember the cookies that the response sets, e.g., those of
+     * Keycloak's authentication session.
+     */
+    private HttpResponse<String> send(HttpRequest.Builder request, Map<String, String> cookies)
+        throws IOException, InterruptedException {
+        if (!cookies.isEmpty())
+            request.header("Cookie", cookies.entrySet().stream()
+                .map(cookie -> cookie.getKey() + "=" + cookie.getValue())
+                .collect(Collectors.joining("; ")));
+
+        var response = httpClient.send(request.timeout(Duration.ofSeconds(30)).build(),
+            HttpResponse.BodyHandlers.ofString());
+        for (var setCookie : response.headers().allValues("Set-Cookie")) {
+            var cookie = setCookie.split(";", 2)[0].split("=", 2);
+            if (cookie.length == 2)
+                cookies.put(cookie[0].trim(), cookie[1].trim());
+        }
+        return response;
+    }
+
+    private static boolean isRedirectWithCode(HttpResponse<String> response) {
+        return response.statusCode() == 302 &&
+            response.headers().firstValue("Location").map(location -> location.contains("code=")).orElse(false);
+    }
+}
@@ -0,0 +1,127 @@
+package de.codecentric.iam.crm;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests of the {@link SingleFlight} coalescing, and of the {@link CrmRequestCoalescer} of the {@link CrmApiFacade} with
+ * a {@link CrmStubServer}.
+ */
+class SingleFlightTest {
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    /**
+     * The first caller of a key starts the call, while followers share its result until it completes.
+     */
+    @Test
+    void leaderAndFollowersTest() {
+        var leaderCall = new CompletableFuture<String>();
+        var leader = singleFlight.execute("key", () -> call(leaderCall));
+        var follower = singleFlight.execute("key", () -> call(new CompletableFuture<>()));
+        var otherKey = singleFlight.execute("other key", () -> call(CompletableFuture.completedFuture("other")));
+        assertThat(calls).hasValue(2);
+        assertThat(singleFlight.size()).isOne();
+        assertThat(singleFlight.getCoalescedCalls()).isOne();
+
+        leaderCall.complete("result");
+        assertThat(leader.join()).isEqualTo("result");
+        assertThat(follower.join()).isEqualTo("result");
+        assertThat(otherKey.join()).isEqualTo("other");
+        assertThat(singleFlight.size()).isZero();
+
+        assertThat(singleFlight.execute("key", () -> call(CompletableFuture.completedFuture("next"))).join())
+            .isEqualTo("next");
+        assertThat(calls).hasValue(3);
+    }
+
+    /**
+     * Failed calls are shared with the followers, but not remembered, including calls that fail to start.
+     */
+    @Test
+    void failureTest() {
+        var leaderCall = new CompletableFuture<String>();
+        var leader = singleFlight.execute("key", () -> call(leaderCall));
+        var follower = singleFlight.execute("key", () -> call(new CompletableFuture<>()));
+
+        leaderCall.completeExceptionally(new IllegalStateException("CRM API unavailable"));
+        assertThatThrownBy(leader::join).hasCauseInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(follower::join).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(singleFlight.size()).isZero();
+
+        var failedStart = singleFlight.execute("key", () -> {
+            throw new IllegalStateException("Executor shut down");
+        });
+        assertThatThrownBy(failedStart::join).isInstanceOf(CompletionException.class);
+        assertThat(singleFlight.size()).isZero();
+        assertThat(singleFlight.execute("key", () -> call(CompletableFuture.completedFuture("next"))).join())
+            .isEqualTo("next");
+    }
+
+    /**
+     * Cancelling a caller's future affects neither the shared call nor the other callers.
+     */
+    @Test
+    void cancellationTest() {
+        var leaderCall = new CompletableFuture<String>();
+        var leader = singleFlight.execute("key", () -> call(leaderCall));
+        var follower = singleFlight.execute("key", () -> call(new CompletableFuture<>()));
+
+        follower.cancel(true);
+        assertThat(leaderCall).isNotDone();
+
+        leaderCall.complete("result");
+        assertThat(leader.join()).isEqualTo("result");
+        assertThat(singleFlight.size()).isZero();
+    }
+
+    /**
+     * Concurrent existence checks of the same customer result in a single request to the CRM API.
+     */
+    @Test
+    void coalescerTest() throws Exception {
+        try (var crmStub = new CrmStubServer()
+                 .withGeneratedCustomers(1)
+                 .withLatency(CrmStubServer.Latency.fixed(Duration.ofMillis(300)))
+                 .start();
+             var testSession = new CrmTestSession(crmStub.getUrl())
+                 .withExistsCustomerCache(new ExistsCustomerCache(0, 0L, 0L));
+             var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var start = new CountDownLatch(1);
+            var checks = new ArrayList<CompletableFuture<Optional<Boolean>>>();
+            for (var i = 0; i < 8; i++) {
+                var session = testSession.session();
+                checks.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return CrmApiFacade.session(session).existsCustomer("customer0@example.com");
+                }, executor));
+            }
+            start.countDown();
+
+            assertThat(checks).allSatisfy(check -> assertThat(check.join()).contains(true));
+            assertThat(crmStub.getRequests()).isEqualTo(1);
+            assertThat(testSession.getRequestCoalescer().getCoalescedCalls()).isEqualTo(7);
+            assertThat(testSession.getRequestCoalescer().getInFlightCalls()).isZero();
+        }
+    }
+
+    private CompletableFuture<String> call(CompletableFuture<String> result) {
+        calls.incrementAndGet();
+        return result;
+    }
+}
@@ -0,0 +1,88 @@
+package de.codecentric.iam.keycloak;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+
+import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests of the scheduling of the {@link CrmCustomerRefresher}. Refreshes are queued by the executor, and run by the
+ * tests, so that refreshes in flight can be asserted.
+ */
+class CrmCustomerRefresherTest {
+    private static final long MIN_INTERVAL_SECONDS = 300;
+
+    private final CrmCustomerRefresher refresher = new CrmCustomerRefresher();
+    private final ArrayList<Runnable> queuedRefreshes = new ArrayList<>();
+    private final AtomicInteger refreshes = new AtomicInteger();
+
+    /**
+     * A user is refreshed at most once at a time, while other users are refreshed independently.
+     */
+    @Test
+    void deduplicationTest() {
+        assertThat(schedule("realm user-1", 0)).isTrue();
+        assertThat(schedule("realm user-1", 0)).isFalse();
+        assertThat(schedule("realm user-2", 0)).isTrue();
+        assertThat(queuedRefreshes).hasSize(2);
+
+        queuedRefreshes.getFirst().run();
+        assertThat(refreshes).hasValue(1);
+        assertThat(refresher.schedule(queuedRefreshes::add, "realm user-1", 0, 0, refreshes::incrementAndGet))
+            .isTrue();
+        assertThat(queuedRefreshes).hasSize(3);
+    }
+
+    /**
+     * Completed refreshes count for the interval, even if the user's attributes didn't change, so that the time of
+     * the user's last refresh wasn't written.
+     */
+    @Test
+    void completedRefreshTest() {
+        assertThat(schedule("realm user-1", 0)).isTrue();
+        queuedRefreshes.getFirst().run();
+
+        assertThat(schedule("realm user-1", 0)).isFalse();
+        assertThat(schedule("realm user-2", 0)).isTrue();
+        assertThat(queuedRefreshes).hasSize(2);
+    }
+
+    /**
+     * Failed refreshes don't keep the user from being refreshed later.
+     */
+    @Test
+    void failedRefreshTest() {
+        assertThat(refresher.schedule(queuedRefreshes::add, "realm user-1", 0, MIN_INTERVAL_SECONDS, () -> {
+            throw new IllegalStateException("CRM API unavailable");
+        })).isTrue();
+        assertThatThrownBy(queuedRefreshes.getFirst()::run).isInstanceOf(IllegalStateException.class);
+        assertThat(schedule("realm user-1", 0)).isTrue();
+
+        assertThat(refresher.schedule(refresh -> {
+            throw new RejectedExecutionException("Executor shut down");
+        }, "realm user-2", 0, MIN_INTERVAL_SECONDS, refreshes::incrementAndGet)).isFalse();
+        assertThat(schedule("realm user-2", 0)).isTrue();
+    }
+
+    @Test
+    void minIntervalTest() {
+        var now = Time.currentTime();
+        assertThat(schedule("realm user-1", now - 10)).isFalse();
+        assertThat(schedule("realm user-1", now - MIN_INTERVAL_SECONDS + 10)).isFalse();
+        assertThat(queuedRefreshes).isEmpty();
+
+        assertThat(schedule("realm user-1", now - MIN_INTERVAL_SECONDS)).isTrue();
+        assertThat(schedule("realm user-2", 0)).isTrue();
+        assertThat(queuedRefreshes).hasSize(2);
+    }
+
+    private boolean schedule(String userKey, long lastRefresh) {
+        return refresher.schedule(queuedRefreshes::add, userKey, lastRefresh, MIN_INTERVAL_SECONDS,
+            refreshes::incrementAndGet);
+    }
+}
@@ -0,0 +1,115 @@
+package de.codecentric.iam.keycloak;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.adapter.InMemoryUserAdapter;
+import org.keycloak.userprofile.UserProfile;
+import org.keycloak.userprofile.UserProfileProvider;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests of {@link UserUtils#syncKeycloakUserAttributes(KeycloakSession, UserModel, Map)} with an in-memory user that
+ * counts its writes, and a session whose user profile counts validations.
+ */
+class UserUtilsTest {
+    private static final String ADDRESS = "Musterstrasse 1, 12345 Musterstadt";
+
+    private final AtomicInteger validations = new AtomicInteger();
+    private final CountingUser user = new CountingUser();
+
+    /**
+     * Unchanged values neither write nor validate the user, so that the session isn't even needed.
+     */
+    @Test
+    void unchangedAttributesTest() throws Exception {
+        var attributes = new HashMap<String, String>();
+        attributes.put(UserModel.FIRST_NAME, "Max");
+        attributes.put(UserAttributes.CRM_CUSTOMER_ADDRESS_ATTRIBUTE, ADDRESS);
+        attributes.put("unknown", null);
+
+        assertThat(UserUtils.syncKeycloakUserAttributes(null, user, attributes)).isFalse();
+        assertThat(user.writes).hasValue(0);
+    }
+
+    /**
+     * Only changed values are written, and the user is validated once afterward.
+     */
+    @Test
+    void changedAttributesTest() throws Exception {
+        var attributes = new HashMap<String, String>();
+        attributes.put(UserModel.FIRST_NAME, "Max");
+        attributes.put(UserModel.LAST_NAME, "Musterfrau");
+        attributes.put(UserAttributes.CRM_CUSTOMER_ADDRESS_ATTRIBUTE, null);
+
+        assertThat(UserUtils.syncKeycloakUserAttributes(session(), user, attributes)).isTrue();
+        assertThat(user.writes).hasValue(2);
+        assertThat(validations).hasValue(1);
+        assertThat(user.getLastName()).isEqualTo("Musterfrau");
+        assertThat(user.getFirstAttribute(UserAttributes.CRM_CUSTOMER_ADDRESS_ATTRIBUTE)).isNull();
+    }
+
+    /**
+     * Session whose only provider is a user profile provider, whose profiles count their validations.
+     */
+    private KeycloakSession session() {
+        var profile = (UserProfile) Proxy.newProxyInstance(UserProfile.class.getClassLoader(),
+            new Class<?>[] {UserProfile.class}, (proxy, method, args) -> {
+                if (!"validate".equals(method.getName()))
+                    throw new UnsupportedOperationException(method.getName());
+                validations.incrementAndGet();
+                return null;
+            });
+        var profileProvider = Proxy.newProxyInstance(UserProfileProvider.class.getClassLoader(),
+            new Class<?>[] {UserProfileProvider.class}, (proxy, method, args) -> {
+                if (!"create".equals(method.getName()))
+                    throw new UnsupportedOperationException(method.getName());
+                return profile;
+            });
+        return (KeycloakSession) Proxy.newProxyInstance(KeycloakSession.class.getClassLoader(),
+            new Class<?>[] {KeycloakSession.class}, (proxy, method, args) -> {
+                if (!"getProvider".equals(method.getName()) || args[0] != UserProfileProvider.class)
+                    throw new UnsupportedOperationException(method.getName());
+                return profileProvider;
+            });
+    }
+
+    /**
+     * In-memory user with a first name, last name, and address, which counts the writes after its creation.
+     */
+    private static class CountingUser extends InMemoryUserAdapter {
+        private final AtomicInteger writes = new AtomicInteger();
+
+        CountingUser() {
+            super(null, null, "user-id");
+            super.setSingleAttribute(UserModel.FIRST_NAME, "Max");
+            super.setSingleAttribute(UserModel.LAST_NAME, "Mustermann");
+            super.setSingleAttribute(UserAttributes.CRM_CUSTOMER_ADDRESS_ATTRIBUTE, ADDRESS);
+        }
+
+        @Override
+        public void setSingleAttribute(String name, String value) {
+            writes.incrementAndGet();
+            super.setSingleAttribute(name, value);
+        }
+
+        @Override
+        public void setAttribute(String name, List<String> values) {
+            writes.incrementAndGet();
+            super.setAttribute(name, values);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            writes.incrementAndGet();
+            super.removeAttribute(name);
+        }
+    }
+}
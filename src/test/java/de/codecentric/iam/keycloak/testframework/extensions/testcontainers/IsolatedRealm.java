@@ -0,0 +1,92 @@
+package de.codecentric.iam.keycloak.testframework.extensions.testcontainers;
+
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.admin.client.resource.RealmResource;
+import org.keycloak.representations.idm.RealmRepresentation;
+import org.keycloak.util.JsonSerialization;
+import org.testcontainers.images.builder.Transferable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Realm of a single test within a shared Keycloak testcontainer, which is imported from a realm import file under a
+ * unique name, and removed when the test is done. Together with vault secrets of its own, the realm isolates a test
+ * from others, so that tests may run concurrently against the same container.
+ */
+public class IsolatedRealm implements AutoCloseable {
+    private final KeycloakContainer container;
+    private final Keycloak adminClient;
+    private final String name;
+
+    private IsolatedRealm(KeycloakContainer container, Keycloak adminClient, String name) {
+        this.container = container;
+        this.adminClient = adminClient;
+        this.name = name;
+    }
+
+    /**
+     * Create a realm with a unique name of the given prefix in the given container. The realm gets imported with
+     * {@link #importFrom(String)}, after its vault secrets have been written.
+     */
+    public static IsolatedRealm create(KeycloakContainer container, Keycloak adminClient, String namePrefix) {
+        return new IsolatedRealm(container, adminClient,
+            namePrefix + "-" + UUID.randomUUID().toString().substring(0, 8));
+    }
+
+    /**
+     * Write the given secret of the realm to the given vault directory of the container, whose file name follows
+     * Keycloak's {@code REALM_UNDERSCORE_KEY} resolver.
+     */
+    public IsolatedRealm withVaultSecret(String vaultDir, String key, String secret) {
+        var fileName = name.replace("_", "__") + "_" + key.replace("_", "__");
+        container.copyFileToContainer(Transferable.of(secret), vaultDir + "/" + fileName);
+        return this;
+    }
+
+    /**
+     * Import the realm from the given realm import file on the classpath. The realm's ID is replaced, and so are
+     * references to the realm's name in URLs, e.g., the redirect URIs of clients.
+     */
+    public IsolatedRealm importFrom(String importFile) {
+        try (var is = Objects.requireNonNull(IsolatedRealm.class.getClassLoader().getResourceAsStream(importFile),
+            importFile)) {
+            var json = new String(is.readAllBytes(), UTF_8);
+            var template = JsonSerialization.readValue(json, RealmRepresentation.class);
+            json = json
+                .replace(template.getId(), UUID.randomUUID().toString())
+                .replace("/realms/" + template.getRealm() + "/", "/realms/" + name + "/");
+            var realm = JsonSerialization.readValue(json, RealmRepresentation.class);
+            realm.setRealm(name);
+            adminClient.realms().create(realm);
+            return this;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getBaseUrl() {
+        return container.getAuthServerUrl() + "/realms/" + name;
+    }
+
+    public RealmResource admin() {
+        return adminClient.realm(name);
+    }
+
+    /**
+     * Remove the realm together with its users and sessions.
+     */
+    @Override
+    public void close() {
+        admin().remove();
+    }
+}
@@ -0,0 +1,154 @@
+package de.codecentric.iam.keycloak.testframework.extensions.testcontainers;
+
+import com.github.dockerjava.api.exception.NotFoundException;
+import org.jboss.logging.Logger;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.images.builder.ImageFromDockerfile;
+import org.testcontainers.images.builder.Transferable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Keycloak image with provider classes and configuration files baked in, on which Keycloak's build, i.e., its Quarkus
+ * augmentation, has already run. The image is tagged with a hash of its content, i.e., the Keycloak version, the
+ * Dockerfile, the provider classes, and the configuration files. Thus, it is built once per provider build and cached
+ * by the Docker daemon, so that test runs with unchanged providers reuse it.
+ */
+class OptimizedKeycloakImage {
+    private static final Logger logger = Logger.getLogger(OptimizedKeycloakImage.class);
+    private static final String IMAGE_REPOSITORY = "keycloak-crm-test";
+    private static final String PROVIDER_JAR = "providers/test-providers.jar";
+
+    // Build-time options of the image. Runtime options for HTTP without hostname restriction make the production mode
+    // of the optimized image behave like the development mode of the stock image for tests.
+    private static final String ENVIRONMENT = """
+        ENV KC_DB=dev-file
+        ENV KC_CACHE=local
+        ENV KC_HEALTH_ENABLED=true
+        ENV KC_HTTP_ENABLED=true
+        ENV KC_HOSTNAME_STRICT=false
+        """;
+
+    private final String imageName;
+
+    private OptimizedKeycloakImage(String imageName) {
+        this.imageName = imageName;
+    }
+
+    /**
+     * Return the optimized image of the given Keycloak version with the classes from the given directories, packed as a
+     * provider jar, and the given classpath resources copied to the given paths. The image is built if the Docker
+     * daemon doesn't have it yet.
+     */
+    static synchronized OptimizedKeycloakImage of(String keycloakVersion, List<String> providerClassesPaths,
+        Map<String, String> classpathResources) {
+        var files = new TreeMap<String, byte[]>();
+        if (!providerClassesPaths.isEmpty())
+            files.put(PROVIDER_JAR, providerJar(providerClassesPaths));
+        var dockerfile = new StringBuilder("FROM quay.io/keycloak/keycloak:" + keycloakVersion + "\n");
+        if (!providerClassesPaths.isEmpty())
+            dockerfile.append("COPY --chown=1000:0 ").append(PROVIDER_JAR).append(" /opt/keycloak/providers/\n");
+        var index = 0;
+        for (var resource : classpathResources.entrySet()) {
+            var file = "files/" + index++;
+            files.put(file, readClasspathResource(resource.getKey()));
+            dockerfile.append("COPY --chown=1000:0 ").append(file).append(" ").append(resource.getValue()).append("\n");
+        }
+        dockerfile.append(ENVIRONMENT);
+        dockerfile.append("RUN /opt/keycloak/bin/kc.sh build\n");
+        files.put("Dockerfile", dockerfile.toString().getBytes(UTF_8));
+
+        var imageName = IMAGE_REPOSITORY + ":" + contentHash(files);
+        if (!imageExists(imageName)) {
+            logger.infof("Building optimized Keycloak image %s", imageName);
+            var image = new ImageFromDockerfile(imageName, false);
+            files.forEach((path, content) -> image.withFileFromTransferable(path, Transferable.of(content)));
+            image.get();
+        }
+        return new OptimizedKeycloakImage(imageName);
+    }
+
+    String getImageName() {
+        return imageName;
+    }
+
+    private static boolean imageExists(String imageName) {
+        try {
+            DockerClientFactory.instance().client().inspectImageCmd(imageName).exec();
+            return true;
+        } catch (NotFoundException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Pack the classes from the given directories into a jar whose entries are sorted and carry no timestamps, so that
+     * unchanged classes result in the same content hash.
+     */
+    private static byte[] providerJar(List<String> classesPaths) {
+        var entries = new TreeMap<String, Path>();
+        for (var classesPath : classesPaths) {
+            var root = Path.of(classesPath);
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.filter(Files::isRegularFile)
+                    .forEach(path -> entries.put(root.relativize(path).toString().replace('\\', '/'), path));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        var jar = new ByteArrayOutputStream();
+        try (var jarOut = new JarOutputStream(jar)) {
+            for (var entry : entries.entrySet()) {
+                var jarEntry = new JarEntry(entry.getKey());
+                jarEntry.setTime(0);
+                jarOut.putNextEntry(jarEntry);
+                Files.copy(entry.getValue(), jarOut);
+                jarOut.closeEntry();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return jar.toByteArray();
+    }
+
+    private static byte[] readClasspathResource(String resourcePath) {
+        try (InputStream is = Objects.requireNonNull(
+            OptimizedKeycloakImage.class.getClassLoader().getResourceAsStream(resourcePath), resourcePath)) {
+            return is.readAllBytes();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static String contentHash(Map<String, byte[]> files) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            files.forEach((path, content) -> {
+                digest.update(path.getBytes(UTF_8));
+                digest.update((byte) 0);
+                digest.update(content);
+            });
+            return HexFormat.of().formatHex(digest.digest()).substring(0, 16);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
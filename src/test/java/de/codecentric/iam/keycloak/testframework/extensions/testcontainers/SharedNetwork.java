@@ -0,0 +1,39 @@
+package de.codecentric.iam.keycloak.testframework.extensions.testcontainers;
+
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.Network;
+
+/**
+ * {@link Network} with a fixed name, which is created on first use and kept after test runs. Unlike networks from
+ * {@link Network#newNetwork()}, whose random IDs become part of the configuration of containers, the network allows for
+ * reusing containers across test runs (see {@link TestcontainersKeycloakServerConfigBuilder#withReuse(boolean)}).
+ */
+public class SharedNetwork implements Network {
+    private final String name;
+    private String id;
+
+    public SharedNetwork(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public synchronized String getId() {
+        if (id == null) {
+            var dockerClient = DockerClientFactory.instance().client();
+            id = dockerClient.listNetworksCmd().withNameFilter(name).exec().stream()
+                .filter(network -> name.equals(network.getName()))
+                .map(com.github.dockerjava.api.model.Network::getId)
+                .findFirst()
+                .orElseGet(() -> dockerClient.createNetworkCmd().withName(name).exec().getId());
+        }
+        return id;
+    }
+
+    /**
+     * Keep the network for containers which are reused by later test runs.
+     */
+    @Override
+    public void close() {
+        // NOOP
+    }
+}
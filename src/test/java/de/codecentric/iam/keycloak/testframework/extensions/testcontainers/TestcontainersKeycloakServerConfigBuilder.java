@@ -7,64 +7,120 @@ import org.testcontainers.images.builder.Transferable;
 import org.testcontainers.utility.MountableFile;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.function.Consumer;
 
 /**
  * Builder for the configurations of {@link org.keycloak.testframework.server.KeycloakServer}s that run inside a
  * Keycloak testcontainer. Basically, the builder methods wrap those of
- * {@link dasniko.testcontainers.keycloak.ExtendableKeycloakContainer}.
+ * {@link dasniko.testcontainers.keycloak.ExtendableKeycloakContainer}. The container is created from the stock
+ * Keycloak image, or from an {@link OptimizedKeycloakImage} (see {@link #withOptimizedImage()}), when it is requested.
  * @see TestcontainersKeycloakServerSupplier
  */
 public class TestcontainersKeycloakServerConfigBuilder {
-    private final KeycloakContainer keycloakContainer;
+    private final String keycloakVersion;
+    private final List<Consumer<KeycloakContainer>> containerCustomizers = new ArrayList<>();
+    private final Map<String, String> classpathResources = new LinkedHashMap<>();
+    private final List<String> providerClassesPaths = new ArrayList<>();
+    private boolean optimizedImage;
+    private KeycloakContainer keycloakContainer;
 
     public TestcontainersKeycloakServerConfigBuilder() {
         try (var is = TestcontainersKeycloakServerConfigBuilder.class.getResourceAsStream("/application.properties")) {
             var props = new Properties();
             props.load(is);
-            var keycloakVersion = props.getProperty("keycloak.version");
-            keycloakContainer = new KeycloakContainer("quay.io/keycloak/keycloak:" + keycloakVersion);
-            keycloakContainer
-                .withAdminUsername(Config.getAdminUsername())
-                .withAdminPassword(Config.getAdminPassword());
+            keycloakVersion = props.getProperty("keycloak.version");
         } catch (IOException ex) {
             throw new IllegalStateException(ex);
         }
     }
 
-    public KeycloakContainer getConfiguredKeycloakContainer() {
+    public synchronized KeycloakContainer getConfiguredKeycloakContainer() {
+        if (keycloakContainer != null)
+            return keycloakContainer;
+
+        if (optimizedImage) {
+            // Provider classes and classpath resources, e.g., keycloak.conf with build-time options, are baked into the
+            // image, which already went through Keycloak's build
+            var image = OptimizedKeycloakImage.of(keycloakVersion, providerClassesPaths, classpathResources);
+            keycloakContainer = new KeycloakContainer(image.getImageName())
+                .withProductionMode()
+                .withOptimizedFlag();
+        } else {
+            keycloakContainer = new KeycloakContainer("quay.io/keycloak/keycloak:" + keycloakVersion);
+            classpathResources.forEach((resourcePath, containerPath) ->
+                keycloakContainer.withCopyFileToContainer(MountableFile.forClasspathResource(resourcePath),
+                    containerPath));
+            if (!providerClassesPaths.isEmpty())
+                keycloakContainer.withProviderClassesFrom(providerClassesPaths.toArray(String[]::new));
+        }
+
+        keycloakContainer
+            .withAdminUsername(Config.getAdminUsername())
+            .withAdminPassword(Config.getAdminPassword());
+        containerCustomizers.forEach(customizer -> customizer.accept(keycloakContainer));
         return keycloakContainer;
     }
 
+    /**
+     * Run the container from an image that is built once per provider build with Keycloak's build already applied,
+     * so that the container starts with {@code --optimized} instead of augmenting Keycloak at every start. The image
+     * includes the provider classes and the classpath resources copied to the container. It is cached by the Docker
+     * daemon under a hash of its content, so that unchanged providers reuse it (see {@link OptimizedKeycloakImage}).
+     */
+    public TestcontainersKeycloakServerConfigBuilder withOptimizedImage() {
+        optimizedImage = true;
+        return this;
+    }
+
     public TestcontainersKeycloakServerConfigBuilder withCopyClasspathResourceToContainer(String resourcePath,
         String containerPath) {
-        keycloakContainer.withCopyFileToContainer(MountableFile.forClasspathResource(resourcePath),
-            containerPath);
+        classpathResources.put(resourcePath, containerPath);
         return this;
     }
 
     public TestcontainersKeycloakServerConfigBuilder withWriteStringToContainerFile(String s, String containerPath) {
-        keycloakContainer.withCopyToContainer(Transferable.of(s), containerPath);
+        containerCustomizers.add(container -> container.withCopyToContainer(Transferable.of(s), containerPath));
+        return this;
+    }
+
+    public TestcontainersKeycloakServerConfigBuilder withEnv(String name, String value) {
+        containerCustomizers.add(container -> container.withEnv(name, value));
         return this;
     }
 
     public TestcontainersKeycloakServerConfigBuilder withNetwork(Network network) {
-        keycloakContainer.withNetwork(network);
+        containerCustomizers.add(container -> container.withNetwork(network));
         return this;
     }
 
     public TestcontainersKeycloakServerConfigBuilder withDebugFixedPort(int hostPort, boolean suspend) {
-        keycloakContainer.withDebugFixedPort(hostPort, suspend);
+        containerCustomizers.add(container -> container.withDebugFixedPort(hostPort, suspend));
         return this;
     }
 
     public TestcontainersKeycloakServerConfigBuilder withProviderClassesFrom(String... classesResourcePaths) {
-        keycloakContainer.withProviderClassesFrom(classesResourcePaths);
+        providerClassesPaths.addAll(List.of(classesResourcePaths));
+        return this;
+    }
+
+    /**
+     * Reuse a running container with the same configuration, e.g., from an earlier test run, instead of starting a new
+     * one. Reuse requires {@code testcontainers.reuse.enable=true} in {@code ~/.testcontainers.properties}, and a
+     * {@link SharedNetwork} if any. Reused containers keep running after tests, so that tests need to reset the state
+     * of their realms.
+     */
+    public TestcontainersKeycloakServerConfigBuilder withReuse(boolean reusable) {
+        containerCustomizers.add(container -> container.withReuse(reusable));
         return this;
     }
 
     public TestcontainersKeycloakServerConfigBuilder withRealmImportFile(String importFile) {
-        keycloakContainer.withRealmImportFile(importFile);
+        containerCustomizers.add(container -> container.withRealmImportFile(importFile));
         return this;
     }
 }
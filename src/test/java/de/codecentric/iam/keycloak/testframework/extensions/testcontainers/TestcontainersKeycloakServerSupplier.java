@@ -23,8 +23,9 @@ public class TestcontainersKeycloakServerSupplier extends AbstractKeycloakServer
 
     /**
      * Fire up a new Keycloak testcontainer with the {@link TestcontainersKeycloakServerConfig} provided with the
-     * annotation. After successful firing up, return the Testcontainers-specific {@link KeycloakServer} implementation
-     * {@link TestcontainersKeycloakServer}.
+     * annotation, or reuse a running one with the same configuration if the config allows for reuse (see
+     * {@link TestcontainersKeycloakServerConfigBuilder#withReuse(boolean)}). After successful firing up, return the
+     * Testcontainers-specific {@link KeycloakServer} implementation {@link TestcontainersKeycloakServer}.
      */
     @Override
     public KeycloakServer getValue(InstanceContext<KeycloakServer, KeycloakIntegrationTest> instanceContext) {
@@ -1,51 +0,0 @@
-package de.codecentric.iam.keycloak.testframework.ui.page;
-
-import org.keycloak.testframework.ui.page.AbstractPage;
-import org.keycloak.testframework.ui.webdriver.ManagedWebDriver;
-import org.openqa.selenium.WebElement;
-import org.openqa.selenium.support.FindBy;
-
-/**
- * {@link AbstractPage} implementation for Keycloak registration pages.
- */
-public class RegistrationPage extends AbstractPage {
-    @FindBy(id = "email")
-    private WebElement emailInput;
-
-    @FindBy(id = "password")
-    private WebElement passwordInput;
-
-    @FindBy(id = "password-confirm")
-    private WebElement passwordConfirmInput;
-
-    @FindBy(id = "firstName")
-    private WebElement firstnameInput;
-
-    @FindBy(id = "lastName")
-    private WebElement lastnameInput;
-
-    @FindBy(css = "[type=submit]")
-    private WebElement submitButton;
-
-    public RegistrationPage(ManagedWebDriver driver) {
-        super(driver);
-    }
-
-    @Override
-    public final String getExpectedPageId() {
-        return "login-register";
-    }
-
-    public void fillRegistration(String username, String password, String passwordConfirm, String firstname,
-        String lastname) {
-        emailInput.sendKeys(username);
-        passwordInput.sendKeys(password);
-        passwordConfirmInput.sendKeys(passwordConfirm);
-        firstnameInput.sendKeys(firstname);
-        lastnameInput.sendKeys(lastname);
-    }
-
-    public void submit() {
-        submitButton.click();
-    }
-}